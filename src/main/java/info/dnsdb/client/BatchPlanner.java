@@ -0,0 +1,425 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plans rrset lookups for a batch of names, collapsing siblings into wildcard lookups where that is cheaper. Names
+ * sharing a parent, eg. a.example.com and b.example.com, may be fetched with one lookup of *.example.com, and names
+ * differing only in their last label, eg. example.com and example.net, with one lookup of example.*. Rows of a
+ * wildcard lookup are routed back to the names they belong to; rows for other names under the wildcard are dropped.
+ *
+ * A group is only collapsed if it has at least minGroup() names, and if a summarize query shows that the wildcard
+ * returns no more than limit() rows in total and no more than maxRowsPerName() rows per name in the group. Since the
+ * summarize query is a request too, a wildcard saves requests for groups of three or more names.
+ *
+ * A BatchPlanner holds only settings and may be reused for several batches,
+ * eg. planner.rrtype("A").execute(planner.plan(names), (name, row) -&gt; ...)
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#rrset-lookups">Documentation for rrset lookups and wildcards.</a>
+ */
+public class BatchPlanner {
+    private final Client client;
+    private String rrtype;
+    private int minGroup = 3;
+    private int limit = 10000;
+    private long maxRowsPerName = 100;
+    private int concurrency = 4;
+    private Instant deadline;
+    private CancellationToken cancellation;
+
+    /**
+     * Receives the rows of an executed plan. Calls are serialized.
+     */
+    public interface Listener {
+        /**
+         * Called for each row, once for each input name it belongs to.
+         *
+         * @param name The input name, as passed to plan().
+         * @param row The result row.
+         */
+        void onRow(String name, JSONObject row);
+    }
+
+    /**
+     * One lookup of a plan.
+     */
+    public static final class Step {
+        private final String value;
+        private final boolean wildcard;
+        private final Map<String, String> inputs;
+
+        Step(String value, boolean wildcard, Map<String, String> inputs) {
+            this.value = value;
+            this.wildcard = wildcard;
+            this.inputs = inputs;
+        }
+
+        /**
+         * @return The name looked up, which is a wildcard for a collapsed group.
+         */
+        public String value() {
+            return value;
+        }
+
+        /**
+         * @return True if this step collapses several names into a wildcard lookup.
+         */
+        public boolean wildcard() {
+            return wildcard;
+        }
+
+        /**
+         * @return The input names answered by this step.
+         */
+        public Collection<String> inputs() {
+            return Collections.unmodifiableCollection(inputs.values());
+        }
+
+        @Override
+        public String toString() {
+            return wildcard ? String.format("%s (%d names)", value, inputs.size()) : value;
+        }
+    }
+
+    /**
+     * The lookups planned for a batch.
+     */
+    public static final class Plan {
+        private final List<Step> steps;
+        private final int summaries;
+        private final int names;
+
+        Plan(List<Step> steps, int summaries, int names) {
+            this.steps = Collections.unmodifiableList(steps);
+            this.summaries = summaries;
+            this.names = names;
+        }
+
+        /**
+         * @return The lookups to run.
+         */
+        public List<Step> steps() {
+            return steps;
+        }
+
+        /**
+         * @return The number of summarize queries sent while planning.
+         */
+        public int summaries() {
+            return summaries;
+        }
+
+        /**
+         * @return The number of distinct input names.
+         */
+        public int names() {
+            return names;
+        }
+    }
+
+    /**
+     * Class constructor for BatchPlanner.
+     *
+     * @param client Client used for summarize queries and lookups.
+     */
+    public BatchPlanner(Client client) {
+        this.client = client;
+    }
+
+    /**
+     * Only look up records of the given rrtype.
+     *
+     * @param rrtype The rrtype, or null for all.
+     * @return The BatchPlanner object for further use in the fluent API pattern.
+     */
+    public BatchPlanner rrtype(String rrtype) {
+        this.rrtype = rrtype;
+        return this;
+    }
+
+    /**
+     * Set the smallest group of sibling names considered for a wildcard lookup. The default is 3.
+     *
+     * @param minGroup Number of names.
+     * @return The BatchPlanner object for further use in the fluent API pattern.
+     */
+    public BatchPlanner minGroup(int minGroup) {
+        if (minGroup < 2) {
+            throw new IllegalArgumentException("minGroup must be at least 2");
+        }
+        this.minGroup = minGroup;
+        return this;
+    }
+
+    /**
+     * Set the row limit of wildcard lookups. A group whose wildcard matches more rows is looked up name by name, so
+     * that no rows are lost to the limit. The default is 10000.
+     *
+     * @param limit Number of rows.
+     * @return The BatchPlanner object for further use in the fluent API pattern.
+     */
+    public BatchPlanner limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Set how many rows a wildcard lookup may return for each name in its group. Wildcards over large subtrees
+     * return mostly rows for names outside the batch, which cost more to transfer than the requests saved. The
+     * default is 100.
+     *
+     * @param rows Number of rows.
+     * @return The BatchPlanner object for further use in the fluent API pattern.
+     */
+    public BatchPlanner maxRowsPerName(long rows) {
+        this.maxRowsPerName = rows;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of lookups in flight. The default is 4.
+     *
+     * @param concurrency Number of concurrent lookups.
+     * @return The BatchPlanner object for further use in the fluent API pattern.
+     */
+    public BatchPlanner concurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Set a deadline for planning and executing batches. Every summarize query and lookup is bounded by it.
+     *
+     * @param deadline Time by which plan() and execute() must complete, or null for no deadline (the default).
+     * @return The BatchPlanner object for further use in the fluent API pattern.
+     * @see Query#deadline(Instant)
+     */
+    public BatchPlanner deadline(Instant deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    /**
+     * Attach a cancellation token to planning and execution. Cancelling it aborts every query in flight.
+     *
+     * @param token Token to observe, or null for none (the default).
+     * @return The BatchPlanner object for further use in the fluent API pattern.
+     * @see Query#cancellation(CancellationToken)
+     */
+    public BatchPlanner cancellation(CancellationToken token) {
+        this.cancellation = token;
+        return this;
+    }
+
+    /**
+     * Plan the lookups for a batch of names. Candidate groups are checked with summarize queries.
+     *
+     * @param names Domain names. Duplicates, ignoring case and a trailing dot, are looked up once.
+     * @return The plan.
+     * @throws DNSDBException If a summarize query fails.
+     */
+    public Plan plan(Collection<String> names) {
+        // normalized name to the input as given
+        Map<String, String> pending = new LinkedHashMap<>();
+        for (String name : names) {
+            pending.putIfAbsent(normalize(name), name);
+        }
+        int distinct = pending.size();
+
+        List<Step> steps = new ArrayList<>();
+        int summaries = 0;
+        for (boolean suffix : new boolean[]{true, false}) {
+            Map<String, Map<String, String>> groups = new LinkedHashMap<>();
+            for (Map.Entry<String, String> e : pending.entrySet()) {
+                String wildcard = suffix ? parentWildcard(e.getKey()) : headWildcard(e.getKey());
+                if (wildcard != null) {
+                    groups.computeIfAbsent(wildcard, k -> new LinkedHashMap<>()).put(e.getKey(), e.getValue());
+                }
+            }
+            for (Map.Entry<String, Map<String, String>> g : groups.entrySet()) {
+                Map<String, String> members = g.getValue();
+                if (members.size() < minGroup) {
+                    continue;
+                }
+                Query summary;
+                try {
+                    summary = client.summarizeRRSet(Client.TYPE_NAME, g.getKey());
+                } catch (UnsupportedOperationException e) {
+                    // a Client without summarize support: look each name up individually
+                    break;
+                }
+                summaries++;
+                if (cheaper(summary, members.size())) {
+                    steps.add(new Step(g.getKey(), true, members));
+                    pending.keySet().removeAll(members.keySet());
+                }
+            }
+        }
+        for (Map.Entry<String, String> e : pending.entrySet()) {
+            steps.add(new Step(e.getValue(), false, Map.of(e.getKey(), e.getValue())));
+        }
+        return new Plan(steps, summaries, distinct);
+    }
+
+    private boolean cheaper(Query q, int names) {
+        q.disableLimitedException(true).deadline(deadline).cancellation(cancellation);
+        if (rrtype != null) {
+            q.rrtype(rrtype);
+        }
+        long rows = q.summary().numResults();
+        return rows <= limit && rows <= maxRowsPerName * names;
+    }
+
+    /**
+     * Run the lookups of a plan.
+     *
+     * @param plan A plan from plan().
+     * @param listener Receives the rows for each input name.
+     * @throws DNSDBException If a lookup fails, after aborting the others. Rows of other lookups may have been
+     * delivered already.
+     */
+    public void execute(Plan plan, Listener listener) {
+        CancellationToken token = cancellation == null ? new CancellationToken() : cancellation.child();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "dnsdb-batch");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> pending = new ArrayList<>();
+            for (Step step : plan.steps()) {
+                pending.add(workers.submit(() -> run(step, listener, token)));
+            }
+            for (Future<?> f : pending) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof DNSDBException ? (DNSDBException) cause : new DNSDBException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DNSDBException(e);
+        } finally {
+            token.cancel();
+            workers.shutdownNow();
+        }
+    }
+
+    private void run(Step step, Listener listener, CancellationToken token) {
+        if (!step.wildcard) {
+            List<JSONObject> rows = new ArrayList<>();
+            check(lookup(step.value, token).disableLimitedException(true).forEach(rows::add));
+            deliver(listener, step.value, rows);
+            return;
+        }
+
+        // Rows are held until the lookup completes so that a lookup limited after planning can be redone by name.
+        Map<String, List<JSONObject>> routed = new LinkedHashMap<>();
+        QueryResult result = lookup(step.value, token).limit(limit).forEach(row -> {
+            String name = normalize(row.optString("rrname"));
+            if (step.inputs.containsKey(name)) {
+                routed.computeIfAbsent(name, k -> new ArrayList<>()).add(row);
+            }
+        });
+        check(result);
+        if (result.status() == QueryResult.Status.LIMITED) {
+            for (String input : step.inputs.values()) {
+                run(new Step(input, false, Map.of(normalize(input), input)), listener, token);
+            }
+            return;
+        }
+        for (Map.Entry<String, List<JSONObject>> e : routed.entrySet()) {
+            deliver(listener, step.inputs.get(e.getKey()), e.getValue());
+        }
+    }
+
+    private static void check(QueryResult result) {
+        if (result.status() == QueryResult.Status.FAILED) {
+            throw new QueryFailedException(new JSONObject().put("cond", Query.COND_FAILED)
+                    .putOpt("msg", result.message()));
+        }
+    }
+
+    private Query lookup(String value, CancellationToken token) {
+        Query q = client.lookupRRSet(Client.TYPE_NAME, value).deadline(deadline).cancellation(token);
+        if (rrtype != null) {
+            q.rrtype(rrtype);
+        }
+        return q;
+    }
+
+    private static void deliver(Listener listener, String name, List<JSONObject> rows) {
+        synchronized (listener) {
+            for (JSONObject row : rows) {
+                listener.onRow(name, row);
+            }
+        }
+    }
+
+    /**
+     * @return *.parent for a name with a parent of at least two labels, otherwise null.
+     */
+    private static String parentWildcard(String name) {
+        if (name.contains("*")) {
+            return null;
+        }
+        int dot = name.indexOf('.');
+        if (dot < 0 || name.indexOf('.', dot + 1) < 0) {
+            return null;
+        }
+        return "*." + name.substring(dot + 1);
+    }
+
+    /**
+     * @return head.* for a name of at least two labels, replacing its last label, otherwise null.
+     */
+    private static String headWildcard(String name) {
+        if (name.contains("*")) {
+            return null;
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot <= 0) {
+            return null;
+        }
+        return name.substring(0, dot) + ".*";
+    }
+
+    private static String normalize(String name) {
+        String s = name.trim().toLowerCase(Locale.ROOT);
+        if (s.endsWith(".") && s.length() > 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return s;
+    }
+}
@@ -0,0 +1,152 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONException;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A reusable CharSequence over a JSON string span of a byte buffer. Plain ASCII spans, which is nearly every DNS name
+ * and type, are read in place; spans with escapes or multi-byte UTF-8 are decoded into a char array that is kept and
+ * grown as needed. Setting a slice therefore allocates nothing once its array is large enough.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ */
+final class ByteSlice implements CharSequence {
+    private byte[] buf;
+    private int start;
+    private int length;
+    private char[] chars = new char[64];
+    private boolean decoded;
+
+    /**
+     * View a span, which must stay unchanged while the slice is read.
+     *
+     * @throws InvalidJSONException If the span has an invalid escape.
+     */
+    ByteSlice set(byte[] buf, int start, int end) {
+        this.buf = buf;
+        this.start = start;
+        this.length = end - start;
+        this.decoded = false;
+        for (int i = start; i < end; i++) {
+            byte b = buf[i];
+            if (b < 0 || b == '\\') {
+                decode(start, end);
+                break;
+            }
+        }
+        return this;
+    }
+
+    private void decode(int s, int e) {
+        if (chars.length < e - s) {
+            chars = new char[Math.max(e - s, 2 * chars.length)];
+        }
+        int n = 0;
+        int i = s;
+        while (i < e) {
+            int b = buf[i] & 0xff;
+            if (b == '\\') {
+                if (i + 1 >= e) {
+                    throw invalidEscape();
+                }
+                char c = (char) buf[i + 1];
+                switch (c) {
+                    case 'b': chars[n++] = '\b'; break;
+                    case 'f': chars[n++] = '\f'; break;
+                    case 'n': chars[n++] = '\n'; break;
+                    case 'r': chars[n++] = '\r'; break;
+                    case 't': chars[n++] = '\t'; break;
+                    case 'u':
+                        if (i + 6 > e) {
+                            throw invalidEscape();
+                        }
+                        chars[n++] = (char) hex(i + 2);
+                        i += 4;
+                        break;
+                    default: chars[n++] = c;
+                }
+                i += 2;
+            } else if (b < 0x80) {
+                chars[n++] = (char) b;
+                i++;
+            } else if (b < 0xe0 && i + 1 < e) {
+                chars[n++] = (char) ((b & 0x1f) << 6 | (buf[i + 1] & 0x3f));
+                i += 2;
+            } else if (b < 0xf0 && i + 2 < e) {
+                chars[n++] = (char) ((b & 0x0f) << 12 | (buf[i + 1] & 0x3f) << 6 | (buf[i + 2] & 0x3f));
+                i += 3;
+            } else if (i + 3 < e) {
+                int cp = (b & 0x07) << 18 | (buf[i + 1] & 0x3f) << 12 | (buf[i + 2] & 0x3f) << 6 | (buf[i + 3] & 0x3f);
+                chars[n++] = Character.highSurrogate(cp);
+                chars[n++] = Character.lowSurrogate(cp);
+                i += 4;
+            } else {
+                chars[n++] = '\uFFFD';
+                i = e;
+            }
+        }
+        length = n;
+        decoded = true;
+    }
+
+    private static InvalidJSONException invalidEscape() {
+        return new InvalidJSONException(new JSONException("invalid escape"));
+    }
+
+    private int hex(int at) {
+        int v = 0;
+        for (int i = at; i < at + 4; i++) {
+            int d = Character.digit(buf[i], 16);
+            if (d < 0) {
+                throw invalidEscape();
+            }
+            v = v << 4 | d;
+        }
+        return v;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return decoded ? chars[index] : (char) buf[start + index];
+    }
+
+    /**
+     * Allocates a String.
+     */
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        return toString().substring(from, to);
+    }
+
+    /**
+     * Allocates a String.
+     */
+    @Override
+    public String toString() {
+        return decoded ? new String(chars, 0, length)
+                : new String(buf, start, length, StandardCharsets.US_ASCII);
+    }
+}
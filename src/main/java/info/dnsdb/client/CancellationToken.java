@@ -0,0 +1,111 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A signal that aborts the queries it is attached to with Query.cancellation(). Cancelling it fails queries that are
+ * waiting to be sent, aborts HTTP exchanges that have not begun, and closes the response bodies of queries that are
+ * streaming, which then throw QueryCancelledException. One token may be shared by all the sub-queries of a larger
+ * operation, eg. the pages of a query or the lookups of a Pivot expansion.
+ *
+ * Cancellation cannot be undone. This class is thread-safe.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see Query#cancellation(CancellationToken)
+ * @see QueryCancelledException
+ */
+public final class CancellationToken {
+    private final Set<Runnable> callbacks = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean cancelled;
+
+    /**
+     * A callback registered with onCancel().
+     */
+    interface Registration extends AutoCloseable {
+        /**
+         * Unregister the callback. It will not run after this returns, unless it is already running.
+         */
+        @Override
+        void close();
+    }
+
+    /**
+     * Create a token that is cancelled along with this one, and can also be cancelled on its own. The child stays
+     * registered with this token until either of them is cancelled.
+     *
+     * @return A new CancellationToken.
+     */
+    public CancellationToken child() {
+        CancellationToken child = new CancellationToken();
+        Registration r = onCancel(child::cancel);
+        child.onCancel(r::close);
+        return child;
+    }
+
+    /**
+     * Cancel the queries attached to this token. Has no effect if it is already cancelled.
+     */
+    public void cancel() {
+        List<Runnable> run;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            run = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+        for (Runnable r : run) {
+            r.run();
+        }
+    }
+
+    /**
+     * @return True if cancel() has been called on this token or a parent.
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Run an action when this token is cancelled, on the cancelling thread, or immediately on this thread if it is
+     * cancelled already.
+     *
+     * @param action Action to run once.
+     * @return A registration to close when the action is no longer needed.
+     */
+    Registration onCancel(Runnable action) {
+        Runnable r = action::run;
+        synchronized (this) {
+            if (!cancelled) {
+                callbacks.add(r);
+                return () -> {
+                    synchronized (this) {
+                        callbacks.remove(r);
+                    }
+                };
+            }
+        }
+        action.run();
+        return () -> { };
+    }
+}
@@ -0,0 +1,177 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import java.time.Duration;
+
+/**
+ * Circuit breaker that stops sending queries after sustained failures. After a number of consecutive failures the
+ * circuit opens and queries fail fast with CircuitOpenException. Once the open interval has passed the circuit is
+ * half-open: a limited number of probe queries are let through, and it closes again if they succeed or re-opens if
+ * one fails.
+ *
+ * This class is thread-safe.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see ConcurrencyLimiter#circuitBreaker(CircuitBreaker)
+ */
+public class CircuitBreaker {
+    /**
+     * States of a circuit breaker.
+     */
+    public enum State {
+        /**
+         * Queries are sent normally.
+         */
+        CLOSED,
+        /**
+         * Queries fail fast.
+         */
+        OPEN,
+        /**
+         * Probe queries are sent to test whether the server has recovered.
+         */
+        HALF_OPEN
+    }
+
+    private int failureThreshold = 5;
+    private long openNanos = Duration.ofSeconds(30).toNanos();
+    private int probes = 1;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private int probesInFlight;
+    private int probeSuccesses;
+
+    /**
+     * Set the number of consecutive failures that opens the circuit. The default is 5.
+     *
+     * @param failureThreshold Number of failures.
+     * @return The CircuitBreaker object for further use in the fluent API pattern.
+     */
+    public CircuitBreaker failureThreshold(int failureThreshold) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be positive");
+        }
+        this.failureThreshold = failureThreshold;
+        return this;
+    }
+
+    /**
+     * Set how long the circuit stays open before probing. The default is 30 seconds.
+     *
+     * @param interval Open interval.
+     * @return The CircuitBreaker object for further use in the fluent API pattern.
+     */
+    public CircuitBreaker openInterval(Duration interval) {
+        this.openNanos = interval.toNanos();
+        return this;
+    }
+
+    /**
+     * Set the number of successful probes required to close a half-open circuit. Probes are sent one at a time. The
+     * default is 1.
+     *
+     * @param probes Number of probes.
+     * @return The CircuitBreaker object for further use in the fluent API pattern.
+     */
+    public CircuitBreaker probes(int probes) {
+        if (probes < 1) {
+            throw new IllegalArgumentException("probes must be positive");
+        }
+        this.probes = probes;
+        return this;
+    }
+
+    /**
+     * @return The current state.
+     */
+    public synchronized State state() {
+        if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * Admit a query.
+     *
+     * @return True if the query is a half-open probe.
+     * @throws CircuitOpenException If the circuit is open, or half-open with a probe already in flight.
+     */
+    synchronized boolean admit() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < openNanos) {
+                throw new CircuitOpenException();
+            }
+            state = State.HALF_OPEN;
+            probesInFlight = 0;
+            probeSuccesses = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight > 0) {
+                throw new CircuitOpenException();
+            }
+            probesInFlight++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record a successful query.
+     *
+     * @param probe The value returned by admit().
+     */
+    synchronized void success(boolean probe) {
+        failures = 0;
+        if (probe && state == State.HALF_OPEN) {
+            probesInFlight--;
+            if (++probeSuccesses >= probes) {
+                state = State.CLOSED;
+            }
+        }
+    }
+
+    /**
+     * Record a failure caused by the server or the network.
+     *
+     * @param probe The value returned by admit().
+     */
+    synchronized void failure(boolean probe) {
+        if (probe && state == State.HALF_OPEN || state == State.CLOSED && ++failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+            failures = 0;
+        }
+    }
+
+    /**
+     * Record a query whose outcome says nothing about the server's health, eg. one rejected for a bad parameter.
+     *
+     * @param probe The value returned by admit().
+     */
+    synchronized void ignore(boolean probe) {
+        if (probe && state == State.HALF_OPEN) {
+            probesInFlight--;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker " + state();
+    }
+}
@@ -0,0 +1,30 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+/**
+ * Exception raised without contacting the server when a CircuitBreaker is open after sustained failures.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see CircuitBreaker
+ */
+public class CircuitOpenException extends DNSDBException {
+    /**
+     * Default class constructor.
+     */
+    public CircuitOpenException() {
+        super("Circuit breaker open");
+    }
+}
@@ -76,6 +76,38 @@ public interface Client {
      */
     Query lookupRData(String type, String value);
 
+    /**
+     * Creates a Query object for a summarize RRSet search of type name or raw for the given value. The server returns
+     * a single row with the total count, the number of rrsets, and the earliest and latest observation times instead
+     * of the rrsets themselves. Use Query.summary() to execute it.
+     *
+     * @param type One of TYPE_NAME or TYPE_RAW.
+     * @param value A domain name with or without wildcards or a hex-encoded raw rrname string.
+     * @return A Query object set up with the desired parameters.
+     * @throws UnsupportedOperationException If the implementation does not support summarize queries. This default
+     * keeps implementations written before summarize was added source and binary compatible.
+     * @see Query#summary()
+     * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#additional-query-parameter-for-summarize">Additional query parameter for summarize.</a>
+     */
+    default Query summarizeRRSet(String type, String value) {
+        throw new UnsupportedOperationException("summarizeRRSet");
+    }
+
+    /**
+     * Creates a Query object for a summarize RData search of type name, ip, or raw for the given value. Use
+     * Query.summary() to execute it.
+     *
+     * @param type One of TYPE_NAME, TYPE_IP, or TYPE_RAW.
+     * @param value A domain name with or without wildcards, an IP address with or without CIDR notation, or a hex-encoded raw rrname string.
+     * @return A Query object set up with the desired parameters.
+     * @throws UnsupportedOperationException If the implementation does not support summarize queries.
+     * @see Query#summary()
+     * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#additional-query-parameter-for-summarize">Additional query parameter for summarize.</a>
+     */
+    default Query summarizeRData(String type, String value) {
+        throw new UnsupportedOperationException("summarizeRData");
+    }
+
     /**
      * Method for regex flex queries.
      */
@@ -0,0 +1,281 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import java.io.InputStream;
+
+/**
+ * Adaptive limit on the number of queries streaming at once. The limit grows additively while the time to the first
+ * response stays within a tolerance of the lowest recently observed, and shrinks multiplicatively when it rises
+ * beyond that or when the server sheds load with status 429 or 503. Queries beyond the limit wait for a running
+ * query to finish.
+ *
+ * Failures are also reported to a CircuitBreaker, which makes queries fail fast with CircuitOpenException during a
+ * sustained outage instead of adding to it.
+ *
+ * One limiter is normally shared by all clients using the same API key. This class is thread-safe.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see HTTPClient#limiter(ConcurrencyLimiter)
+ */
+public class ConcurrencyLimiter {
+    private int minLimit = 1;
+    private int maxLimit = 64;
+    private double backoff = 0.5;
+    private double tolerance = 2.0;
+    private CircuitBreaker breaker = new CircuitBreaker();
+
+    private double limit = 4;
+    private int inFlight;
+    private long baseline;
+    private long lastDecrease;
+    private long overloads;
+
+    /**
+     * Set the limit used before any latency has been observed. The default is 4.
+     *
+     * @param limit Initial number of concurrent queries.
+     * @return The ConcurrencyLimiter object for further use in the fluent API pattern.
+     */
+    public synchronized ConcurrencyLimiter initialLimit(int limit) {
+        this.limit = Math.max(minLimit, Math.min(maxLimit, limit));
+        return this;
+    }
+
+    /**
+     * Set the bounds of the limit. The defaults are 1 and 64; the server's own concurrency limit for the API key is a
+     * sensible maximum.
+     *
+     * @param min Smallest limit.
+     * @param max Largest limit.
+     * @return The ConcurrencyLimiter object for further use in the fluent API pattern.
+     */
+    public synchronized ConcurrencyLimiter limitBounds(int min, int max) {
+        if (min < 1 || min > max) {
+            throw new IllegalArgumentException("invalid limit bounds");
+        }
+        this.minLimit = min;
+        this.maxLimit = max;
+        this.limit = Math.max(min, Math.min(max, limit));
+        return this;
+    }
+
+    /**
+     * Set the factor the limit is multiplied by on overload. The default is 0.5.
+     *
+     * @param backoff Factor between 0 and 1, exclusive.
+     * @return The ConcurrencyLimiter object for further use in the fluent API pattern.
+     */
+    public synchronized ConcurrencyLimiter backoff(double backoff) {
+        if (backoff <= 0 || backoff >= 1) {
+            throw new IllegalArgumentException("backoff must be between 0 and 1");
+        }
+        this.backoff = backoff;
+        return this;
+    }
+
+    /**
+     * Set how many times the lowest observed latency a response may take before it is treated as a sign of overload.
+     * The default is 2.
+     *
+     * @param tolerance Ratio greater than 1.
+     * @return The ConcurrencyLimiter object for further use in the fluent API pattern.
+     */
+    public synchronized ConcurrencyLimiter latencyTolerance(double tolerance) {
+        if (tolerance <= 1) {
+            throw new IllegalArgumentException("tolerance must be greater than 1");
+        }
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    /**
+     * Replace the circuit breaker.
+     *
+     * @param breaker Circuit breaker.
+     * @return The ConcurrencyLimiter object for further use in the fluent API pattern.
+     */
+    public synchronized ConcurrencyLimiter circuitBreaker(CircuitBreaker breaker) {
+        this.breaker = breaker;
+        return this;
+    }
+
+    /**
+     * @return The circuit breaker.
+     */
+    public synchronized CircuitBreaker circuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * @return The current limit.
+     */
+    public synchronized int limit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return The number of queries currently holding a permit.
+     */
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return The number of 429 and 503 responses and connection failures seen.
+     */
+    public synchronized long overloads() {
+        return overloads;
+    }
+
+    /**
+     * Wait until a query may be sent.
+     *
+     * @param deadline Deadline and cancellation token of the query.
+     * @return A permit that must be released.
+     * @throws CircuitOpenException If the circuit breaker is open.
+     * @throws QueryCancelledException If the query is cancelled while waiting.
+     * @throws DeadlineExceededException If the deadline of the query passes while waiting.
+     * @throws DNSDBException If interrupted while waiting.
+     */
+    @SuppressWarnings("try")
+    Permit acquire(Deadline deadline) {
+        CircuitBreaker b;
+        try (CancellationToken.Registration r = deadline.onCancel(this::wakeUp)) {
+            synchronized (this) {
+                while (inFlight >= (int) limit) {
+                    deadline.await(this);
+                }
+                inFlight++;
+                b = breaker;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DNSDBException(e);
+        }
+        try {
+            return new Permit(b, b.admit());
+        } catch (CircuitOpenException e) {
+            release();
+            throw e;
+        }
+    }
+
+    private synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    private synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    private synchronized void onSuccess(long rtt) {
+        long now = System.nanoTime();
+        if (baseline == 0 || rtt < baseline) {
+            baseline = rtt;
+        } else {
+            // Let the baseline drift up slowly so that a lasting change in the server's latency is accepted.
+            baseline += (rtt - baseline) >> 6;
+        }
+
+        if (rtt > tolerance * baseline) {
+            decrease(now, rtt);
+        } else if (inFlight >= limit / 2) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    private synchronized void onOverload() {
+        overloads++;
+        decrease(System.nanoTime(), baseline);
+    }
+
+    /**
+     * Shrink the limit at most once per round trip, so that a burst of slow responses to queries sent under the old
+     * limit counts once.
+     */
+    private void decrease(long now, long rtt) {
+        if (now - lastDecrease >= rtt) {
+            limit = Math.max(minLimit, limit * backoff);
+            lastDecrease = now;
+        }
+    }
+
+    /**
+     * Permission to run one query.
+     */
+    final class Permit {
+        private final CircuitBreaker breaker;
+        private final boolean probe;
+        private final long start = System.nanoTime();
+        private boolean released;
+
+        private Permit(CircuitBreaker breaker, boolean probe) {
+            this.breaker = breaker;
+            this.probe = probe;
+        }
+
+        /**
+         * Record that the response has begun successfully.
+         */
+        void begun() {
+            onSuccess(System.nanoTime() - start);
+            breaker.success(probe);
+        }
+
+        /**
+         * Record that sending the query failed, and release the permit. Failures caused by the query's own
+         * cancellation or deadline are not counted against the server.
+         *
+         * @param e The failure.
+         * @param deadline Deadline and cancellation token of the query.
+         */
+        void failed(DNSDBException e, Deadline deadline) {
+            if (deadline.aborted(e)) {
+                breaker.ignore(probe);
+            } else if (e instanceof HTTPStatusException && !((HTTPStatusException) e).isOverload()) {
+                if (e instanceof ServerErrorException) {
+                    breaker.failure(probe);
+                } else {
+                    breaker.ignore(probe);
+                }
+            } else if (e.getCause() instanceof InterruptedException) {
+                breaker.ignore(probe);
+            } else {
+                onOverload();
+                breaker.failure(probe);
+            }
+            release();
+        }
+
+        /**
+         * Release the permit once. Further calls have no effect.
+         */
+        synchronized void release() {
+            if (!released) {
+                released = true;
+                ConcurrencyLimiter.this.release();
+            }
+        }
+
+        /**
+         * @return The body, releasing this permit when it is closed or fully read.
+         */
+        InputStream wrap(InputStream body) {
+            return new ReleasingInputStream(body, this::release);
+        }
+    }
+}
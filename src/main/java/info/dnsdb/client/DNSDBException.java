@@ -44,4 +44,17 @@ public class DNSDBException extends RuntimeException {
         super(cause);
     }
 
+    /**
+     * Class constructor controlling suppression and stack traces, for exceptions that report expected conditions and
+     * are thrown often enough that filling in a stack trace is a measurable cost.
+     *
+     * @param message Message to pass to RuntimeException.
+     * @param cause Cause to pass to RuntimeException, or null.
+     * @param enableSuppression Whether suppressed exceptions are recorded.
+     * @param writableStackTrace Whether the stack trace is filled in.
+     */
+    protected DNSDBException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
+        super(message, cause, enableSuppression, writableStackTrace);
+    }
+
 }
@@ -0,0 +1,284 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The deadline and cancellation token of one execution of a query, passed with its request so that every stage can
+ * give up in time: waiting for a concurrency permit, waiting for the response to begin, and reading its body. A
+ * single watchdog thread closes the bodies of streams whose deadline passes, since blocking reads cannot be
+ * interrupted otherwise.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see CancellationToken
+ */
+final class Deadline {
+    static final Deadline NONE = new Deadline(false, 0, null);
+
+    private static final ScheduledThreadPoolExecutor WATCHDOG = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "dnsdb-deadline");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        WATCHDOG.setRemoveOnCancelPolicy(true);
+    }
+
+    private final boolean bounded;
+    private final long nanos;
+    private final CancellationToken token;
+
+    private Deadline(boolean bounded, long nanos, CancellationToken token) {
+        this.bounded = bounded;
+        this.nanos = nanos;
+        this.token = token;
+    }
+
+    /**
+     * The deadline of an execution starting now: the earlier of an absolute deadline and a timeout.
+     *
+     * @param deadline Absolute deadline, or null.
+     * @param timeout Time allowed from now, or null.
+     * @param token Cancellation token, or null.
+     */
+    static Deadline of(Instant deadline, Duration timeout, CancellationToken token) {
+        if (deadline == null && timeout == null && token == null) {
+            return NONE;
+        }
+        long now = System.nanoTime();
+        long remaining = Long.MAX_VALUE;
+        if (deadline != null) {
+            remaining = saturatedNanos(Duration.between(Instant.now(), deadline));
+        }
+        if (timeout != null) {
+            remaining = Math.min(remaining, saturatedNanos(timeout));
+        }
+        // Beyond about 146 years the deadline is as good as none, and now + remaining would overflow.
+        boolean bounded = remaining < Long.MAX_VALUE / 2;
+        return new Deadline(bounded, bounded ? now + Math.max(0, remaining) : 0, token);
+    }
+
+    private static long saturatedNanos(Duration d) {
+        try {
+            return d.toNanos();
+        } catch (ArithmeticException e) {
+            return d.isNegative() ? 0 : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * @return True if there is a time limit.
+     */
+    boolean bounded() {
+        return bounded;
+    }
+
+    /**
+     * @return Nanoseconds left before the deadline, at least 1 so that it can be used as a timeout, or
+     * Long.MAX_VALUE if there is no time limit.
+     */
+    long remainingNanos() {
+        return bounded ? Math.max(1, nanos - System.nanoTime()) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return Time left before the deadline, at least 1ms, for HttpRequest.timeout().
+     */
+    Duration remaining() {
+        return Duration.ofNanos(Math.max(TimeUnit.MILLISECONDS.toNanos(1), remainingNanos()));
+    }
+
+    boolean expired() {
+        return bounded && nanos - System.nanoTime() <= 0;
+    }
+
+    boolean cancelled() {
+        return token != null && token.isCancelled();
+    }
+
+    /**
+     * @throws QueryCancelledException If the token has been cancelled.
+     * @throws DeadlineExceededException If the deadline has passed.
+     */
+    void check() {
+        DNSDBException failure = failure(null);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @param cause Failure that may have been caused by cancellation or the deadline, or null.
+     * @return QueryCancelledException or DeadlineExceededException with the cause, or null if neither applies.
+     */
+    private DNSDBException failure(Throwable cause) {
+        if (cancelled()) {
+            return new QueryCancelledException(cause);
+        }
+        if (expired()) {
+            return new DeadlineExceededException(cause);
+        }
+        return null;
+    }
+
+    /**
+     * @param e Failure of a stage of the query.
+     * @return QueryCancelledException or DeadlineExceededException if the failure was caused by either, otherwise e.
+     */
+    RuntimeException translate(RuntimeException e) {
+        if (e instanceof QueryCancelledException || e instanceof DeadlineExceededException) {
+            return e;
+        }
+        DNSDBException failure = failure(e);
+        return failure == null ? e : failure;
+    }
+
+    /**
+     * @param e Failure of a stage of the query.
+     * @return True if the failure was caused by cancellation or the deadline rather than by the server, so it says
+     * nothing about the server's health.
+     */
+    boolean aborted(RuntimeException e) {
+        RuntimeException t = translate(e);
+        return t instanceof QueryCancelledException || t instanceof DeadlineExceededException;
+    }
+
+    /**
+     * Run an action when the token is cancelled.
+     *
+     * @return The registration, which does nothing if there is no token.
+     * @see CancellationToken#onCancel(Runnable)
+     */
+    CancellationToken.Registration onCancel(Runnable action) {
+        return token == null ? () -> { } : token.onCancel(action);
+    }
+
+    /**
+     * Wait on a monitor held by the caller, until notified or the deadline passes. The caller must register a
+     * callback with onCancel() that notifies the monitor, and call this in a loop.
+     *
+     * @throws QueryCancelledException If the token has been cancelled.
+     * @throws DeadlineExceededException If the deadline has passed.
+     */
+    void await(Object monitor) throws InterruptedException {
+        check();
+        if (bounded) {
+            TimeUnit.NANOSECONDS.timedWait(monitor, remainingNanos());
+        } else {
+            monitor.wait();
+        }
+    }
+
+    /**
+     * Watch a response body, closing it when the deadline passes or the token is cancelled. Reads of the returned
+     * stream then throw DeadlineExceededException or QueryCancelledException. The watch ends when the body is read to
+     * the end or closed.
+     *
+     * @param body Body of a response.
+     * @return The watched body, or body itself if there is nothing to watch.
+     */
+    InputStream watch(InputStream body) {
+        if (!bounded && token == null) {
+            return body;
+        }
+        return new Watched(body);
+    }
+
+    private final class Watched extends FilterInputStream {
+        private final ScheduledFuture<?> timer;
+        private final CancellationToken.Registration registration;
+        private volatile boolean aborted;
+
+        Watched(InputStream body) {
+            super(body);
+            this.timer = bounded ? WATCHDOG.schedule(this::abort, remainingNanos(), TimeUnit.NANOSECONDS) : null;
+            this.registration = onCancel(this::abort);
+        }
+
+        private void abort() {
+            aborted = true;
+            try {
+                in.close();
+            } catch (IOException ignored) {
+                // reads fail either way
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return ended(super.read());
+            } catch (IOException e) {
+                if (aborted) {
+                    throw abortFailure(e);
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return ended(in.read(b, off, len));
+            } catch (IOException e) {
+                if (aborted) {
+                    throw abortFailure(e);
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * A closed body may read as the end of the stream rather than fail, which is only trusted if not aborted.
+         */
+        private int ended(int n) {
+            if (n < 0) {
+                if (aborted) {
+                    throw abortFailure(null);
+                }
+                release();
+            }
+            return n;
+        }
+
+        private DNSDBException abortFailure(Throwable cause) {
+            DNSDBException failure = failure(cause);
+            return failure != null ? failure : new DeadlineExceededException(cause);
+        }
+
+        private void release() {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            registration.close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            release();
+            super.close();
+        }
+    }
+}
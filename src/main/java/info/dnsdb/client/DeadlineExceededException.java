@@ -0,0 +1,35 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+/**
+ * Exception raised when a query does not complete before its deadline, whether it was still waiting to be sent,
+ * waiting for the response to begin, or streaming results.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see Query#timeout(java.time.Duration)
+ * @see Query#deadline(java.time.Instant)
+ */
+public class DeadlineExceededException extends DNSDBException {
+    /**
+     * Class constructor with a cause.
+     *
+     * @param cause The failure caused by the deadline, eg. an HttpTimeoutException, or null.
+     */
+    public DeadlineExceededException(Throwable cause) {
+        super("Deadline exceeded", cause, true, true);
+    }
+}
@@ -0,0 +1,419 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
+
+/**
+ * Joins a stream of local records, such as the lines of a CSV or NDJSON file of indicators, with DNSDB results. Each
+ * record's indicator is looked up once however often it occurs: results are kept in a table keyed on the indicator,
+ * which spills to a temporary file beyond memoryBudget(), and records waiting for the same lookup share it. Lookups
+ * run concurrently, bounded by concurrency(), while the input is read at most window() records ahead of the output.
+ *
+ * Each output record is a copy of its input record with the results added as a JSON array under field(). If a lookup
+ * fails, the record is emitted with the error message under field() + "_error" instead. With preserveOrder(true),
+ * records are emitted in input order; otherwise as soon as their results are available.
+ *
+ * eg. new Enricher(name -&gt; client.lookupRRSet(Client.TYPE_NAME, name).limit(100), "domain")
+ *         .concurrency(8).enrich(Enricher.csv(reader))
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ */
+public class Enricher {
+    private final Function<String, Query> lookup;
+    private final String indicatorField;
+    private String field = "dnsdb";
+    private int concurrency = 4;
+    private int window = 1024;
+    private boolean preserveOrder = true;
+    private long memoryBudget = 64L << 20;
+    private Path tempDirectory;
+
+    /**
+     * Class constructor for Enricher.
+     *
+     * @param lookup Creates the query for an indicator. Limited results are not an error.
+     * @param indicatorField Field of the input records holding the indicator.
+     */
+    public Enricher(Function<String, Query> lookup, String indicatorField) {
+        this.lookup = lookup;
+        this.indicatorField = indicatorField;
+    }
+
+    /**
+     * Set the field the results are added under. The default is dnsdb.
+     *
+     * @param field Field name.
+     * @return The Enricher object for further use in the fluent API pattern.
+     */
+    public Enricher field(String field) {
+        this.field = field;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of lookups in flight. The default is 4.
+     *
+     * @param concurrency Number of concurrent lookups.
+     * @return The Enricher object for further use in the fluent API pattern.
+     */
+    public Enricher concurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Set how many records may be read ahead of the output while their lookups run. The default is 1024.
+     *
+     * @param records Number of records.
+     * @return The Enricher object for further use in the fluent API pattern.
+     */
+    public Enricher window(int records) {
+        if (records < 1) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        this.window = records;
+        return this;
+    }
+
+    /**
+     * Emit records in input order. If false, a record may overtake records still waiting for slower lookups. The
+     * default is true.
+     *
+     * @param preserveOrder True to preserve input order.
+     * @return The Enricher object for further use in the fluent API pattern.
+     */
+    public Enricher preserveOrder(boolean preserveOrder) {
+        this.preserveOrder = preserveOrder;
+        return this;
+    }
+
+    /**
+     * Set the approximate heap used for results kept for repeated indicators before they are spilled to disk. The
+     * default is 64 MiB.
+     *
+     * @param bytes Memory budget.
+     * @return The Enricher object for further use in the fluent API pattern.
+     */
+    public Enricher memoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("memory budget must be positive");
+        }
+        this.memoryBudget = bytes;
+        return this;
+    }
+
+    /**
+     * Set the directory for spilled results. The default is the system temporary directory.
+     *
+     * @param dir Directory.
+     * @return The Enricher object for further use in the fluent API pattern.
+     */
+    public Enricher tempDirectory(Path dir) {
+        this.tempDirectory = dir;
+        return this;
+    }
+
+    /**
+     * Start enriching a stream of records. Lookups start as the returned Enrichment is read.
+     *
+     * @param records Input records. Records without an indicator are passed through unchanged.
+     * @return An Enrichment emitting the enriched records.
+     */
+    public Enrichment enrich(Iterator<JSONObject> records) {
+        return new Enrichment(records);
+    }
+
+    /**
+     * A running enrichment. This is an Iterator of the enriched records; next() and hasNext() block until a record is
+     * available. Closing it stops outstanding lookups and deletes spilled results.
+     */
+    public final class Enrichment implements Iterator<JSONObject>, AutoCloseable {
+        private final Iterator<JSONObject> input;
+        private final SpillTable table = new SpillTable(memoryBudget, tempDirectory);
+        private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private final BlockingQueue<Pending> ready = new LinkedBlockingQueue<>();
+        private final ExecutorService workers = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "dnsdb-enricher");
+            t.setDaemon(true);
+            return t;
+        });
+        private long lookups;
+        private long hits;
+
+        private final class Pending {
+            final JSONObject record;
+            final CompletableFuture<String> results;
+
+            Pending(JSONObject record, CompletableFuture<String> results) {
+                this.record = record;
+                this.results = results;
+            }
+        }
+
+        private Enrichment(Iterator<JSONObject> input) {
+            this.input = input;
+        }
+
+        /**
+         * @return The number of lookups started so far.
+         */
+        public long lookups() {
+            return lookups;
+        }
+
+        /**
+         * @return The number of records whose indicator had already been looked up.
+         */
+        public long hits() {
+            return hits;
+        }
+
+        @Override
+        public boolean hasNext() {
+            fill();
+            return !pending.isEmpty();
+        }
+
+        @Override
+        public JSONObject next() {
+            fill();
+            if (pending.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Pending p;
+            if (preserveOrder) {
+                p = pending.poll();
+            } else {
+                try {
+                    p = ready.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DNSDBException(e);
+                }
+                pending.remove(p);
+            }
+            return join(p);
+        }
+
+        private void fill() {
+            while (pending.size() < window && input.hasNext()) {
+                JSONObject record = input.next();
+                Pending p = new Pending(record, results(record.optString(indicatorField, null)));
+                pending.add(p);
+                if (!preserveOrder) {
+                    p.results.whenComplete((r, e) -> ready.add(p));
+                }
+            }
+        }
+
+        private CompletableFuture<String> results(String indicator) {
+            if (indicator == null || indicator.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            // A lookup stores its results before leaving inFlight, so checking in this order cannot miss both.
+            CompletableFuture<String> running = inFlight.get(indicator);
+            if (running != null) {
+                hits++;
+                return running;
+            }
+            String cached = table.get(indicator);
+            if (cached != null) {
+                hits++;
+                return CompletableFuture.completedFuture(cached);
+            }
+            lookups++;
+            CompletableFuture<String> f = CompletableFuture.supplyAsync(() -> fetch(indicator), workers);
+            inFlight.put(indicator, f);
+            f.whenComplete((r, e) -> {
+                if (r != null) {
+                    table.put(indicator, r);
+                }
+                inFlight.remove(indicator);
+            });
+            return f;
+        }
+
+        private String fetch(String indicator) {
+            JSONArray rows = new JSONArray();
+            try (Query q = lookup.apply(indicator).disableLimitedException(true)) {
+                QueryResult result = q.forEach(rows::put);
+                if (result.status() == QueryResult.Status.FAILED) {
+                    throw new QueryFailedException(new JSONObject().put("cond", Query.COND_FAILED)
+                            .putOpt("msg", result.message()));
+                }
+            }
+            return rows.toString();
+        }
+
+        private JSONObject join(Pending p) {
+            // Not new JSONObject(record.toMap()), which drops fields whose value is null.
+            JSONObject out = new JSONObject();
+            for (String k : p.record.keySet()) {
+                out.put(k, p.record.get(k));
+            }
+            String results;
+            try {
+                results = p.results.get();
+            } catch (ExecutionException e) {
+                out.put(field + "_error", String.valueOf(e.getCause().getMessage()));
+                return out;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DNSDBException(e);
+            }
+            if (results != null) {
+                out.put(field, new JSONArray(results));
+            }
+            return out;
+        }
+
+        /**
+         * Stop outstanding lookups and delete spilled results.
+         */
+        @Override
+        public void close() {
+            workers.shutdownNow();
+            pending.clear();
+            table.close();
+        }
+    }
+
+    /**
+     * Read NDJSON records, one JSON object per line. Blank lines are skipped.
+     *
+     * @param reader Input.
+     * @return An Iterator of the records.
+     * @throws InvalidJSONException From next() if a line is not a JSON object.
+     */
+    public static Iterator<JSONObject> ndjson(BufferedReader reader) {
+        return new LineIterator(reader, null);
+    }
+
+    /**
+     * Read CSV records. The first line names the fields. Fields may be quoted with double quotes, which are escaped
+     * by doubling them; quoted fields may not span lines.
+     *
+     * @param reader Input.
+     * @return An Iterator of the records, with a string value for each named field.
+     */
+    public static Iterator<JSONObject> csv(BufferedReader reader) {
+        try {
+            String header = reader.readLine();
+            return new LineIterator(reader, header == null ? List.of() : splitCSV(header));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static List<String> splitCSV(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    sb.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    sb.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(sb.toString());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        fields.add(sb.toString());
+        return fields;
+    }
+
+    /**
+     * Iterator of records read line by line, as NDJSON if header is null or as CSV otherwise.
+     */
+    private static final class LineIterator implements Iterator<JSONObject> {
+        private final BufferedReader reader;
+        private final List<String> header;
+        private String line;
+
+        LineIterator(BufferedReader reader, List<String> header) {
+            this.reader = reader;
+            this.header = header;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (line == null || line.isBlank()) {
+                    line = reader.readLine();
+                    if (line == null) {
+                        return false;
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return true;
+        }
+
+        @Override
+        public JSONObject next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String l = line;
+            line = null;
+            if (header == null) {
+                return StreamLineSource.decode(l);
+            }
+            JSONObject record = new JSONObject();
+            List<String> values = splitCSV(l);
+            for (int i = 0; i < header.size() && i < values.size(); i++) {
+                record.put(header.get(i), values.get(i));
+            }
+            return record;
+        }
+    }
+}
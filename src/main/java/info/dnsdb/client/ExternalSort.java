@@ -0,0 +1,450 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Sorts result rows from any number of queries within a memory budget. Rows are buffered until the budget is reached,
+ * then sorted and spilled as a compressed run to a temporary file; sorted() merges the runs back as a stream. With
+ * distinct(true), identical rows, such as a record returned by overlapping queries, are emitted once.
+ *
+ * Rows that compare equal under the order are emitted in the order of their JSON text, so output is deterministic.
+ * Temporary files are deleted by close().
+ *
+ * This class is not thread-safe.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ */
+public class ExternalSort implements AutoCloseable {
+    /**
+     * Orders rows by time_first, or zone_time_first for rows only observed in zone files. Rows without either come
+     * last.
+     */
+    public static final Comparator<JSONObject> BY_TIME_FIRST = Comparator.comparingLong(
+            row -> row.optLong("time_first", row.optLong("zone_time_first", Long.MAX_VALUE)));
+
+    /**
+     * Orders rows by time_last, or zone_time_last for rows only observed in zone files. Rows without either come
+     * last.
+     */
+    public static final Comparator<JSONObject> BY_TIME_LAST = Comparator.comparingLong(
+            row -> row.optLong("time_last", row.optLong("zone_time_last", Long.MAX_VALUE)));
+
+    /**
+     * Orders rows by rrname compared label by label from the right, ignoring ASCII case, so that names are grouped by
+     * their parent domains: example.com. sorts before a.example.com. and both before example.net.
+     */
+    public static final Comparator<JSONObject> BY_REVERSED_NAME =
+            (a, b) -> compareReversedNames(a.optString("rrname"), b.optString("rrname"));
+
+    private static final int MAX_FAN_IN = 64;
+    // Rough heap cost of a buffered row beyond its text: the JSONObject, its map and entries.
+    private static final int ROW_OVERHEAD = 256;
+
+    private final Comparator<JSONObject> order;
+    private final Comparator<Row> rowOrder;
+    private long memoryBudget = 64L << 20;
+    private Path tempDirectory;
+    private boolean distinct;
+
+    private List<Row> buffer = new ArrayList<>();
+    private long buffered;
+    private final List<Path> runs = new ArrayList<>();
+    private final List<RunReader> readers = new ArrayList<>();
+    private long rows;
+    private boolean sorting;
+
+    /**
+     * A row and its JSON text, which is what is spilled and breaks ties.
+     */
+    private static final class Row {
+        final JSONObject obj;
+        final String text;
+
+        Row(JSONObject obj, String text) {
+            this.obj = obj;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param order Sort order, eg. BY_TIME_FIRST or BY_REVERSED_NAME.thenComparing(BY_TIME_FIRST).
+     */
+    public ExternalSort(Comparator<JSONObject> order) {
+        this.order = order;
+        this.rowOrder = Comparator.<Row, JSONObject>comparing(r -> r.obj, order).thenComparing(r -> r.text);
+    }
+
+    /**
+     * Set the approximate heap used for buffering rows before a run is spilled. The default is 64 MiB.
+     *
+     * @param bytes Memory budget.
+     * @return The ExternalSort object for further use in the fluent API pattern.
+     */
+    public ExternalSort memoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("memory budget must be positive");
+        }
+        this.memoryBudget = bytes;
+        return this;
+    }
+
+    /**
+     * Set the directory for spilled runs. The default is the system temporary directory.
+     *
+     * @param dir Directory.
+     * @return The ExternalSort object for further use in the fluent API pattern.
+     */
+    public ExternalSort tempDirectory(Path dir) {
+        this.tempDirectory = dir;
+        return this;
+    }
+
+    /**
+     * Emit identical rows only once.
+     *
+     * @param distinct True to drop duplicates.
+     * @return The ExternalSort object for further use in the fluent API pattern.
+     */
+    public ExternalSort distinct(boolean distinct) {
+        this.distinct = distinct;
+        return this;
+    }
+
+    /**
+     * Add a row.
+     *
+     * @param row Result row.
+     * @throws IllegalStateException If sorted() has been called.
+     * @throws DNSDBException If a run cannot be spilled.
+     */
+    public void add(JSONObject row) {
+        if (sorting) {
+            throw new IllegalStateException("rows cannot be added after sorted()");
+        }
+        String text = row.toString();
+        buffer.add(new Row(row, text));
+        rows++;
+        buffered += 2L * text.length() + ROW_OVERHEAD;
+        if (buffered >= memoryBudget) {
+            spill();
+        }
+    }
+
+    /**
+     * Add all rows of a stream, eg. the Iterator returned by Query.stream().
+     *
+     * @param rows Result rows.
+     * @throws DNSDBException If a run cannot be spilled, or for the same reasons as the stream.
+     */
+    public void addAll(Iterator<JSONObject> rows) {
+        while (rows.hasNext()) {
+            add(rows.next());
+        }
+    }
+
+    /**
+     * @return The number of rows added.
+     */
+    public long rows() {
+        return rows;
+    }
+
+    /**
+     * @return The number of runs spilled to disk so far.
+     */
+    public int spilledRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Finish adding rows and stream them in order. May be called once.
+     *
+     * @return An Iterator over the sorted rows.
+     * @throws DNSDBException If spilled runs cannot be read.
+     */
+    public Iterator<JSONObject> sorted() {
+        if (sorting) {
+            throw new IllegalStateException("sorted() may only be called once");
+        }
+        sorting = true;
+        buffer.sort(rowOrder);
+        try {
+            while (runs.size() >= MAX_FAN_IN) {
+                List<Path> batch = new ArrayList<>(runs.subList(0, MAX_FAN_IN));
+                runs.subList(0, MAX_FAN_IN).clear();
+                List<Iterator<Row>> sources = new ArrayList<>();
+                for (Path p : batch) {
+                    sources.add(reader(p));
+                }
+                runs.add(writeRun(new Merger(sources)));
+                for (Path p : batch) {
+                    Files.deleteIfExists(p);
+                }
+            }
+
+            List<Iterator<Row>> sources = new ArrayList<>();
+            for (Path p : runs) {
+                sources.add(reader(p));
+            }
+            sources.add(buffer.iterator());
+            Merger merger = new Merger(sources);
+            return new Iterator<JSONObject>() {
+                @Override
+                public boolean hasNext() {
+                    return merger.hasNext();
+                }
+
+                @Override
+                public JSONObject next() {
+                    return merger.next().obj;
+                }
+            };
+        } catch (IOException e) {
+            throw new DNSDBException(e);
+        }
+    }
+
+    private RunReader reader(Path file) throws IOException {
+        RunReader r = new RunReader(file);
+        readers.add(r);
+        return r;
+    }
+
+    private void spill() {
+        buffer.sort(rowOrder);
+        try {
+            runs.add(writeRun(buffer.iterator()));
+        } catch (IOException e) {
+            throw new DNSDBException(e);
+        }
+        buffer = new ArrayList<>();
+        buffered = 0;
+    }
+
+    private Path writeRun(Iterator<Row> sorted) throws IOException {
+        Path file = tempDirectory == null ? Files.createTempFile("dnsdb-sort", ".run")
+                : Files.createTempFile(tempDirectory, "dnsdb-sort", ".run");
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file)), new Deflater(Deflater.BEST_SPEED), 1 << 16))) {
+            String previous = null;
+            while (sorted.hasNext()) {
+                String text = sorted.next().text;
+                if (distinct && text.equals(previous)) {
+                    continue;
+                }
+                byte[] b = text.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(b.length);
+                out.write(b);
+                previous = text;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Reads a spilled run back one row at a time.
+     */
+    private static final class RunReader implements Iterator<Row> {
+        private final DataInputStream in;
+        private Row next;
+
+        RunReader(Path file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(Files.newInputStream(file)), 1 << 16));
+            advance();
+        }
+
+        private void advance() {
+            try {
+                int n;
+                try {
+                    n = in.readInt();
+                } catch (EOFException e) {
+                    next = null;
+                    in.close();
+                    return;
+                }
+                byte[] b = new byte[n];
+                in.readFully(b);
+                String text = new String(b, StandardCharsets.UTF_8);
+                next = new Row(StreamLineSource.decode(text), text);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+                // the run is deleted with the sort
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Row next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Row r = next;
+            advance();
+            return r;
+        }
+    }
+
+    /**
+     * K-way merge of sorted sources, dropping duplicates if distinct.
+     */
+    private final class Merger implements Iterator<Row> {
+        private final PriorityQueue<Head> heads;
+        private String previous;
+        private Row next;
+
+        private final class Head {
+            final Iterator<Row> source;
+            Row row;
+
+            Head(Iterator<Row> source) {
+                this.source = source;
+                this.row = source.next();
+            }
+        }
+
+        Merger(List<Iterator<Row>> sources) {
+            heads = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> rowOrder.compare(a.row, b.row));
+            for (Iterator<Row> s : sources) {
+                if (s.hasNext()) {
+                    heads.add(new Head(s));
+                }
+            }
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && !heads.isEmpty()) {
+                Head h = heads.poll();
+                Row r = h.row;
+                if (h.source.hasNext()) {
+                    h.row = h.source.next();
+                    heads.add(h);
+                }
+                if (!distinct || !r.text.equals(previous)) {
+                    next = r;
+                    previous = r.text;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Row next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Row r = next;
+            advance();
+            return r;
+        }
+    }
+
+    /**
+     * Compare two domain names label by label from the right, ignoring ASCII case and a trailing dot, without
+     * allocating.
+     *
+     * @param a A domain name.
+     * @param b Another domain name.
+     * @return A negative, zero or positive number as a sorts before, with or after b.
+     */
+    public static int compareReversedNames(String a, String b) {
+        int ae = a.endsWith(".") ? a.length() - 1 : a.length();
+        int be = b.endsWith(".") ? b.length() - 1 : b.length();
+        while (ae > 0 && be > 0) {
+            int as = a.lastIndexOf('.', ae - 1) + 1;
+            int bs = b.lastIndexOf('.', be - 1) + 1;
+            int al = ae - as;
+            int bl = be - bs;
+            for (int i = 0; i < Math.min(al, bl); i++) {
+                int c = Character.compare(lower(a.charAt(as + i)), lower(b.charAt(bs + i)));
+                if (c != 0) {
+                    return c;
+                }
+            }
+            if (al != bl) {
+                return Integer.compare(al, bl);
+            }
+            ae = as - 1;
+            be = bs - 1;
+        }
+        return Integer.compare(Math.max(ae, 0), Math.max(be, 0));
+    }
+
+    private static char lower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Delete spilled runs.
+     */
+    @Override
+    public void close() {
+        buffer = new ArrayList<>();
+        for (RunReader r : readers) {
+            r.close();
+        }
+        readers.clear();
+        for (Path p : runs) {
+            try {
+                Files.deleteIfExists(p);
+            } catch (IOException ignored) {
+                // best effort
+            }
+        }
+        runs.clear();
+    }
+}
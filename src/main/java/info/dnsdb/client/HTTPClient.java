@@ -15,14 +15,25 @@
 package info.dnsdb.client;
 
 
+import org.apache.http.client.utils.URLEncodedUtils;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.net.HttpURLConnection.HTTP_OK;
 
@@ -32,19 +43,35 @@ import static java.net.HttpURLConnection.HTTP_OK;
  * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
  * @see <a href="https://docs.dnsdb.info/">Farsight DNSDB API Documentation.</a>
  */
-public class HTTPClient implements Client {
+public class HTTPClient extends QueryExecutor implements Client {
     /**
      * The default server for the DNSDB API.
      */
     public static final String DEFAULT_SERVER = "https://api.dnsdb.info";
-    private static final String PREFIX = "/dnsdb/v2/";
+    static final String PREFIX = "/dnsdb/v2/";
     private static final String X_API_KEY = "X-API-Key";
     private static final String ACCEPT = "Accept";
     private static final String CONTENT_TYPE = "application/x-ndjson";
+    private static final Duration PING_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration DEFAULT_KEEP_ALIVE = Duration.ofSeconds(20);
+
+    private static final ScheduledThreadPoolExecutor KEEP_ALIVE = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "dnsdb-keepalive");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        KEEP_ALIVE.setRemoveOnCancelPolicy(true);
+    }
 
     private final String apikey;
     private final String server;
     final HttpClient client;
+    private volatile HedgingPolicy hedging;
+    private volatile ConcurrencyLimiter limiter;
+    private volatile KeepAlive keepAlive;
+    private final AtomicInteger streams = new AtomicInteger();
 
     /**
      * Class constructor specifying an API key and using the default server and HTTP client.
@@ -79,6 +106,143 @@ public class HTTPClient implements Client {
         this.client = client;
     }
 
+    /**
+     * Hedge query requests under the given policy: if a response has not begun within the policy's delay, a duplicate
+     * request is sent and whichever response begins first is streamed. Intended for interactive lookups where tail
+     * latency matters more than quota. A hedge shares the concurrency limiter permit of its query.
+     *
+     * @param policy Hedging policy, or null to disable hedging.
+     * @return The HTTPClient object for further use in the fluent API pattern.
+     */
+    public HTTPClient hedging(HedgingPolicy policy) {
+        this.hedging = policy;
+        return this;
+    }
+
+    /**
+     * Run queries under an adaptive concurrency limit with a circuit breaker. A query holds a permit from the moment
+     * its request is sent until its response has been fully read or the query is closed.
+     *
+     * @param limiter Concurrency limiter, or null to send queries without limit.
+     * @return The HTTPClient object for further use in the fluent API pattern.
+     */
+    public HTTPClient limiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+        return this;
+    }
+
+    /**
+     * Open connections to the server ahead of the first query, and keep them open while the client is idle by pinging
+     * every 20 seconds. Same as warmUp(connections, Duration.ofSeconds(20)).
+     *
+     * @param connections Number of connections to keep ready.
+     * @return The HTTPClient object for further use in the fluent API pattern.
+     * @see HTTPClient#warmUp(int, Duration)
+     */
+    public HTTPClient warmUp(int connections) {
+        return warmUp(connections, DEFAULT_KEEP_ALIVE);
+    }
+
+    /**
+     * Open connections to the server ahead of the first query, so that it does not pay for connection setup, TLS
+     * handshakes and the initialization of the HTTP stack. This sends that many concurrent requests to the ping
+     * endpoint and returns when they have completed. The connections then stay in the HttpClient's pool.
+     *
+     * The connections not streaming a query are pinged again at least once per interval, even while other connections
+     * serve queries, so that none stays idle for longer than the interval and neither the server nor the pool closes
+     * them. The interval should be shorter than either idle timeout. Pings run on a shared background thread and stop if the client is garbage collected.
+     *
+     * HTTP/2 multiplexes concurrent requests over one connection, in which case one connection is kept ready.
+     *
+     * @param connections Number of connections to keep ready, or 0 to stop the keep-alive pings of an earlier call.
+     * @param keepAlive Longest time a connection may stay idle, or null to warm up only once.
+     * @return The HTTPClient object for further use in the fluent API pattern.
+     * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#ping-requests">Documentation for the ping endpoint.</a>
+     */
+    public synchronized HTTPClient warmUp(int connections, Duration keepAlive) {
+        if (connections < 0) {
+            throw new IllegalArgumentException("connections must not be negative");
+        }
+        KeepAlive previous = this.keepAlive;
+        if (previous != null) {
+            previous.future.cancel(false);
+            this.keepAlive = null;
+        }
+        if (connections == 0) {
+            return this;
+        }
+
+        CompletableFuture<?> warm = pingAll(connections);
+        try {
+            warm.get();
+        } catch (ExecutionException e) {
+            // pings fail quietly, as with ping()
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DNSDBException(e);
+        }
+        if (keepAlive != null) {
+            KeepAlive k = new KeepAlive(this, connections, keepAlive.toNanos());
+            // Checking every half interval, and pinging half an interval after the last ping, bounds idleness by
+            // the interval.
+            long period = Math.max(1, k.intervalNanos / 2);
+            k.future = KEEP_ALIVE.scheduleWithFixedDelay(k, period, period, TimeUnit.NANOSECONDS);
+            this.keepAlive = k;
+        }
+        return this;
+    }
+
+    /**
+     * Pings connections of a client when it is idle. Holds the client weakly so that it can still be collected.
+     */
+    private static final class KeepAlive implements Runnable {
+        final WeakReference<HTTPClient> client;
+        final int connections;
+        final long intervalNanos;
+        volatile ScheduledFuture<?> future;
+        private CompletableFuture<?> pending = CompletableFuture.completedFuture(null);
+        private long lastPing = System.nanoTime();
+
+        KeepAlive(HTTPClient client, int connections, long intervalNanos) {
+            this.client = new WeakReference<>(client);
+            this.connections = connections;
+            this.intervalNanos = intervalNanos;
+        }
+
+        @Override
+        public void run() {
+            HTTPClient c = client.get();
+            if (c == null) {
+                future.cancel(false);
+                return;
+            }
+            long now = System.nanoTime();
+            // Queries may keep some connections busy while the others idle, so ping regardless of recent queries.
+            if (!pending.isDone() || now - lastPing < intervalNanos / 2) {
+                return;
+            }
+            int idle = connections - c.streams.get();
+            if (idle > 0) {
+                pending = c.pingAll(idle);
+                lastPing = now;
+            }
+        }
+    }
+
+    /**
+     * Send concurrent pings, each of which needs a connection of its own under HTTP/1.1.
+     *
+     * @return A future completing when all pings have completed, exceptionally if any failed.
+     */
+    private CompletableFuture<?> pingAll(int n) {
+        HttpRequest request = newRequest(buildURI("ping")).timeout(PING_TIMEOUT).build();
+        CompletableFuture<?>[] sent = new CompletableFuture<?>[n];
+        for (int i = 0; i < n; i++) {
+            sent[i] = client.sendAsync(request, HttpResponse.BodyHandlers.discarding());
+        }
+        return CompletableFuture.allOf(sent);
+    }
+
     /**
      * Calls the DNSDB ping endpoint to verify end-to-end connectivity, but not apikey validity.
      *
@@ -112,7 +276,7 @@ public class HTTPClient implements Client {
      */
     @Override
     public JSONObject rateLimit() {
-        HttpRequest request = buildRequest(buildURI("ping"));
+        HttpRequest request = buildRequest(buildURI("rate_limit"));
         try {
             HttpResponse<String> response = this.client.send(request, HttpResponse.BodyHandlers.ofString());
             if (response.statusCode() != HTTP_OK) {
@@ -137,7 +301,7 @@ public class HTTPClient implements Client {
      */
     @Override
     public Query lookupRRSet(String type, String value) {
-        return new Query(this, buildURI(String.format("lookup/rrset/%s/%s", type, value)));
+        return new Query(this, "lookup/rrset/" + type, value);
     }
 
     /**
@@ -150,10 +314,33 @@ public class HTTPClient implements Client {
      */
     @Override
     public Query lookupRData(String type, String value) {
-        if (type.equals(TYPE_IP)) {
-            value = value.replace("/", ",");
-        }
-        return new Query(this, buildURI(String.format("lookup/rdata/%s/%s", type, value)));
+        return new Query(this, "lookup/rdata/" + type, value);
+    }
+
+    /**
+     * Creates a Query object for a summarize RRSet search of type name or raw for the given value.
+     *
+     * @param type One of TYPE_NAME or TYPE_RAW.
+     * @param value A domain name with or without wildcards or a hex-encoded raw rrname string.
+     * @return A Query object set up with the desired parameters.
+     * @see Client#summarizeRRSet(String, String)
+     */
+    @Override
+    public Query summarizeRRSet(String type, String value) {
+        return new Query(this, "summarize/rrset/" + type, value);
+    }
+
+    /**
+     * Creates a Query object for a summarize RData search of type name, ip, or raw for the given value.
+     *
+     * @param type One of TYPE_NAME, TYPE_IP, or TYPE_RAW.
+     * @param value A domain name with or without wildcards, an IP address with or without CIDR notation, or a hex-encoded raw rrname string.
+     * @return A Query object set up with the desired parameters.
+     * @see Client#summarizeRData(String, String)
+     */
+    @Override
+    public Query summarizeRData(String type, String value) {
+        return new Query(this, "summarize/rdata/" + type, value);
     }
 
     /**
@@ -170,7 +357,7 @@ public class HTTPClient implements Client {
      */
     @Override
     public Query flex(String method, String key, String value) {
-        return new Query(this, buildURI(String.format("%s/%s/%s", method, key, value)));
+        return new Query(this, method + "/" + key, value);
     }
 
     URI buildURI(String suffix) {
@@ -183,8 +370,146 @@ public class HTTPClient implements Client {
         return uri;
     }
 
+    /**
+     * @return An identifier of the API key that is safe to log: its last four characters.
+     */
+    String keyId() {
+        return "..." + apikey.substring(Math.max(0, apikey.length() - 4));
+    }
+
+    @Override
+    String prefix() {
+        return this.server + PREFIX;
+    }
+
+    /**
+     * Encode a query value as a path segment with a leading slash. CIDR prefixes for IP rdata lookups use a comma in
+     * place of the slash.
+     */
+    static String encodeValue(String endpoint, String value) {
+        if (endpoint.endsWith("/" + TYPE_IP)) {
+            value = value.replace('/', ',');
+        }
+        return URLEncodedUtils.formatSegments(value);
+    }
+
+    /**
+     * Send the request for a query.
+     *
+     * @param uri URI of the query.
+     * @param deadline Deadline and cancellation token of the query. The deadline also bounds the wait for the
+     * response headers, as the request timeout.
+     * @return The body of a successful (200) response.
+     * @throws HTTPStatusException If the server returns an invalid status code.
+     * @throws CircuitOpenException If the limiter's circuit breaker is open.
+     * @throws DNSDBException If the connection was unsuccessful.
+     */
+    @Override
+    InputStream open(URI uri, Deadline deadline) {
+        if (keepAlive == null) {
+            return limit(uri, deadline);
+        }
+
+        // Count the streams in use, so that keep-alive pings only go to the other connections.
+        streams.incrementAndGet();
+        try {
+            return new ReleasingInputStream(limit(uri, deadline), streams::decrementAndGet);
+        } catch (RuntimeException e) {
+            streams.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private InputStream limit(URI uri, Deadline deadline) {
+        ConcurrencyLimiter l = limiter;
+        if (l == null) {
+            return send(uri, deadline);
+        }
+
+        ConcurrencyLimiter.Permit permit = l.acquire(deadline);
+        InputStream body;
+        try {
+            body = send(uri, deadline);
+        } catch (DNSDBException e) {
+            permit.failed(e, deadline);
+            throw e;
+        }
+        permit.begun();
+        return permit.wrap(body);
+    }
+
+    @SuppressWarnings("try")
+    private InputStream send(URI uri, Deadline deadline) {
+        HttpRequest request = deadline.bounded() ? newRequest(uri).timeout(deadline.remaining()).build()
+                : buildRequest(uri);
+        HedgingPolicy policy = hedging;
+        if (policy != null) {
+            return new HedgedRequest(client, request, policy).send(deadline);
+        }
+
+        CompletableFuture<HttpResponse<InputStream>> exchange =
+                client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+        // Cancel a copy, so that a response arriving after the cancellation can still be closed.
+        CompletableFuture<HttpResponse<InputStream>> sent = exchange.copy();
+        try (CancellationToken.Registration r = deadline.onCancel(() -> {
+            if (sent.cancel(true)) {
+                discard(exchange);
+            }
+        })) {
+            return body(sent.get());
+        } catch (CancellationException e) {
+            throw new QueryCancelledException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof DNSDBException ? (DNSDBException) cause : new DNSDBException(cause);
+        } catch (InterruptedException e) {
+            if (sent.cancel(true)) {
+                discard(exchange);
+            }
+            Thread.currentThread().interrupt();
+            throw new DNSDBException(e);
+        }
+    }
+
+    /**
+     * Close the body of an abandoned exchange once its response arrives. Before Java 16, cancelling the future of
+     * sendAsync() does not abort the exchange, so its future itself must not be cancelled.
+     */
+    static void discard(CompletableFuture<HttpResponse<InputStream>> exchange) {
+        exchange.whenComplete((response, e) -> {
+            if (response != null) {
+                try {
+                    response.body().close();
+                } catch (IOException ignored) {
+                    // the exchange is being discarded
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The body of a successful (200) response.
+     * @throws HTTPStatusException If the status code is not 200, after closing the body.
+     */
+    static InputStream body(HttpResponse<InputStream> response) {
+        if (response.statusCode() != HTTP_OK) {
+            try {
+                response.body().close();
+            } catch (IOException ignored) {
+                // the exchange has failed already
+            }
+            throw HTTPStatusException.of(response.statusCode());
+        }
+        return response.body();
+    }
+
+    @Override
     HttpRequest buildRequest(URI uri) {
+        return newRequest(uri).build();
+    }
+
+    private HttpRequest.Builder newRequest(URI uri) {
         return HttpRequest.newBuilder(uri).GET()
-                .header(HTTPClient.X_API_KEY, this.apikey).header(ACCEPT, CONTENT_TYPE).build();
+                .header(HTTPClient.X_API_KEY, this.apikey).header(ACCEPT, CONTENT_TYPE);
     }
 }
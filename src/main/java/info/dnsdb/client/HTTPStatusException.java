@@ -0,0 +1,76 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import static java.net.HttpURLConnection.HTTP_FORBIDDEN;
+import static java.net.HttpURLConnection.HTTP_UNAUTHORIZED;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
+
+/**
+ * Exception raised when the DNSDB server answers a query with a status code other than 200. Codes that callers
+ * typically react to differently are raised as subclasses.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#http-status-codes">DNSDB HTTP status codes.</a>
+ */
+public class HTTPStatusException extends DNSDBException {
+    private final int statusCode;
+
+    /**
+     * Class constructor with the status code.
+     *
+     * @param statusCode HTTP status code of the response.
+     */
+    public HTTPStatusException(int statusCode) {
+        super("Received status code " + statusCode);
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * @return The HTTP status code of the response.
+     */
+    public int statusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return True if the server is shedding load and the query may succeed if retried later.
+     */
+    public boolean isOverload() {
+        return false;
+    }
+
+    /**
+     * Create the exception class matching a status code.
+     *
+     * @param statusCode HTTP status code of the response.
+     * @return The exception to raise.
+     */
+    static HTTPStatusException of(int statusCode) {
+        if (statusCode == RateLimitedException.TOO_MANY_REQUESTS) {
+            return new RateLimitedException();
+        }
+        if (statusCode == HTTP_UNAUTHORIZED || statusCode == HTTP_FORBIDDEN) {
+            return new AuthorizationException(statusCode);
+        }
+        if (statusCode == HTTP_UNAVAILABLE) {
+            return new ServiceUnavailableException();
+        }
+        if (statusCode >= 500) {
+            return new ServerErrorException(statusCode);
+        }
+        return new HTTPStatusException(statusCode);
+    }
+}
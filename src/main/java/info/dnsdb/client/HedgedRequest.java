@@ -0,0 +1,216 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends a request under a HedgingPolicy: if the begin line of the response has not arrived within the policy's delay,
+ * a duplicate is sent and the response that begins first is returned. The body of the other exchange is closed as
+ * soon as its headers arrive, whether before or after the winner was chosen.
+ *
+ * Both exchanges run under the single ConcurrencyLimiter permit of the query, so while a hedge is in flight the
+ * server sees one more request than the limiter counts. The HedgingPolicy budget bounds this excess.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see HedgingPolicy
+ */
+final class HedgedRequest {
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "dnsdb-hedge");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final HttpClient client;
+    private final HttpRequest request;
+    private final HedgingPolicy policy;
+
+    HedgedRequest(HttpClient client, HttpRequest request, HedgingPolicy policy) {
+        this.client = client;
+        this.request = request;
+        this.policy = policy;
+    }
+
+    /**
+     * A response whose first line has been read.
+     */
+    private static final class Begun {
+        final byte[] head;
+        final InputStream body;
+        final long nanos;
+        final boolean hedge;
+
+        Begun(byte[] head, InputStream body, long nanos, boolean hedge) {
+            this.head = head;
+            this.body = body;
+            this.nanos = nanos;
+            this.hedge = hedge;
+        }
+    }
+
+    private final class Attempt {
+        /**
+         * The exchange itself, which is never cancelled.
+         *
+         * @see HTTPClient#discard(CompletableFuture)
+         */
+        final CompletableFuture<HttpResponse<InputStream>> sent;
+        final CompletableFuture<HttpResponse<InputStream>> awaited;
+        final CompletableFuture<Begun> begun;
+
+        Attempt(boolean hedge) {
+            long start = System.nanoTime();
+            sent = client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+            awaited = sent.copy();
+            begun = awaited.thenApplyAsync(response -> {
+                InputStream body = HTTPClient.body(response);
+                return new Begun(readLine(body), body, System.nanoTime() - start, hedge);
+            }, READERS);
+        }
+
+        void cancel() {
+            awaited.cancel(true);
+            // Closing the body also fails a readLine() blocked on the begin line.
+            HTTPClient.discard(sent);
+        }
+    }
+
+    /**
+     * @param deadline Deadline and cancellation token of the query. Cancelling the token cancels both exchanges, and
+     * the wait for a response to begin ends at the deadline.
+     * @return The body of the response that began first, with its begin line restored.
+     * @throws DeadlineExceededException If neither response began before the deadline.
+     * @throws DNSDBException If both exchanges fail, with the primary's failure.
+     */
+    @SuppressWarnings("try")
+    InputStream send(Deadline deadline) {
+        policy.request();
+        Attempt primary = new Attempt(false);
+        AtomicReference<Attempt> hedged = new AtomicReference<>();
+        Runnable cancelAll = () -> {
+            primary.cancel();
+            Attempt h = hedged.get();
+            if (h != null) {
+                h.cancel();
+            }
+        };
+        try (CancellationToken.Registration r = deadline.onCancel(cancelAll)) {
+            Begun winner;
+            long delay = Math.min(policy.delayNanos(), deadline.remainingNanos());
+            try {
+                winner = primary.begun.get(delay, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if (deadline.expired() || !policy.tryHedge()) {
+                    winner = primary.begun.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+                } else {
+                    Attempt hedge = new Attempt(true);
+                    hedged.set(hedge);
+                    if (deadline.cancelled()) {
+                        hedge.cancel();
+                    }
+                    winner = first(primary, hedge).get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+                    (winner.hedge ? primary : hedge).cancel();
+                }
+            }
+            policy.record(winner.nanos, winner.hedge);
+            return new SequenceInputStream(new ByteArrayInputStream(winner.head), winner.body);
+        } catch (TimeoutException e) {
+            cancelAll.run();
+            throw new DeadlineExceededException(e);
+        } catch (InterruptedException e) {
+            cancelAll.run();
+            Thread.currentThread().interrupt();
+            throw new DNSDBException(e);
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    /**
+     * Complete with the first attempt to begin, or fail with the primary's failure if neither does.
+     */
+    private static CompletableFuture<Begun> first(Attempt primary, Attempt hedge) {
+        CompletableFuture<Begun> winner = new CompletableFuture<>();
+        AtomicInteger failed = new AtomicInteger();
+        for (Attempt a : new Attempt[]{primary, hedge}) {
+            a.begun.whenComplete((b, e) -> {
+                if (e == null) {
+                    if (!winner.complete(b)) {
+                        closeQuietly(b.body);
+                    }
+                } else if (failed.incrementAndGet() == 2) {
+                    primary.begun.whenComplete((x, primaryFailure) -> winner.completeExceptionally(primaryFailure));
+                }
+            });
+        }
+        return winner;
+    }
+
+    private static byte[] readLine(InputStream body) {
+        ByteArrayOutputStream head = new ByteArrayOutputStream(32);
+        try {
+            int b;
+            while ((b = body.read()) >= 0) {
+                head.write(b);
+                if (b == '\n') {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            closeQuietly(body);
+            throw new UncheckedIOException(e);
+        }
+        return head.toByteArray();
+    }
+
+    private static RuntimeException unwrap(Throwable cause) {
+        while (cause instanceof ExecutionException || cause instanceof CompletionException) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof DNSDBException) {
+            return (DNSDBException) cause;
+        }
+        if (cause instanceof UncheckedIOException) {
+            return new TruncatedResponseException(cause.getCause());
+        }
+        return new DNSDBException(cause);
+    }
+
+    private static void closeQuietly(InputStream body) {
+        try {
+            body.close();
+        } catch (IOException ignored) {
+            // the exchange is being discarded
+        }
+    }
+}
@@ -0,0 +1,168 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Policy for hedged requests. When the begin line of a response has not arrived within a delay derived from a
+ * percentile of recently observed times-to-begin, an HTTPClient using this policy sends a duplicate request, streams
+ * whichever response begins first and discards the other.
+ *
+ * Each hedge costs an extra query against the API key's quota, so hedges are capped at a fraction of all requests
+ * sent under the policy. One policy may be shared by several clients, and its methods may be called from any thread.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see HTTPClient#hedging(HedgingPolicy)
+ */
+public class HedgingPolicy {
+    private static final int WINDOW = 256;
+    private static final int MIN_SAMPLES = 16;
+
+    private double percentile = 0.95;
+    private long minDelay = Duration.ofMillis(50).toNanos();
+    private long maxDelay = Duration.ofSeconds(2).toNanos();
+    private double budget = 0.05;
+
+    private final long[] samples = new long[WINDOW];
+    private int sampleCount;
+    private long requests;
+    private long hedges;
+    private long hedgeWins;
+
+    /**
+     * Set the percentile of recent times-to-begin after which a hedge is sent. The default is 0.95.
+     *
+     * @param percentile Percentile between 0 and 1, exclusive.
+     * @return The HedgingPolicy object for further use in the fluent API pattern.
+     */
+    public HedgingPolicy percentile(double percentile) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1");
+        }
+        this.percentile = percentile;
+        return this;
+    }
+
+    /**
+     * Set the bounds of the hedging delay. Until enough times-to-begin have been observed the maximum is used. The
+     * defaults are 50 milliseconds and 2 seconds.
+     *
+     * @param min Shortest delay before a hedge.
+     * @param max Longest delay before a hedge.
+     * @return The HedgingPolicy object for further use in the fluent API pattern.
+     */
+    public HedgingPolicy delayBounds(Duration min, Duration max) {
+        if (min.isNegative() || min.compareTo(max) > 0) {
+            throw new IllegalArgumentException("invalid delay bounds");
+        }
+        this.minDelay = min.toNanos();
+        this.maxDelay = max.toNanos();
+        return this;
+    }
+
+    /**
+     * Set the maximum number of hedges as a fraction of the requests sent. The default is 0.05, ie. hedging adds at
+     * most 5% to quota use.
+     *
+     * @param budget Fraction between 0 and 1.
+     * @return The HedgingPolicy object for further use in the fluent API pattern.
+     */
+    public HedgingPolicy budget(double budget) {
+        if (budget < 0 || budget > 1) {
+            throw new IllegalArgumentException("budget must be between 0 and 1");
+        }
+        this.budget = budget;
+        return this;
+    }
+
+    /**
+     * @return The current delay before a hedge, in nanoseconds.
+     */
+    synchronized long delayNanos() {
+        if (sampleCount < MIN_SAMPLES) {
+            return maxDelay;
+        }
+        int n = Math.min(sampleCount, WINDOW);
+        long[] sorted = Arrays.copyOf(samples, n);
+        Arrays.sort(sorted);
+        long p = sorted[Math.min(n - 1, (int) (percentile * n))];
+        return Math.max(minDelay, Math.min(maxDelay, p));
+    }
+
+    /**
+     * Record a request sent under this policy.
+     */
+    synchronized void request() {
+        requests++;
+    }
+
+    /**
+     * Reserve a hedge if the budget allows it.
+     *
+     * @return True if a hedge may be sent.
+     */
+    synchronized boolean tryHedge() {
+        if (hedges + 1 > budget * requests) {
+            return false;
+        }
+        hedges++;
+        return true;
+    }
+
+    /**
+     * Record the time-to-begin of the response that was streamed.
+     *
+     * @param nanos Time from sending the request to receiving its begin line.
+     * @param hedge True if the hedge won.
+     */
+    synchronized void record(long nanos, boolean hedge) {
+        samples[sampleCount++ % WINDOW] = nanos;
+        if (sampleCount == 2 * WINDOW) {
+            sampleCount = WINDOW;
+        }
+        if (hedge) {
+            hedgeWins++;
+        }
+    }
+
+    /**
+     * @return The number of requests sent under this policy, excluding hedges.
+     */
+    public synchronized long requests() {
+        return requests;
+    }
+
+    /**
+     * @return The number of hedges sent.
+     */
+    public synchronized long hedges() {
+        return hedges;
+    }
+
+    /**
+     * @return The number of hedges whose response began first and was streamed.
+     */
+    public synchronized long hedgeWins() {
+        return hedgeWins;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("requests=%d hedges=%d hedge_wins=%d delay=%dms",
+                requests, hedges, hedgeWins, delayNanos() / 1000000);
+    }
+}
@@ -0,0 +1,204 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A fixed-size HyperLogLog sketch estimating the number of distinct values added to it. A sketch of precision p
+ * occupies 2^p bytes and has a standard error of about 1.04 / sqrt(2^p), eg. 0.8% for the default precision of 14.
+ *
+ * Sketches of equal precision built from disjoint or overlapping inputs, for instance the shards of a large query,
+ * can be merged to estimate the cardinality of the union.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ */
+public class HyperLogLog {
+    /**
+     * The default precision.
+     */
+    public static final int DEFAULT_PRECISION = 14;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * Class constructor for a sketch with the default precision.
+     */
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * Class constructor for a sketch with the given precision.
+     *
+     * @param precision Number of index bits, between 4 and 18.
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("precision must be between 4 and 18");
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * @return The precision of this sketch.
+     */
+    public int precision() {
+        return precision;
+    }
+
+    /**
+     * Add a string value.
+     *
+     * @param value Value to add.
+     */
+    public void add(String value) {
+        byte[] b = value.getBytes(StandardCharsets.UTF_8);
+        addHash(hash(b, 0, b.length));
+    }
+
+    /**
+     * Add the bytes buf[start:end] as a value.
+     */
+    void add(byte[] buf, int start, int end) {
+        addHash(hash(buf, start, end));
+    }
+
+    /**
+     * Add a value by its 64-bit hash. Hashes must be uniformly distributed.
+     *
+     * @param hash Hash of the value.
+     */
+    public void addHash(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        // Set a sentinel bit so that the rank is bounded for an all-zero remainder.
+        long w = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(w) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    /**
+     * @return The estimated number of distinct values added.
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += Double.longBitsToDouble((1023L - r) << 52);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Merge another sketch into this one, so that this sketch estimates the cardinality of the union of both inputs.
+     *
+     * @param other Sketch of the same precision.
+     * @return This sketch.
+     * @throws IllegalArgumentException If the precisions differ.
+     */
+    public HyperLogLog merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("cannot merge sketches of different precision");
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Serialize the sketch, eg. to merge it with sketches computed in another process.
+     *
+     * @return The precision followed by the registers.
+     */
+    public byte[] toBytes() {
+        byte[] b = new byte[registers.length + 1];
+        b[0] = (byte) precision;
+        System.arraycopy(registers, 0, b, 1, registers.length);
+        return b;
+    }
+
+    /**
+     * Deserialize a sketch produced by toBytes().
+     *
+     * @param bytes Serialized sketch.
+     * @return The sketch.
+     * @throws IllegalArgumentException If bytes is not a serialized sketch.
+     */
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        if (bytes.length == 0) {
+            throw new IllegalArgumentException("empty sketch");
+        }
+        HyperLogLog h = new HyperLogLog(bytes[0]);
+        if (bytes.length != h.registers.length + 1) {
+            throw new IllegalArgumentException("invalid sketch length");
+        }
+        System.arraycopy(bytes, 1, h.registers, 0, h.registers.length);
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof HyperLogLog)) {
+            return false;
+        }
+        HyperLogLog h = (HyperLogLog) o;
+        return precision == h.precision && Arrays.equals(registers, h.registers);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(registers);
+    }
+
+    /**
+     * 64-bit FNV-1a followed by the MurmurHash3 finalizer, which spreads FNV's weak high bits.
+     */
+    static long hash(byte[] buf, int start, int end) {
+        long h = FNV_OFFSET;
+        for (int i = start; i < end; i++) {
+            h ^= buf[i] & 0xff;
+            h *= FNV_PRIME;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
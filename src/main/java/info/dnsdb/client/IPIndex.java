@@ -0,0 +1,634 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A compact binary radix (Patricia) tree of IPv4 and IPv6 prefixes, each associated with a value. Individual
+ * addresses are stored as /32 or /128 prefixes. Chains of single-child nodes are collapsed, so the tree holds at most
+ * two nodes per distinct prefix regardless of address width.
+ *
+ * The index can be filled directly from the results of A and AAAA rrset lookups or IP rdata lookups, eg.
+ * index.addAll(client.lookupRData(Client.TYPE_IP, "104.244.13.0/24").stream(), obj -&gt; obj.getString("rrname"), (a, b) -&gt; a)
+ *
+ * This class is not thread-safe.
+ *
+ * @param <V> Type of the values associated with each prefix.
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ */
+public class IPIndex<V> {
+    private static final String RRTYPE_A = "A";
+    private static final String RRTYPE_AAAA = "AAAA";
+
+    private Node<V> root4;
+    private Node<V> root6;
+    private int size;
+
+    /**
+     * A prefix stored in an IPIndex and its associated value.
+     *
+     * @param <V> Type of the value.
+     */
+    public static final class Entry<V> {
+        private final byte[] address;
+        private final int prefixLength;
+        private final V value;
+
+        private Entry(byte[] address, int prefixLength, V value) {
+            this.address = address;
+            this.prefixLength = prefixLength;
+            this.value = value;
+        }
+
+        /**
+         * @return The network address of the prefix, with host bits cleared.
+         */
+        public InetAddress address() {
+            try {
+                return InetAddress.getByAddress(address.clone());
+            } catch (UnknownHostException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return The number of significant bits in the prefix.
+         */
+        public int prefixLength() {
+            return prefixLength;
+        }
+
+        /**
+         * @return The value associated with the prefix.
+         */
+        public V value() {
+            return value;
+        }
+
+        /**
+         * @return The prefix in CIDR notation, eg. 104.244.13.0/24.
+         */
+        @Override
+        public String toString() {
+            return address().getHostAddress() + "/" + prefixLength;
+        }
+    }
+
+    private static final class Node<V> {
+        final byte[] key;
+        final int bits;
+        V value;
+        boolean present;
+        Node<V> left;
+        Node<V> right;
+
+        Node(byte[] key, int bits) {
+            this.key = key;
+            this.bits = bits;
+        }
+    }
+
+    /**
+     * @return The number of prefixes stored in the index.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Associate a value with an address or CIDR prefix, replacing any previous value.
+     *
+     * @param cidr An IPv4 or IPv6 address, with or without a /length suffix.
+     * @param value Value to associate with the prefix.
+     * @return The previous value associated with the prefix, or null if there was none.
+     * @throws IllegalArgumentException If cidr is not an IP address or CIDR prefix.
+     */
+    public V put(String cidr, V value) {
+        return merge(cidr, value, (a, b) -> b);
+    }
+
+    /**
+     * Associate a value with an address or CIDR prefix, combining it with any previous value.
+     *
+     * @param cidr An IPv4 or IPv6 address, with or without a /length suffix.
+     * @param value Value to associate with the prefix.
+     * @param merge Function combining the existing value (first argument) with the new one (second argument).
+     * @return The previous value associated with the prefix, or null if there was none.
+     * @throws IllegalArgumentException If cidr is not an IP address or CIDR prefix.
+     */
+    public V merge(String cidr, V value, BiFunction<V, V, V> merge) {
+        byte[] key = parseAddress(prefixAddress(cidr));
+        return insert(key, prefixLength(cidr, key), value, merge);
+    }
+
+    /**
+     * Associate a value with an address prefix, replacing any previous value.
+     *
+     * @param address An IPv4 or IPv6 address.
+     * @param prefixLength Number of significant bits of address.
+     * @param value Value to associate with the prefix.
+     * @return The previous value associated with the prefix, or null if there was none.
+     */
+    public V put(InetAddress address, int prefixLength, V value) {
+        byte[] key = address.getAddress();
+        checkPrefixLength(prefixLength, key);
+        return insert(key, prefixLength, value, (a, b) -> b);
+    }
+
+    /**
+     * Add every A and AAAA address found in a stream of rrset or rdata lookup results. Results of other rrtypes are
+     * ignored.
+     *
+     * @param results Results as returned by Query.stream().
+     * @param value Function computing the value for each result.
+     * @param merge Function combining an existing value (first argument) with a new one (second argument) when an
+     *              address is seen more than once.
+     * @return The number of addresses added or merged.
+     */
+    public long addAll(Iterator<JSONObject> results, Function<JSONObject, V> value, BiFunction<V, V, V> merge) {
+        long n = 0;
+        while (results.hasNext()) {
+            JSONObject obj = results.next();
+            String rrtype = obj.optString("rrtype");
+            if (!rrtype.equals(RRTYPE_A) && !rrtype.equals(RRTYPE_AAAA)) {
+                continue;
+            }
+
+            Object rdata = obj.opt("rdata");
+            if (rdata instanceof JSONArray) {
+                JSONArray array = (JSONArray) rdata;
+                for (int i = 0; i < array.length(); i++) {
+                    byte[] key = parseAddress(array.getString(i));
+                    insert(key, key.length * 8, value.apply(obj), merge);
+                    n++;
+                }
+            } else if (rdata instanceof String) {
+                byte[] key = parseAddress((String) rdata);
+                insert(key, key.length * 8, value.apply(obj), merge);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Find the value stored for exactly the given address or prefix.
+     *
+     * @param cidr An IPv4 or IPv6 address, with or without a /length suffix.
+     * @return The value stored for the prefix, or null if there is none.
+     */
+    public V get(String cidr) {
+        byte[] key = parseAddress(prefixAddress(cidr));
+        int bits = prefixLength(cidr, key);
+        mask(key, bits);
+
+        Node<V> node = root(key);
+        while (node != null && node.bits <= bits) {
+            if (commonPrefix(node.key, key, node.bits) < node.bits) {
+                return null;
+            }
+            if (node.bits == bits) {
+                return node.present ? node.value : null;
+            }
+            node = bit(key, node.bits) ? node.right : node.left;
+        }
+        return null;
+    }
+
+    /**
+     * Find the most specific stored prefix containing an address.
+     *
+     * @param address An IPv4 or IPv6 address.
+     * @return The longest matching entry, or null if no stored prefix contains the address.
+     */
+    public Entry<V> longestPrefixMatch(String address) {
+        byte[] key = parseAddress(address);
+
+        Node<V> best = null;
+        Node<V> node = root(key);
+        while (node != null && commonPrefix(node.key, key, node.bits) >= node.bits) {
+            if (node.present) {
+                best = node;
+            }
+            if (node.bits == key.length * 8) {
+                break;
+            }
+            node = bit(key, node.bits) ? node.right : node.left;
+        }
+        return best == null ? null : new Entry<>(best.key, best.bits, best.value);
+    }
+
+    /**
+     * Test whether any stored prefix contains an address.
+     *
+     * @param address An IPv4 or IPv6 address.
+     * @return True if the address is covered by a stored prefix.
+     */
+    public boolean contains(String address) {
+        return longestPrefixMatch(address) != null;
+    }
+
+    /**
+     * Iterate over all stored prefixes that fall within a CIDR block, in address order. Less specific prefixes are
+     * returned before the more specific prefixes they contain.
+     *
+     * @param cidr An IPv4 or IPv6 CIDR block.
+     * @return An Iterator of matching entries.
+     */
+    public Iterator<Entry<V>> within(String cidr) {
+        byte[] key = parseAddress(prefixAddress(cidr));
+        int bits = prefixLength(cidr, key);
+        mask(key, bits);
+
+        byte[] last = key.clone();
+        for (int i = bits; i < key.length * 8; i++) {
+            last[i / 8] |= (byte) (0x80 >>> (i % 8));
+        }
+        return new RangeIterator<>(root(key), key, last, bits);
+    }
+
+    /**
+     * Iterate over all stored prefixes whose network address lies between two addresses of the same family, in
+     * address order.
+     *
+     * @param first Lowest address, inclusive.
+     * @param last Highest address, inclusive.
+     * @return An Iterator of matching entries.
+     * @throws IllegalArgumentException If the addresses are of different families.
+     */
+    public Iterator<Entry<V>> range(String first, String last) {
+        byte[] lo = parseAddress(first);
+        byte[] hi = parseAddress(last);
+        if (lo.length != hi.length) {
+            throw new IllegalArgumentException("range addresses must be of the same family");
+        }
+        return new RangeIterator<>(root(lo), lo, hi, 0);
+    }
+
+    /**
+     * Iterate over all stored prefixes, IPv4 before IPv6, each in address order.
+     *
+     * @return An Iterator of all entries.
+     */
+    public Iterator<Entry<V>> iterator() {
+        Iterator<Entry<V>> v4 = within("0.0.0.0/0");
+        Iterator<Entry<V>> v6 = within("::/0");
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return v4.hasNext() || v6.hasNext();
+            }
+
+            @Override
+            public Entry<V> next() {
+                return v4.hasNext() ? v4.next() : v6.next();
+            }
+        };
+    }
+
+    private V insert(byte[] key, int bits, V value, BiFunction<V, V, V> merge) {
+        mask(key, bits);
+        Node<V> root = root(key);
+        Node<V> parent = null;
+        Node<V> node = root;
+
+        while (node != null) {
+            int common = commonPrefix(node.key, key, Math.min(node.bits, bits));
+
+            if (common == node.bits && node.bits == bits) {
+                V old = node.present ? node.value : null;
+                node.value = node.present ? merge.apply(node.value, value) : value;
+                if (!node.present) {
+                    node.present = true;
+                    size++;
+                }
+                return old;
+            }
+
+            if (common == node.bits) {
+                // node is a strict prefix of key, descend.
+                parent = node;
+                node = bit(key, node.bits) ? node.right : node.left;
+                continue;
+            }
+
+            Node<V> leaf = new Node<>(key, bits);
+            leaf.value = value;
+            leaf.present = true;
+            size++;
+
+            Node<V> replacement;
+            if (common == bits) {
+                // key is a strict prefix of node, insert it above.
+                if (bit(node.key, bits)) {
+                    leaf.right = node;
+                } else {
+                    leaf.left = node;
+                }
+                replacement = leaf;
+            } else {
+                // key and node diverge, join them under a glue node.
+                byte[] glueKey = key.clone();
+                mask(glueKey, common);
+                Node<V> glue = new Node<>(glueKey, common);
+                if (bit(key, common)) {
+                    glue.right = leaf;
+                    glue.left = node;
+                } else {
+                    glue.left = leaf;
+                    glue.right = node;
+                }
+                replacement = glue;
+            }
+            link(parent, key, replacement);
+            return null;
+        }
+
+        Node<V> leaf = new Node<>(key, bits);
+        leaf.value = value;
+        leaf.present = true;
+        size++;
+        link(parent, key, leaf);
+        return null;
+    }
+
+    private void link(Node<V> parent, byte[] key, Node<V> child) {
+        if (parent == null) {
+            if (key.length == 4) {
+                root4 = child;
+            } else {
+                root6 = child;
+            }
+        } else if (bit(key, parent.bits)) {
+            parent.right = child;
+        } else {
+            parent.left = child;
+        }
+    }
+
+    private Node<V> root(byte[] key) {
+        return key.length == 4 ? root4 : root6;
+    }
+
+    private static final class RangeIterator<V> implements Iterator<Entry<V>> {
+        private final byte[] lo;
+        private final byte[] hi;
+        private final int minBits;
+        private final Deque<Node<V>> stack = new ArrayDeque<>();
+        private Node<V> next;
+
+        RangeIterator(Node<V> root, byte[] lo, byte[] hi, int minBits) {
+            this.lo = lo;
+            this.hi = hi;
+            this.minBits = minBits;
+            if (root != null) {
+                stack.push(root);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !stack.isEmpty()) {
+                Node<V> node = stack.pop();
+                if (!overlaps(node)) {
+                    continue;
+                }
+                if (node.right != null) {
+                    stack.push(node.right);
+                }
+                if (node.left != null) {
+                    stack.push(node.left);
+                }
+                if (node.present && node.bits >= minBits && compare(node.key, lo) >= 0 && compare(node.key, hi) <= 0) {
+                    next = node;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Entry<V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<V> entry = new Entry<>(next.key, next.bits, next.value);
+            next = null;
+            return entry;
+        }
+
+        // The subtree under node spans [node.key, node.key with host bits set]; skip it if that misses [lo, hi].
+        private boolean overlaps(Node<V> node) {
+            if (compare(node.key, hi) > 0) {
+                return false;
+            }
+            byte[] top = node.key.clone();
+            for (int i = node.bits; i < top.length * 8; i++) {
+                top[i / 8] |= (byte) (0x80 >>> (i % 8));
+            }
+            return compare(top, lo) >= 0;
+        }
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        return Arrays.compareUnsigned(a, b);
+    }
+
+    private static boolean bit(byte[] key, int i) {
+        return (key[i / 8] & (0x80 >>> (i % 8))) != 0;
+    }
+
+    private static int commonPrefix(byte[] a, byte[] b, int max) {
+        int i = 0;
+        while (i < max) {
+            int x = (a[i / 8] ^ b[i / 8]) & 0xff;
+            if (x == 0) {
+                i += 8;
+                continue;
+            }
+            return Math.min(max, i + Integer.numberOfLeadingZeros(x) - 24);
+        }
+        return max;
+    }
+
+    private static void mask(byte[] key, int bits) {
+        for (int i = bits; i < key.length * 8; i++) {
+            key[i / 8] &= (byte) ~(0x80 >>> (i % 8));
+        }
+    }
+
+    private static String prefixAddress(String cidr) {
+        int slash = cidr.indexOf('/');
+        return slash < 0 ? cidr : cidr.substring(0, slash);
+    }
+
+    private static int prefixLength(String cidr, byte[] key) {
+        int slash = cidr.indexOf('/');
+        if (slash < 0) {
+            return key.length * 8;
+        }
+        int bits;
+        try {
+            bits = Integer.parseInt(cidr.substring(slash + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid prefix length: " + cidr, e);
+        }
+        checkPrefixLength(bits, key);
+        return bits;
+    }
+
+    private static void checkPrefixLength(int bits, byte[] key) {
+        if (bits < 0 || bits > key.length * 8) {
+            throw new IllegalArgumentException("invalid prefix length: " + bits);
+        }
+    }
+
+    /**
+     * Parse an IPv4 or IPv6 address literal without ever falling back to a DNS lookup. IPv4 addresses must be dotted
+     * quads of decimal numbers without leading zeros; the legacy short and octal forms accepted by InetAddress, eg.
+     * 10.1 for 10.0.0.1, are rejected. IPv6 addresses may compress zeros with :: and end in a dotted quad, but may
+     * not carry a zone index. IPv4-mapped IPv6 literals stay 16 bytes long, in the IPv6 tree.
+     *
+     * @param address Address literal.
+     * @return The address in network byte order, 4 or 16 bytes long.
+     * @throws IllegalArgumentException If address is not an IP address literal.
+     */
+    static byte[] parseAddress(String address) {
+        byte[] key;
+        if (address.indexOf(':') >= 0) {
+            key = parseIPv6(address);
+        } else {
+            key = new byte[4];
+            if (!parseIPv4(address, 0, key, 0)) {
+                key = null;
+            }
+        }
+        if (key == null) {
+            throw new IllegalArgumentException("invalid IP address: " + address);
+        }
+        return key;
+    }
+
+    /**
+     * Parse a dotted quad from position from to the end of s into out at offset off.
+     *
+     * @return False if it is not a dotted quad.
+     */
+    private static boolean parseIPv4(String s, int from, byte[] out, int off) {
+        int parts = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = from; i <= s.length(); i++) {
+            char c = i == s.length() ? '.' : s.charAt(i);
+            if (c == '.') {
+                if (digits == 0 || parts == 4) {
+                    return false;
+                }
+                out[off + parts++] = (byte) value;
+                value = 0;
+                digits = 0;
+            } else if (c >= '0' && c <= '9') {
+                if (digits > 0 && value == 0) {
+                    // leading zero, read as octal by some parsers
+                    return false;
+                }
+                value = value * 10 + (c - '0');
+                if (++digits > 3 || value > 255) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        return parts == 4;
+    }
+
+    /**
+     * @return The 16 bytes of an IPv6 literal, or null if s is not one.
+     */
+    private static byte[] parseIPv6(String s) {
+        byte[] out = new byte[16];
+        int n = s.length();
+        int pos = 0;
+        int gap = -1;
+        int i = 0;
+        if (s.startsWith("::")) {
+            gap = 0;
+            i = 2;
+        } else if (s.startsWith(":")) {
+            return null;
+        }
+        while (i < n) {
+            if (pos == 16) {
+                return null;
+            }
+            int end = i;
+            int value = 0;
+            while (end < n && end - i < 4 && Character.digit(s.charAt(end), 16) >= 0) {
+                value = value << 4 | Character.digit(s.charAt(end), 16);
+                end++;
+            }
+            if (end < n && s.charAt(end) == '.') {
+                // a trailing dotted quad fills the last 32 bits
+                if (pos > 12 || !parseIPv4(s, i, out, pos)) {
+                    return null;
+                }
+                pos += 4;
+                break;
+            }
+            if (end == i) {
+                return null;
+            }
+            out[pos++] = (byte) (value >> 8);
+            out[pos++] = (byte) value;
+            if (end == n) {
+                break;
+            }
+            if (s.charAt(end) != ':' || end + 1 == n) {
+                return null;
+            }
+            i = end + 1;
+            if (s.charAt(i) == ':') {
+                if (gap >= 0) {
+                    return null;
+                }
+                gap = pos;
+                i++;
+            }
+        }
+        if (gap < 0) {
+            return pos == 16 ? out : null;
+        }
+        if (pos == 16) {
+            // :: stands for at least one group of zeros
+            return null;
+        }
+        int tail = pos - gap;
+        System.arraycopy(out, gap, out, 16 - tail, tail);
+        Arrays.fill(out, gap, 16 - tail, (byte) 0);
+        return out;
+    }
+}
@@ -0,0 +1,135 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits a response body into newline-delimited lines without copying them. The current line is a slice of an
+ * internal buffer that is reused, and is only valid until the next call to next().
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ */
+final class LineReader implements AutoCloseable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final QueryStats stats;
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private int start;
+    private int end;
+    private boolean eof;
+
+    LineReader(InputStream in, QueryStats stats) {
+        this.in = in;
+        this.stats = stats;
+    }
+
+    /**
+     * Advance to the next line.
+     *
+     * @return False if the body has ended.
+     * @throws IOException If reading the body fails.
+     */
+    boolean next() throws IOException {
+        int scan = pos;
+        while (true) {
+            for (int i = scan; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    start = pos;
+                    end = i > pos && buf[i - 1] == '\r' ? i - 1 : i;
+                    pos = i + 1;
+                    return true;
+                }
+            }
+
+            if (eof) {
+                if (pos < limit) {
+                    start = pos;
+                    end = limit;
+                    pos = limit;
+                    return true;
+                }
+                return false;
+            }
+
+            scan = fill();
+        }
+    }
+
+    // Compact or grow the buffer, read more data, and return where scanning for a newline should resume.
+    private int fill() throws IOException {
+        int remaining = limit - pos;
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, remaining);
+        } else if (remaining == buf.length) {
+            byte[] grown = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, grown, 0, remaining);
+            buf = grown;
+        }
+        pos = 0;
+        limit = remaining;
+
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+            stats.bytes.addAndGet(n);
+        }
+        return remaining;
+    }
+
+    /**
+     * @return The buffer holding the current line.
+     */
+    byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     * @return Offset of the first byte of the current line.
+     */
+    int start() {
+        return start;
+    }
+
+    /**
+     * @return Offset just past the last byte of the current line, excluding the line terminator.
+     */
+    int end() {
+        return end;
+    }
+
+    /**
+     * @return A copy of the current line.
+     */
+    String line() {
+        return new String(buf, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        try {
+            in.close();
+        } catch (IOException ignored) {
+            // nothing left to release
+        }
+    }
+}
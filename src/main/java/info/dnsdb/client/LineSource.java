@@ -0,0 +1,41 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+
+/**
+ * A source of decoded SAF messages from a DNSDB response body. Implementations differ in where reading and decoding
+ * happen: on the consumer thread, or ahead of it on background threads.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see <a href="https://docs.dnsdb.info/dnsdb-saf-protocol/">Farsight Streaming API Framing Protocol.</a>
+ */
+interface LineSource extends AutoCloseable {
+    /**
+     * Read and decode the next message.
+     *
+     * @return The next SAF message, or null if the response body has ended.
+     * @throws TruncatedResponseException If reading the response fails.
+     * @throws InvalidJSONException If the message is not valid JSON.
+     */
+    JSONObject next();
+
+    /**
+     * Release the response body and any threads reading it. Pending and subsequent calls to next() may fail.
+     */
+    @Override
+    void close();
+}
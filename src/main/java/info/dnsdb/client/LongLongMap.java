@@ -0,0 +1,194 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+/**
+ * Open-addressing hash map from long to long with linear probing, using 16 bytes per slot and no per-entry objects.
+ * Keys are expected to be well-distributed hashes. Key 0 is stored as 1, so the two collide.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ */
+final class LongLongMap {
+    /**
+     * Returned by put() and get() for absent keys.
+     */
+    static final long ABSENT = Long.MIN_VALUE;
+
+    /**
+     * Receives the entries of a map.
+     */
+    interface EntryConsumer {
+        void accept(long key, long value);
+    }
+
+    /**
+     * Selects entries of a map.
+     */
+    interface EntryPredicate {
+        boolean test(long key, long value);
+    }
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+
+    LongLongMap() {
+        this(16);
+    }
+
+    private LongLongMap(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+    }
+
+    /**
+     * @return The previous value of key, or ABSENT.
+     */
+    long put(long key, long value) {
+        if (key == 0) {
+            key = 1;
+        }
+        if (2 * (size + 1) > keys.length) {
+            grow();
+        }
+        int mask = keys.length - 1;
+        for (int i = (int) key & mask; ; i = (i + 1) & mask) {
+            if (keys[i] == 0) {
+                keys[i] = key;
+                values[i] = value;
+                size++;
+                return ABSENT;
+            }
+            if (keys[i] == key) {
+                long previous = values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+    }
+
+    /**
+     * @return The value of key, or ABSENT.
+     */
+    long get(long key) {
+        if (key == 0) {
+            key = 1;
+        }
+        int mask = keys.length - 1;
+        for (int i = (int) key & mask; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return ABSENT;
+    }
+
+    boolean containsKey(long key) {
+        if (key == 0) {
+            key = 1;
+        }
+        int mask = keys.length - 1;
+        for (int i = (int) key & mask; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The previous value of key, or ABSENT.
+     */
+    long remove(long key) {
+        if (key == 0) {
+            key = 1;
+        }
+        int mask = keys.length - 1;
+        int i = (int) key & mask;
+        while (keys[i] != key) {
+            if (keys[i] == 0) {
+                return ABSENT;
+            }
+            i = (i + 1) & mask;
+        }
+        long previous = values[i];
+        // Shift later entries of the probe sequence back into the hole, unless their home slot is after it.
+        for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            int home = (int) keys[j] & mask;
+            if (i <= j ? i < home && home <= j : i < home || home <= j) {
+                continue;
+            }
+            keys[i] = keys[j];
+            values[i] = values[j];
+            i = j;
+        }
+        keys[i] = 0;
+        size--;
+        return previous;
+    }
+
+    /**
+     * Remove the entries accepted by a predicate.
+     *
+     * @return The number of entries removed.
+     */
+    int removeIf(EntryPredicate predicate) {
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0 && predicate.test(keys[i], values[i])) {
+                n++;
+            }
+        }
+        if (n > 0) {
+            long[] removed = new long[n];
+            for (int i = 0, k = 0; k < n; i++) {
+                if (keys[i] != 0 && predicate.test(keys[i], values[i])) {
+                    removed[k++] = keys[i];
+                }
+            }
+            for (long key : removed) {
+                remove(key);
+            }
+        }
+        return n;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void forEach(EntryConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,462 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command-line bulk lookup tool. Reads one indicator per line from standard input or a file, looks each one up with a
+ * pool of worker threads, and writes the results as NDJSON or CSV. Input is read as workers become free and results
+ * are written as they stream, so memory use does not depend on the number of indicators or results. Progress and
+ * throughput are reported on standard error.
+ *
+ * Run without arguments for usage.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ */
+public final class Main {
+    private static final String USAGE = String.join("\n",
+            "usage: java -cp 'dnsdb2-client.jar:lib/*' info.dnsdb.client.Main [options] [-i file]",
+            "",
+            "Looks up one indicator per input line. Blank lines and lines starting with # are skipped.",
+            "",
+            "  -k key        API key; repeat to spread queries over several keys (default: $DNSDB_API_KEY)",
+            "  -s server     server URI (default: " + HTTPClient.DEFAULT_SERVER + ")",
+            "  -q lookup     rrset/name, rrset/raw, rdata/name, rdata/ip, rdata/raw, or a flex search",
+            "                such as regex/rrnames or glob/rdata (default: rrset/name)",
+            "  -t rrtype     rrtype filter",
+            "  -b bailiwick  bailiwick filter (rrset lookups only)",
+            "  -l limit      maximum results per indicator",
+            "  -p size       page through results with limit and offset, size rows per request",
+            "  -P pages      maximum pages per indicator (default: 10)",
+            "  -c threads    concurrent lookups (default: 4)",
+            "  -r retries    retries after 429, 5xx and connection failures (default: 3)",
+            "  -T seconds    time limit per indicator, covering all of its pages and retries (default: none)",
+            "  -f format     ndjson or csv (default: ndjson)",
+            "  -i file       input file (default: standard input)",
+            "  -o file       output file (default: standard output)",
+            "  -S seconds    progress interval on standard error, 0 to disable (default: 5)",
+            "");
+
+    private static final String CSV_HEADER = "indicator,rrname,rrtype,bailiwick,time_first,time_last,count,rdata";
+    // Compared by identity, so that no input line can be mistaken for it.
+    private static final String END = new String("end of input");
+
+    private final List<String> keys = new ArrayList<>();
+    private String server = HTTPClient.DEFAULT_SERVER;
+    private String lookup = "rrset/name";
+    private String rrtype;
+    private String bailiwick;
+    private int limit;
+    private int pageSize;
+    private int maxPages = 10;
+    private int threads = 4;
+    private int retries = 3;
+    private int timeLimit;
+    private boolean csv;
+    private String input;
+    private String output;
+    private int statsInterval = 5;
+
+    private Client client;
+    private Writer out;
+    private PrintStream err;
+    private final AtomicLong indicators = new AtomicLong();
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong limited = new AtomicLong();
+    private final CancellationToken cancellation = new CancellationToken();
+    private volatile IOException writeError;
+
+    private Main() {}
+
+    /**
+     * Entry point of the command-line tool.
+     *
+     * @param args Command-line arguments.
+     */
+    public static void main(String[] args) {
+        System.exit(run(args, System.in, System.out, System.err));
+    }
+
+    /**
+     * Run the tool.
+     *
+     * @return The exit status: 0 on success, 1 if any lookup failed, 2 for usage errors.
+     */
+    static int run(String[] args, InputStream stdin, OutputStream stdout, PrintStream stderr) {
+        Main m = new Main();
+        m.err = stderr;
+        try {
+            m.parse(args);
+        } catch (IllegalArgumentException e) {
+            if (e.getMessage() != null) {
+                stderr.println("error: " + e.getMessage());
+            }
+            stderr.print(USAGE);
+            return 2;
+        }
+
+        try (InputStream in = m.input == null ? stdin : Files.newInputStream(Paths.get(m.input));
+             OutputStream os = m.output == null ? stdout : Files.newOutputStream(Paths.get(m.output))) {
+            m.client = m.client();
+            return m.run(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16),
+                    new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 1 << 16));
+        } catch (IOException e) {
+            stderr.println("error: " + e);
+            return 1;
+        }
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String opt = args[i];
+            if (opt.equals("-h") || opt.equals("--help")) {
+                throw new IllegalArgumentException();
+            }
+            if (!opt.startsWith("-") || opt.length() != 2 || i + 1 == args.length) {
+                throw new IllegalArgumentException("invalid argument " + opt);
+            }
+            String arg = args[++i];
+            switch (opt.charAt(1)) {
+                case 'k': keys.add(arg); break;
+                case 's': server = arg; break;
+                case 'q': lookup = arg; break;
+                case 't': rrtype = arg; break;
+                case 'b': bailiwick = arg; break;
+                case 'l': limit = positive(opt, arg); break;
+                case 'p': pageSize = positive(opt, arg); break;
+                case 'P': maxPages = positive(opt, arg); break;
+                case 'c': threads = positive(opt, arg); break;
+                case 'r': retries = nonNegative(opt, arg); break;
+                case 'T': timeLimit = positive(opt, arg); break;
+                case 'f':
+                    if (!arg.equals("ndjson") && !arg.equals("csv")) {
+                        throw new IllegalArgumentException("unknown format " + arg);
+                    }
+                    csv = arg.equals("csv");
+                    break;
+                case 'i': input = arg; break;
+                case 'o': output = arg; break;
+                case 'S': statsInterval = nonNegative(opt, arg); break;
+                default: throw new IllegalArgumentException("unknown option " + opt);
+            }
+        }
+
+        if (keys.isEmpty() && System.getenv("DNSDB_API_KEY") != null) {
+            keys.add(System.getenv("DNSDB_API_KEY"));
+        }
+        if (keys.isEmpty()) {
+            throw new IllegalArgumentException("no API key");
+        }
+        if (lookup.split("/").length != 2) {
+            throw new IllegalArgumentException("invalid lookup " + lookup);
+        }
+        if (limit > 0 && pageSize > 0) {
+            throw new IllegalArgumentException("-l and -p are exclusive");
+        }
+    }
+
+    private static int positive(String opt, String arg) {
+        int n = nonNegative(opt, arg);
+        if (n == 0) {
+            throw new IllegalArgumentException(opt + " requires a positive number");
+        }
+        return n;
+    }
+
+    private static int nonNegative(String opt, String arg) {
+        try {
+            int n = Integer.parseInt(arg);
+            if (n >= 0) {
+                return n;
+            }
+        } catch (NumberFormatException ignored) {
+            // reported below
+        }
+        throw new IllegalArgumentException(opt + " requires a number");
+    }
+
+    private Client client() {
+        if (keys.size() == 1) {
+            return new HTTPClient(keys.get(0), server);
+        }
+        return new PooledClient(server, keys.toArray(new String[0]));
+    }
+
+    private int run(BufferedReader in, Writer out) throws IOException {
+        this.out = out;
+        if (csv) {
+            out.write(CSV_HEADER);
+            out.write('\n');
+        }
+
+        BlockingQueue<String> queue = new ArrayBlockingQueue<>(threads * 4);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> work(queue), "dnsdb-cli-" + i);
+            t.start();
+            workers.add(t);
+        }
+
+        ScheduledExecutorService progress = null;
+        long start = System.nanoTime();
+        if (statsInterval > 0) {
+            progress = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "dnsdb-cli-progress");
+                t.setDaemon(true);
+                return t;
+            });
+            progress.scheduleAtFixedRate(() -> err.println(progress(start)),
+                    statsInterval, statsInterval, TimeUnit.SECONDS);
+        }
+
+        try {
+            String line;
+            while ((line = in.readLine()) != null && writeError == null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                indicators.incrementAndGet();
+                queue.put(line);
+            }
+            for (int i = 0; i < threads; i++) {
+                queue.put(END);
+            }
+            for (Thread t : workers) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancellation.cancel();
+            workers.forEach(Thread::interrupt);
+        } finally {
+            if (progress != null) {
+                progress.shutdownNow();
+            }
+        }
+
+        synchronized (out) {
+            out.flush();
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+        if (statsInterval > 0) {
+            err.println(progress(start));
+        }
+        return failures.get() > 0 ? 1 : 0;
+    }
+
+    private String progress(long start) {
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        return String.format("indicators=%d done=%d requests=%d rows=%d limited=%d failed=%d "
+                        + "elapsed=%.1fs lookups/s=%.1f rows/s=%.0f",
+                indicators.get(), done.get(), requests.get(), rows.get(), limited.get(), failures.get(),
+                seconds, done.get() / seconds, rows.get() / seconds);
+    }
+
+    private void work(BlockingQueue<String> queue) {
+        try {
+            String indicator;
+            while ((indicator = queue.take()) != END) {
+                try {
+                    lookup(indicator);
+                } catch (DNSDBException e) {
+                    failures.incrementAndGet();
+                    err.println(indicator + ": " + e.getMessage());
+                } catch (UncheckedIOException e) {
+                    writeError = e.getCause();
+                } finally {
+                    done.incrementAndGet();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void lookup(String indicator) {
+        Instant deadline = timeLimit > 0 ? Instant.now().plusSeconds(timeLimit) : null;
+        if (pageSize == 0) {
+            fetch(indicator, 0, deadline);
+            return;
+        }
+        for (int page = 0; page < maxPages; page++) {
+            if (fetch(indicator, page * pageSize, deadline) < pageSize) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Run one request, retrying failures that happen before any row was written.
+     *
+     * @return The number of rows written.
+     */
+    private long fetch(String indicator, int offset, Instant deadline) {
+        for (int attempt = 0; ; attempt++) {
+            long written = 0;
+            requests.incrementAndGet();
+            try (Query q = query(indicator, offset).deadline(deadline).cancellation(cancellation)) {
+                Iterator<JSONObject> it = q.stream();
+                StringBuilder sb = new StringBuilder();
+                while (it.hasNext()) {
+                    format(indicator, it.next(), sb);
+                    written++;
+                    if (sb.length() >= 1 << 14) {
+                        write(sb);
+                    }
+                }
+                write(sb);
+                // Pages are expected to end limited; only a limited single request means rows were cut off.
+                if (pageSize == 0 && q.result().status() == QueryResult.Status.LIMITED) {
+                    limited.incrementAndGet();
+                }
+                return written;
+            } catch (DNSDBException e) {
+                if (written > 0 || attempt >= retries || !retryable(e)) {
+                    throw e;
+                }
+                backoff(attempt);
+            } finally {
+                rows.addAndGet(written);
+            }
+        }
+    }
+
+    private Query query(String indicator, int offset) {
+        String[] spec = lookup.split("/");
+        Query q;
+        if (spec[0].equals("rrset")) {
+            q = client.lookupRRSet(spec[1], indicator);
+        } else if (spec[0].equals("rdata")) {
+            q = client.lookupRData(spec[1], indicator);
+        } else {
+            q = client.flex(spec[0], spec[1], indicator);
+        }
+        if (rrtype != null) {
+            q.rrtype(rrtype);
+        }
+        if (bailiwick != null) {
+            q.bailiwick(bailiwick);
+        }
+        q.disableLimitedException(true);
+        if (pageSize > 0) {
+            q.limit(pageSize);
+            if (offset > 0) {
+                q.offset(offset);
+            }
+        } else if (limit > 0) {
+            q.limit(limit);
+        }
+        return q;
+    }
+
+    private static boolean retryable(DNSDBException e) {
+        if (e instanceof HTTPStatusException) {
+            return ((HTTPStatusException) e).isOverload() || e instanceof ServerErrorException;
+        }
+        return !(e instanceof SAFException) && !(e instanceof CircuitOpenException)
+                && !(e instanceof DeadlineExceededException) && !(e instanceof QueryCancelledException);
+    }
+
+    private static void backoff(int attempt) {
+        long millis = (250L << Math.min(attempt, 6)) + ThreadLocalRandom.current().nextLong(250);
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DNSDBException(e);
+        }
+    }
+
+    private void format(String indicator, JSONObject row, StringBuilder sb) {
+        if (!csv) {
+            sb.append(row).append('\n');
+            return;
+        }
+
+        Object rdata = row.opt("rdata");
+        List<Object> values = new ArrayList<>();
+        if (rdata instanceof JSONArray) {
+            ((JSONArray) rdata).forEach(values::add);
+        } else {
+            values.add(rdata == null ? "" : rdata);
+        }
+        for (Object value : values) {
+            csvField(sb, indicator).append(',');
+            csvField(sb, row.optString("rrname")).append(',');
+            csvField(sb, row.optString("rrtype")).append(',');
+            csvField(sb, row.optString("bailiwick")).append(',');
+            sb.append(row.opt("time_first") != null ? row.opt("time_first") : row.optString("zone_time_first"));
+            sb.append(',');
+            sb.append(row.opt("time_last") != null ? row.opt("time_last") : row.optString("zone_time_last"));
+            sb.append(',');
+            sb.append(row.optString("count")).append(',');
+            csvField(sb, value.toString()).append('\n');
+        }
+    }
+
+    private static StringBuilder csvField(StringBuilder sb, String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return sb.append(value);
+        }
+        return sb.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+
+    private void write(StringBuilder sb) {
+        if (sb.length() == 0) {
+            return;
+        }
+        try {
+            synchronized (out) {
+                out.append(sb);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        sb.setLength(0);
+    }
+}
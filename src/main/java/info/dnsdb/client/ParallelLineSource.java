@@ -0,0 +1,232 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LineSource that splits a response body into batches of lines on a background thread and decodes the batches in
+ * parallel on a ForkJoinPool. Batches are numbered as they are split; in ordered mode they are reassembled in that
+ * order, otherwise each is delivered as soon as it is decoded. In either mode the final message of the response,
+ * which carries the terminal SAF condition, is delivered last.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ */
+class ParallelLineSource implements LineSource {
+    static final int BATCH_SIZE = 256;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final StreamLineSource source;
+    private final boolean ordered;
+    private final ForkJoinPool pool;
+    private final QueryStats stats;
+    private final Semaphore inFlight;
+    private final Map<Long, Batch> completed = new ConcurrentHashMap<>();
+    private final Queue<Batch> completedQueue = new ConcurrentLinkedQueue<>();
+    private final Thread splitter;
+    private volatile Thread consumer;
+    private volatile long lastSeq = -1;
+    private volatile boolean closed;
+
+    private long fetched;
+    private Batch current;
+    private int position;
+    private JSONObject held;
+    private boolean done;
+
+    private static final class Batch {
+        final long seq;
+        final String[] lines;
+        final int size;
+        final boolean last;
+        final JSONObject[] decoded;
+        // Index of the line at which error occurs; lines before it are valid.
+        int errorAt;
+        RuntimeException error;
+
+        Batch(long seq, String[] lines, int size, boolean last, RuntimeException error) {
+            this.seq = seq;
+            this.lines = lines;
+            this.size = size;
+            this.last = last;
+            this.decoded = new JSONObject[size];
+            this.errorAt = size;
+            this.error = error;
+        }
+
+        void decode() {
+            for (int i = 0; i < errorAt; i++) {
+                try {
+                    decoded[i] = StreamLineSource.decode(lines[i]);
+                } catch (RuntimeException e) {
+                    errorAt = i;
+                    error = e;
+                    break;
+                }
+                lines[i] = null;
+            }
+        }
+    }
+
+    /**
+     * @param source Source whose remaining lines are read on the splitter thread.
+     * @param ordered True to deliver messages in server order.
+     * @param pool Pool on which batches are decoded.
+     * @param stats Counters updated with pipeline activity.
+     */
+    ParallelLineSource(StreamLineSource source, boolean ordered, ForkJoinPool pool, QueryStats stats) {
+        this.source = source;
+        this.ordered = ordered;
+        this.pool = pool;
+        this.stats = stats;
+        this.inFlight = new Semaphore(2 * pool.getParallelism() + 1);
+
+        this.splitter = new Thread(this::split, "dnsdb-split");
+        this.splitter.setDaemon(true);
+        this.splitter.start();
+    }
+
+    private void split() {
+        // One line of lookahead ensures the final message is always in the batch flagged last.
+        String next;
+        try {
+            next = source.readLine();
+        } catch (RuntimeException e) {
+            submit(new Batch(0, new String[0], 0, true, e));
+            return;
+        }
+
+        long seq = 0;
+        while (!closed) {
+            String[] lines = new String[BATCH_SIZE];
+            int n = 0;
+            RuntimeException error = null;
+            try {
+                while (n < BATCH_SIZE && next != null) {
+                    lines[n++] = next;
+                    next = source.readLine();
+                }
+            } catch (RuntimeException e) {
+                next = null;
+                error = e;
+            }
+
+            boolean last = next == null;
+            if (!submit(new Batch(seq, lines, n, last, error)) || last) {
+                return;
+            }
+            seq++;
+        }
+    }
+
+    private boolean submit(Batch batch) {
+        if (!inFlight.tryAcquire()) {
+            stats.producerWaits.incrementAndGet();
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        if (batch.last) {
+            lastSeq = batch.seq;
+        }
+        pool.execute(() -> {
+            batch.decode();
+            if (ordered) {
+                completed.put(batch.seq, batch);
+            } else {
+                completedQueue.add(batch);
+            }
+            Thread c = consumer;
+            if (c != null) {
+                LockSupport.unpark(c);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public JSONObject next() {
+        while (!done) {
+            if (current != null && position < current.size) {
+                if (position == current.errorAt) {
+                    done = true;
+                    throw current.error;
+                }
+                JSONObject line = current.decoded[position];
+                current.decoded[position++] = null;
+                if (current.last && position == current.size && fetched <= lastSeq) {
+                    // Batches decoded out of order are still outstanding; the final message must wait for them.
+                    held = line;
+                    continue;
+                }
+                return line;
+            }
+            if (current != null && current.error != null && current.errorAt == current.size) {
+                done = true;
+                throw current.error;
+            }
+
+            if (lastSeq >= 0 && fetched > lastSeq) {
+                done = true;
+                return held;
+            }
+            current = take();
+            position = 0;
+            if (current == null) {
+                done = true;
+                return null;
+            }
+            fetched++;
+            inFlight.release();
+        }
+        return null;
+    }
+
+    private Batch take() {
+        int waits = 0;
+        while (!closed) {
+            Batch batch = ordered ? completed.remove(fetched) : completedQueue.poll();
+            if (batch != null) {
+                consumer = null;
+                return batch;
+            }
+            if (waits++ == 0) {
+                stats.consumerWaits.incrementAndGet();
+            }
+            consumer = Thread.currentThread();
+            LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        source.close();
+        splitter.interrupt();
+    }
+}
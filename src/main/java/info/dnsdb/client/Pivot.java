@@ -0,0 +1,528 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Breadth-first pivot engine for infrastructure mapping. Starting from seed names or IP addresses, each hop expands
+ * every newly discovered indicator: names via lookupRRSet (name to rdata) and lookupRData (rdata pointing at the
+ * name), addresses via lookupRData. Discovered rdata values and rrnames become the next hop's frontier.
+ *
+ * Expansion runs concurrently within a hop, bounded by concurrency(), while a global visited set ensures each
+ * indicator is queried at most once. Edges are emitted through the returned Expansion as soon as they are found,
+ * eg. pivot.rrtypes("A", "CNAME").maxDepth(2).fanOut(100).expand("www.example.com")
+ *
+ * A Pivot holds only settings and may be reused for several expansions.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ */
+public class Pivot {
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final Object END = new Object();
+
+    private final Client client;
+    private int maxDepth = 2;
+    private int fanOut = 1000;
+    private int concurrency = 4;
+    private Set<String> rrtypes = Set.of("A", "AAAA", "CNAME", "NS", "MX");
+    private long timeFirstAfter;
+    private long timeFirstBefore;
+    private long timeLastAfter;
+    private long timeLastBefore;
+    private Instant deadline;
+    private CancellationToken cancellation;
+
+    /**
+     * A resource record linking an rrname to one of its rdata values, discovered during an expansion.
+     */
+    public static final class Edge {
+        private final String rrname;
+        private final String rrtype;
+        private final String rdata;
+        private final long timeFirst;
+        private final long timeLast;
+        private final long count;
+        private final int depth;
+
+        Edge(String rrname, String rrtype, String rdata, long timeFirst, long timeLast, long count, int depth) {
+            this.rrname = rrname;
+            this.rrtype = rrtype;
+            this.rdata = rdata;
+            this.timeFirst = timeFirst;
+            this.timeLast = timeLast;
+            this.count = count;
+            this.depth = depth;
+        }
+
+        /**
+         * @return The owner name of the record, lower case and without a trailing dot.
+         */
+        public String rrname() {
+            return rrname;
+        }
+
+        /**
+         * @return The rrtype of the record.
+         */
+        public String rrtype() {
+            return rrtype;
+        }
+
+        /**
+         * @return The target of the record: an address, or a name lower case and without a trailing dot.
+         */
+        public String rdata() {
+            return rdata;
+        }
+
+        /**
+         * @return Seconds since the epoch when the record was first observed, or 0 if unknown.
+         */
+        public long timeFirst() {
+            return timeFirst;
+        }
+
+        /**
+         * @return Seconds since the epoch when the record was last observed, or 0 if unknown.
+         */
+        public long timeLast() {
+            return timeLast;
+        }
+
+        /**
+         * @return Number of times the record was observed.
+         */
+        public long count() {
+            return count;
+        }
+
+        /**
+         * @return The hop at which the edge was discovered, starting at 1 for edges of the seeds.
+         */
+        public int depth() {
+            return depth;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s %s", rrname, rrtype, rdata);
+        }
+    }
+
+    /**
+     * Class constructor for Pivot.
+     *
+     * @param client Client used for all lookups.
+     */
+    public Pivot(Client client) {
+        this.client = client;
+    }
+
+    /**
+     * Set the maximum number of hops to expand from the seeds. The default is 2.
+     *
+     * @param maxDepth Number of hops.
+     * @return The Pivot object for further use in the fluent API pattern.
+     */
+    public Pivot maxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of results requested for each lookup, and therefore the maximum number of neighbours
+     * of any indicator in each direction. The default is 1000.
+     *
+     * @param fanOut Number of rows per lookup.
+     * @return The Pivot object for further use in the fluent API pattern.
+     */
+    public Pivot fanOut(int fanOut) {
+        this.fanOut = fanOut;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of lookups in flight during a hop. The default is 4.
+     *
+     * @param concurrency Number of concurrent lookups.
+     * @return The Pivot object for further use in the fluent API pattern.
+     */
+    public Pivot concurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Set the rrtypes followed during expansion. Records of other rrtypes are ignored. The default is A, AAAA, CNAME,
+     * NS and MX.
+     *
+     * @param rrtypes The rrtypes to follow.
+     * @return The Pivot object for further use in the fluent API pattern.
+     */
+    public Pivot rrtypes(String... rrtypes) {
+        this.rrtypes = Set.copyOf(Arrays.asList(rrtypes));
+        return this;
+    }
+
+    /**
+     * Only follow records first observed after the given time. Applied to every lookup and every edge.
+     *
+     * @param time Seconds since the epoch.
+     * @return The Pivot object for further use in the fluent API pattern.
+     * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#time-fencing-query-parameters">Time-fencing query parameters.</a>
+     */
+    public Pivot timeFirstAfter(long time) {
+        this.timeFirstAfter = time;
+        return this;
+    }
+
+    /**
+     * Only follow records first observed before the given time. Applied to every lookup and every edge.
+     *
+     * @param time Seconds since the epoch.
+     * @return The Pivot object for further use in the fluent API pattern.
+     * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#time-fencing-query-parameters">Time-fencing query parameters.</a>
+     */
+    public Pivot timeFirstBefore(long time) {
+        this.timeFirstBefore = time;
+        return this;
+    }
+
+    /**
+     * Only follow records last observed after the given time. Applied to every lookup and every edge.
+     *
+     * @param time Seconds since the epoch.
+     * @return The Pivot object for further use in the fluent API pattern.
+     * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#time-fencing-query-parameters">Time-fencing query parameters.</a>
+     */
+    public Pivot timeLastAfter(long time) {
+        this.timeLastAfter = time;
+        return this;
+    }
+
+    /**
+     * Only follow records last observed before the given time. Applied to every lookup and every edge.
+     *
+     * @param time Seconds since the epoch.
+     * @return The Pivot object for further use in the fluent API pattern.
+     * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#time-fencing-query-parameters">Time-fencing query parameters.</a>
+     */
+    public Pivot timeLastBefore(long time) {
+        this.timeLastBefore = time;
+        return this;
+    }
+
+    /**
+     * Set a deadline for each expansion. Every lookup is bounded by it, and the expansion fails with
+     * DeadlineExceededException if it is still running when the deadline passes.
+     *
+     * @param deadline Time by which expansions must complete, or null for no deadline (the default).
+     * @return The Pivot object for further use in the fluent API pattern.
+     * @see Query#deadline(Instant)
+     */
+    public Pivot deadline(Instant deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    /**
+     * Attach a cancellation token to each expansion. Cancelling it aborts every lookup in flight and fails the
+     * expansion with QueryCancelledException.
+     *
+     * @param token Token to observe, or null for none (the default).
+     * @return The Pivot object for further use in the fluent API pattern.
+     * @see Query#cancellation(CancellationToken)
+     */
+    public Pivot cancellation(CancellationToken token) {
+        this.cancellation = token;
+        return this;
+    }
+
+    /**
+     * Start a breadth-first expansion from the given seeds in the background.
+     *
+     * @param seeds Domain names or IP addresses.
+     * @return An Expansion emitting edges as they are discovered.
+     */
+    public Expansion expand(String... seeds) {
+        Expansion expansion = new Expansion(List.copyOf(Arrays.asList(seeds)));
+        expansion.coordinator.start();
+        return expansion;
+    }
+
+    /**
+     * A running expansion. This is an Iterator of the discovered edges; next() and hasNext() block until an edge is
+     * available or the expansion completes, and rethrow any DNSDBException raised by a lookup. Closing the expansion
+     * stops all outstanding lookups.
+     */
+    public final class Expansion implements Iterator<Edge>, AutoCloseable {
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final Set<String> visited = ConcurrentHashMap.newKeySet();
+        private final Set<String> edges = ConcurrentHashMap.newKeySet();
+        private final ExecutorService workers = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "dnsdb-pivot");
+            t.setDaemon(true);
+            return t;
+        });
+        private final Thread coordinator;
+        private final CancellationToken token = cancellation == null ? new CancellationToken() : cancellation.child();
+        private Object next;
+        private volatile boolean closed;
+
+        private Expansion(List<String> seeds) {
+            coordinator = new Thread(() -> run(seeds), "dnsdb-pivot-coordinator");
+            coordinator.setDaemon(true);
+        }
+
+        /**
+         * @return The number of distinct indicators expanded or queued for expansion so far.
+         */
+        public int visited() {
+            return visited.size();
+        }
+
+        @Override
+        public boolean hasNext() {
+            fill();
+            return next != END;
+        }
+
+        @Override
+        public Edge next() {
+            fill();
+            if (next == END) {
+                throw new NoSuchElementException();
+            }
+            Edge edge = (Edge) next;
+            next = null;
+            return edge;
+        }
+
+        /**
+         * Stop the expansion. Lookups in progress are aborted and no further edges are emitted.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            token.cancel();
+            workers.shutdownNow();
+            coordinator.interrupt();
+            queue.clear();
+        }
+
+        private void fill() {
+            if (next != null) {
+                return;
+            }
+            if (closed) {
+                next = END;
+                return;
+            }
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DNSDBException(e);
+            }
+            if (next instanceof DNSDBException) {
+                DNSDBException failure = (DNSDBException) next;
+                next = END;
+                closed = true;
+                throw failure;
+            }
+        }
+
+        private void run(List<String> seeds) {
+            List<String> frontier = new ArrayList<>();
+            for (String seed : seeds) {
+                String node = normalize(seed);
+                if (visited.add(node)) {
+                    frontier.add(node);
+                }
+            }
+
+            try {
+                for (int depth = 1; depth <= maxDepth && !frontier.isEmpty(); depth++) {
+                    List<String> nextFrontier = Collections.synchronizedList(new ArrayList<>());
+                    List<Future<?>> pending = new ArrayList<>(frontier.size());
+                    final int hop = depth;
+                    for (String node : frontier) {
+                        pending.add(workers.submit(() -> expandNode(node, hop, nextFrontier)));
+                    }
+                    for (Future<?> f : pending) {
+                        f.get();
+                    }
+                    frontier = new ArrayList<>(nextFrontier);
+                }
+                queue.put(END);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                publish(cause instanceof DNSDBException ? (DNSDBException) cause : new DNSDBException(cause));
+            } catch (InterruptedException e) {
+                // closed by the consumer
+            } finally {
+                // Abort the lookups still streaming after a failure, and release the parent token.
+                token.cancel();
+                workers.shutdownNow();
+            }
+        }
+
+        private void publish(DNSDBException failure) {
+            try {
+                queue.put(failure);
+            } catch (InterruptedException ignored) {
+                // closed by the consumer
+            }
+        }
+
+        private void expandNode(String node, int depth, List<String> nextFrontier) {
+            if (isAddress(node)) {
+                follow(client.lookupRData(Client.TYPE_IP, node), depth, false, nextFrontier);
+            } else {
+                follow(client.lookupRRSet(Client.TYPE_NAME, node), depth, true, nextFrontier);
+                follow(client.lookupRData(Client.TYPE_NAME, node), depth, false, nextFrontier);
+            }
+        }
+
+        private void follow(Query query, int depth, boolean forward, List<String> nextFrontier) {
+            if (rrtypes.size() == 1) {
+                query.rrtype(rrtypes.iterator().next());
+            }
+            query.limit(fanOut).disableLimitedException(true).deadline(deadline).cancellation(token);
+            fence(query);
+
+            Iterator<JSONObject> it = query.stream();
+            while (it.hasNext() && !closed) {
+                JSONObject obj = it.next();
+                String rrtype = obj.optString("rrtype");
+                if (!rrtypes.contains(rrtype)) {
+                    continue;
+                }
+
+                long timeFirst = obj.optLong("time_first", obj.optLong("zone_time_first"));
+                long timeLast = obj.optLong("time_last", obj.optLong("zone_time_last"));
+                if (!inFence(timeFirst, timeLast)) {
+                    continue;
+                }
+
+                String rrname = normalize(obj.getString("rrname"));
+                for (String value : rdataValues(obj.opt("rdata"))) {
+                    String target = normalize(target(rrtype, value));
+                    emit(new Edge(rrname, rrtype, target, timeFirst, timeLast, obj.optLong("count"), depth));
+
+                    String discovered = forward ? target : rrname;
+                    if (visited.add(discovered)) {
+                        nextFrontier.add(discovered);
+                    }
+                }
+            }
+        }
+
+        private void emit(Edge edge) {
+            if (!edges.add(edge.rrname + '\0' + edge.rrtype + '\0' + edge.rdata)) {
+                return;
+            }
+            try {
+                queue.put(edge);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DNSDBException(e);
+            }
+        }
+    }
+
+    private void fence(Query query) {
+        if (timeFirstAfter != 0) {
+            query.timeFirstAfter(Instant.ofEpochSecond(timeFirstAfter));
+        }
+        if (timeFirstBefore != 0) {
+            query.timeFirstBefore(Instant.ofEpochSecond(timeFirstBefore));
+        }
+        if (timeLastAfter != 0) {
+            query.timeLastAfter(Instant.ofEpochSecond(timeLastAfter));
+        }
+        if (timeLastBefore != 0) {
+            query.timeLastBefore(Instant.ofEpochSecond(timeLastBefore));
+        }
+    }
+
+    private boolean inFence(long timeFirst, long timeLast) {
+        return (timeFirstAfter == 0 || timeFirst > timeFirstAfter)
+                && (timeFirstBefore == 0 || timeFirst < timeFirstBefore)
+                && (timeLastAfter == 0 || timeLast > timeLastAfter)
+                && (timeLastBefore == 0 || timeLast < timeLastBefore);
+    }
+
+    private static List<String> rdataValues(Object rdata) {
+        List<String> values = new ArrayList<>();
+        if (rdata instanceof JSONArray) {
+            JSONArray array = (JSONArray) rdata;
+            for (int i = 0; i < array.length(); i++) {
+                values.add(array.getString(i));
+            }
+        } else if (rdata instanceof String) {
+            values.add((String) rdata);
+        }
+        return values;
+    }
+
+    // MX and SRV rdata carry the target host as their last field.
+    private static String target(String rrtype, String rdata) {
+        if (rrtype.equals("MX") || rrtype.equals("SRV")) {
+            int space = rdata.lastIndexOf(' ');
+            return space < 0 ? rdata : rdata.substring(space + 1);
+        }
+        return rdata;
+    }
+
+    private static String normalize(String indicator) {
+        String s = indicator.trim().toLowerCase(Locale.ROOT);
+        if (s.endsWith(".") && s.length() > 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return s;
+    }
+
+    private static boolean isAddress(String indicator) {
+        try {
+            IPIndex.parseAddress(indicator);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
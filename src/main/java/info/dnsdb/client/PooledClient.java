@@ -0,0 +1,460 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A Client that spreads queries over several API keys with separate quotas. Each query is sent, when it is
+ * streamed, with the key that has the most remaining quota per active stream. Keys that have exhausted their quota,
+ * were rejected, or recently failed are skipped until they are expected to work again. A query refused with status
+ * 429 or 401/403 is retried once with each other available key.
+ *
+ * Remaining quota is read from the rate_limit endpoint of each key, in the background every refresh interval, and
+ * counted down locally in between.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#service-limits-and-quotas">Service limits and quotas.</a>
+ */
+public class PooledClient extends QueryExecutor implements Client {
+    private static final ExecutorService REFRESHERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "dnsdb-rate-limit");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final List<Key> keys;
+    private final String prefix;
+    private volatile long refreshNanos = Duration.ofMinutes(5).toNanos();
+    private volatile long backoffNanos = Duration.ofSeconds(30).toNanos();
+
+    /**
+     * Usage and quota state of one API key in the pool. All methods may be called from any thread.
+     */
+    public static final class Key {
+        /**
+         * Value of remaining() and limit() for keys without a quota.
+         */
+        public static final long UNLIMITED = Long.MAX_VALUE;
+
+        /**
+         * Value of remaining() and limit() before the rate_limit endpoint has been read.
+         */
+        public static final long UNKNOWN = -1;
+
+        private final HTTPClient client;
+        private int active;
+        private long queries;
+        private long errors;
+        private long limit = UNKNOWN;
+        private long remaining = UNKNOWN;
+        private long reset;
+        private long refreshedAt;
+        private boolean refreshing;
+        private long blockedUntil;
+        private boolean rejected;
+
+        private Key(HTTPClient client) {
+            this.client = client;
+        }
+
+        /**
+         * @return The last four characters of the API key.
+         */
+        public String id() {
+            return client.keyId();
+        }
+
+        /**
+         * @return The number of queries currently streaming with this key.
+         */
+        public synchronized int active() {
+            return active;
+        }
+
+        /**
+         * @return The number of queries sent with this key.
+         */
+        public synchronized long queries() {
+            return queries;
+        }
+
+        /**
+         * @return The number of queries that failed with this key before streaming.
+         */
+        public synchronized long errors() {
+            return errors;
+        }
+
+        /**
+         * @return The quota of the key, UNLIMITED, or UNKNOWN.
+         */
+        public synchronized long limit() {
+            return limit;
+        }
+
+        /**
+         * @return The estimated remaining quota of the key, UNLIMITED, or UNKNOWN.
+         */
+        public synchronized long remaining() {
+            return remaining;
+        }
+
+        /**
+         * @return True if queries are currently dispatched to this key.
+         */
+        public synchronized boolean available() {
+            return available(System.nanoTime());
+        }
+
+        private boolean available(long now) {
+            if (rejected || now < blockedUntil) {
+                return false;
+            }
+            if (remaining == 0) {
+                return reset > 0 && System.currentTimeMillis() / 1000 >= reset;
+            }
+            return true;
+        }
+
+        private double score() {
+            double r = remaining == UNKNOWN ? UNLIMITED : remaining;
+            return r / (active + 1);
+        }
+
+        private void refresh() {
+            try {
+                JSONObject json = client.rateLimit();
+                JSONObject rate = json.optJSONObject("rate");
+                if (rate == null) {
+                    rate = json;
+                }
+                synchronized (this) {
+                    limit = rate.optLong("limit", UNLIMITED);
+                    remaining = rate.optLong("remaining", UNLIMITED);
+                    reset = rate.optLong("reset", 0);
+                }
+            } catch (DNSDBException | JSONException e) {
+                // keep the local estimate
+            } finally {
+                synchronized (this) {
+                    refreshing = false;
+                    refreshedAt = System.nanoTime();
+                }
+            }
+        }
+
+        private synchronized void release() {
+            active--;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%s active=%d queries=%d errors=%d remaining=%s available=%b", id(), active,
+                    queries, errors, remaining == UNLIMITED ? "unlimited" : Long.toString(remaining), available());
+        }
+    }
+
+    /**
+     * Class constructor for a pool of API keys on the same server, sharing one HttpClient.
+     *
+     * @param server Base URI for the DNSDB server, eg. HTTPClient.DEFAULT_SERVER.
+     * @param apikeys Access tokens for the DNSDB service.
+     */
+    public PooledClient(String server, String... apikeys) {
+        this(clients(server, apikeys));
+    }
+
+    /**
+     * Class constructor for a pool of configured clients, one per API key.
+     *
+     * @param clients Clients for the same server.
+     * @throws IllegalArgumentException If clients is empty or the clients use different servers.
+     */
+    public PooledClient(List<HTTPClient> clients) {
+        if (clients.isEmpty()) {
+            throw new IllegalArgumentException("no clients");
+        }
+        List<Key> k = new ArrayList<>();
+        for (HTTPClient c : clients) {
+            if (!c.prefix().equals(clients.get(0).prefix())) {
+                throw new IllegalArgumentException("clients must use the same server");
+            }
+            k.add(new Key(c));
+        }
+        this.keys = Collections.unmodifiableList(k);
+        this.prefix = clients.get(0).prefix();
+    }
+
+    private static List<HTTPClient> clients(String server, String... apikeys) {
+        HttpClient http = HttpClient.newHttpClient();
+        List<HTTPClient> clients = new ArrayList<>();
+        for (String apikey : apikeys) {
+            clients.add(new HTTPClient(apikey, server, http));
+        }
+        return clients;
+    }
+
+    /**
+     * Set how often the rate_limit endpoint is read for each key. The default is 5 minutes.
+     *
+     * @param interval Refresh interval.
+     * @return The PooledClient object for further use in the fluent API pattern.
+     */
+    public PooledClient refreshInterval(Duration interval) {
+        this.refreshNanos = interval.toNanos();
+        return this;
+    }
+
+    /**
+     * Set how long a key is skipped after a query with it failed or was refused with status 429. The default is 30
+     * seconds.
+     *
+     * @param backoff Backoff interval.
+     * @return The PooledClient object for further use in the fluent API pattern.
+     */
+    public PooledClient errorBackoff(Duration backoff) {
+        this.backoffNanos = backoff.toNanos();
+        return this;
+    }
+
+    /**
+     * @return The state of each key, in the order given to the constructor.
+     */
+    public List<Key> keys() {
+        return keys;
+    }
+
+    /**
+     * Read the rate_limit endpoint of every key now.
+     */
+    public void refresh() {
+        for (Key k : keys) {
+            synchronized (k) {
+                k.refreshing = true;
+            }
+            k.refresh();
+        }
+    }
+
+    /**
+     * Calls the DNSDB ping endpoint with each key until one succeeds.
+     *
+     * @return True if any key can reach the server.
+     */
+    @Override
+    public boolean ping() {
+        for (Key k : keys) {
+            if (k.client.ping()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Refreshes the rate_limit state of every key and returns the combined quota.
+     *
+     * @return A JSONObject in the output format of the rate_limit endpoint, whose limit and remaining are summed over
+     * the keys and whose reset is the earliest of theirs. Keys whose state is unknown are left out.
+     */
+    @Override
+    public JSONObject rateLimit() {
+        refresh();
+        long limit = 0;
+        long remaining = 0;
+        long reset = 0;
+        boolean unlimited = false;
+        for (Key k : keys) {
+            synchronized (k) {
+                if (k.limit == Key.UNLIMITED || k.remaining == Key.UNLIMITED) {
+                    unlimited = true;
+                } else if (k.remaining != Key.UNKNOWN) {
+                    limit += Math.max(0, k.limit);
+                    remaining += k.remaining;
+                }
+                if (k.reset > 0 && (reset == 0 || k.reset < reset)) {
+                    reset = k.reset;
+                }
+            }
+        }
+
+        JSONObject rate = new JSONObject();
+        rate.put("limit", unlimited ? "unlimited" : limit);
+        rate.put("remaining", unlimited ? "unlimited" : remaining);
+        rate.put("reset", reset > 0 ? reset : "n/a");
+        return new JSONObject().put("rate", rate);
+    }
+
+    /**
+     * Creates a Query object for a lookup RRSet search, sent with the best key when it is streamed.
+     *
+     * @param type One of TYPE_NAME or TYPE_IP.
+     * @param value A domain name with or without wildcards or a hex-encoded raw rrname string.
+     * @return A Query object set up with the desired parameters.
+     * @see HTTPClient#lookupRRSet(String, String)
+     */
+    @Override
+    public Query lookupRRSet(String type, String value) {
+        return new Query(this, "lookup/rrset/" + type, value);
+    }
+
+    /**
+     * Creates a Query object for a lookup RData search, sent with the best key when it is streamed.
+     *
+     * @param type One of TYPE_NAME, TYPE_IP, or TYPE_RAW.
+     * @param value A domain name with or without wildcards, an IP address with or without CIDR notation, or a hex-encoded raw rrname string.
+     * @return A Query object set up with the desired parameters.
+     * @see HTTPClient#lookupRData(String, String)
+     */
+    @Override
+    public Query lookupRData(String type, String value) {
+        return new Query(this, "lookup/rdata/" + type, value);
+    }
+
+    /**
+     * Creates a Query object for a summarize RRSet search, sent with the best key when it is streamed.
+     *
+     * @param type One of TYPE_NAME or TYPE_RAW.
+     * @param value A domain name with or without wildcards or a hex-encoded raw rrname string.
+     * @return A Query object set up with the desired parameters.
+     * @see HTTPClient#summarizeRRSet(String, String)
+     */
+    @Override
+    public Query summarizeRRSet(String type, String value) {
+        return new Query(this, "summarize/rrset/" + type, value);
+    }
+
+    /**
+     * Creates a Query object for a summarize RData search, sent with the best key when it is streamed.
+     *
+     * @param type One of TYPE_NAME, TYPE_IP, or TYPE_RAW.
+     * @param value A domain name with or without wildcards, an IP address with or without CIDR notation, or a hex-encoded raw rrname string.
+     * @return A Query object set up with the desired parameters.
+     * @see HTTPClient#summarizeRData(String, String)
+     */
+    @Override
+    public Query summarizeRData(String type, String value) {
+        return new Query(this, "summarize/rdata/" + type, value);
+    }
+
+    /**
+     * Creates a Query object for a flexible search, sent with the best key when it is streamed.
+     *
+     * @param method One of METHOD_REGEX or METHOD_GLOB.
+     * @param key One of KEY_RRNAMES or KEY_RDATA.
+     * @param value A regular expression or glob to search for.
+     * @return A Query object set up with the desired parameters.
+     * @see HTTPClient#flex(String, String, String)
+     */
+    @Override
+    public Query flex(String method, String key, String value) {
+        return new Query(this, method + "/" + key, value);
+    }
+
+    @Override
+    String prefix() {
+        return prefix;
+    }
+
+    @Override
+    HttpRequest buildRequest(URI uri) {
+        return select(null).client.buildRequest(uri);
+    }
+
+    @Override
+    InputStream open(URI uri, Deadline deadline) {
+        List<Key> tried = new ArrayList<>();
+        while (true) {
+            Key k = select(tried);
+            synchronized (k) {
+                k.active++;
+                k.queries++;
+                if (k.remaining > 0 && k.remaining != Key.UNLIMITED) {
+                    k.remaining--;
+                }
+            }
+
+            try {
+                return new ReleasingInputStream(k.client.open(uri, deadline), k::release);
+            } catch (DNSDBException e) {
+                if (deadline.aborted(e)) {
+                    // cancelled or out of time: not the key's fault, and no time to try another
+                    k.release();
+                    throw e;
+                }
+                synchronized (k) {
+                    k.active--;
+                    k.errors++;
+                    if (e instanceof AuthorizationException) {
+                        k.rejected = true;
+                    } else if (!(e instanceof HTTPStatusException) || ((HTTPStatusException) e).isOverload()
+                            || e instanceof ServerErrorException) {
+                        k.blockedUntil = System.nanoTime() + backoffNanos;
+                    }
+                }
+                tried.add(k);
+                if (!(e instanceof RateLimitedException || e instanceof AuthorizationException)
+                        || tried.size() == keys.size()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Pick the available key with the most remaining quota per active stream, and start refreshing stale keys.
+     *
+     * @param exclude Keys not to pick, or null.
+     * @throws DNSDBException If no key is available.
+     */
+    private Key select(List<Key> exclude) {
+        long now = System.nanoTime();
+        Key best = null;
+        double bestScore = -1;
+        for (Key k : keys) {
+            synchronized (k) {
+                if (!k.refreshing && (k.refreshedAt == 0 || now - k.refreshedAt >= refreshNanos)) {
+                    k.refreshing = true;
+                    REFRESHERS.execute(k::refresh);
+                }
+                if ((exclude != null && exclude.contains(k)) || !k.available(now)) {
+                    continue;
+                }
+                double score = k.score();
+                if (best == null || score > bestScore) {
+                    best = k;
+                    bestScore = score;
+                }
+            }
+        }
+        if (best == null) {
+            throw new DNSDBException("No API key available");
+        }
+        return best;
+    }
+}
@@ -14,25 +14,24 @@
 
 package info.dnsdb.client;
 
-import org.apache.http.client.utils.URIBuilder;
-import org.json.JSONException;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.message.BasicNameValuePair;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.NoSuchElementException;
-
-import static java.net.HttpURLConnection.HTTP_OK;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 
 /**
  * An object used for setting parameters and executing DNSDB Queries. This is written so that developers can use the
@@ -41,7 +40,7 @@ import static java.net.HttpURLConnection.HTTP_OK;
  * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
  * @see <a href="https://docs.dnsdb.info/">Farsight DNSDB API Documentation.</a>
  */
-public class Query {
+public class Query implements AutoCloseable {
     private static final String RRTYPE_ANY = "ANY";
 
     static final String COND_BEGIN = "begin";
@@ -52,27 +51,67 @@ public class Query {
 
     private static final String DEFAULT_SWCLIENT = "java";
 
-    private final HTTPClient client;
-    private final URIBuilder uriBuilder;
-    private String rrtype;
-    private String bailiwick;
-    private boolean disableLimitedException;
+    final QueryExecutor client;
+    final String endpoint;
+    final String value;
+    final Map<String, String> parameters;
+    String rrtype;
+    String bailiwick;
+    boolean disableLimitedException;
+    int readAhead;
+    ForkJoinPool decodePool;
+    boolean preserveOrder;
+    RowFilter filter;
+    Instant deadline;
+    Duration timeout;
+    CancellationToken cancellation;
+    private String suffix;
+    private final QueryStats stats = new QueryStats();
+    private volatile LineSource source;
+    private volatile QueryTrace trace;
 
     /**
-     * Class constructor for Query. Sends requests to uri using credentials and HttpClient from client.
+     * Class constructor for Query. Sends requests for value to endpoint using credentials and HttpClient from client.
      * This is package scope because it really belongs to the implementation (HttpClient).
      *
-     * @param client HttpClient object that initiated the query.
-     * @param uri URI of the request. Path components for rrtype and bailiwick are appended as necessary.
+     * @param client Client object that initiated the query.
+     * @param endpoint Path of the endpoint relative to the API prefix, eg. lookup/rrset/name.
+     * @param value Value searched for. Path components for rrtype and bailiwick are appended as necessary.
      */
-    Query(HTTPClient client, URI uri) {
+    Query(QueryExecutor client, String endpoint, String value) {
         this.client = client;
-        uriBuilder = new URIBuilder(uri);
+        this.endpoint = endpoint;
+        this.value = value;
+        this.parameters = new LinkedHashMap<>();
         this.rrtype = RRTYPE_ANY;
 
         swClient(DEFAULT_SWCLIENT);
     }
 
+    /**
+     * Class constructor for Query, copying the endpoint and options of another query.
+     *
+     * @param query Query whose options are copied.
+     * @param value Value searched for.
+     */
+    Query(Query query, String value) {
+        this.client = query.client;
+        this.endpoint = query.endpoint;
+        this.value = value;
+        this.parameters = new LinkedHashMap<>(query.parameters);
+        this.rrtype = query.rrtype;
+        this.bailiwick = query.bailiwick;
+        this.disableLimitedException = query.disableLimitedException;
+        this.readAhead = query.readAhead;
+        this.decodePool = query.decodePool;
+        this.preserveOrder = query.preserveOrder;
+        this.filter = query.filter;
+        this.deadline = query.deadline;
+        this.timeout = query.timeout;
+        this.cancellation = query.cancellation;
+        this.suffix = query.suffix;
+    }
+
     /**
      * Disable throwing of QueryLimitedException.
      *
@@ -84,6 +123,105 @@ public class Query {
         return this;
     }
 
+    /**
+     * Read and decode results on a background thread, up to depth messages ahead of the consumer. This overlaps
+     * network I/O and JSON decoding with the processing of earlier results by the caller of stream(). Buffer activity
+     * is reported by stats().
+     *
+     * The default is 0, which reads and decodes on the calling thread.
+     *
+     * @param depth Number of messages to buffer, rounded up to a power of two, or 0 to disable read-ahead.
+     * @return The Query object for further use in the fluent API pattern.
+     */
+    public Query readAhead(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("depth must not be negative");
+        }
+        this.readAhead = depth;
+        return this;
+    }
+
+    /**
+     * Decode results in parallel on the common ForkJoinPool. A background thread splits the response into batches of
+     * lines, which are decoded concurrently. This takes precedence over readAhead().
+     *
+     * @param preserveOrder True to deliver results in the order sent by the server, false to deliver each batch as
+     *                      soon as it is decoded for extra throughput.
+     * @return The Query object for further use in the fluent API pattern.
+     */
+    public Query parallelDecode(boolean preserveOrder) {
+        return parallelDecode(preserveOrder, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Decode results in parallel on the given ForkJoinPool. A background thread splits the response into batches of
+     * lines, which are decoded concurrently. This takes precedence over readAhead().
+     *
+     * @param preserveOrder True to deliver results in the order sent by the server, false to deliver each batch as
+     *                      soon as it is decoded for extra throughput.
+     * @param pool Pool to decode batches on, or null to disable parallel decoding.
+     * @return The Query object for further use in the fluent API pattern.
+     */
+    public Query parallelDecode(boolean preserveOrder, ForkJoinPool pool) {
+        this.preserveOrder = preserveOrder;
+        this.decodePool = pool;
+        return this;
+    }
+
+    /**
+     * Drop result rows that the filter rejects before they are decoded. Applies to stream() and count(); the counts
+     * of accepted and rejected rows are reported by stats().
+     *
+     * @param filter Filter built with the static methods of RowFilter, or null to return every row.
+     * @return The Query object for further use in the fluent API pattern.
+     * @see RowFilter
+     */
+    public Query filter(RowFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * Limit each execution of the query to a time from when it is started, including any wait to be sent, the wait
+     * for the response to begin and reading all of its results. When the time is up the request or response is
+     * aborted and DeadlineExceededException is thrown. Copies of the query, such as those made by templates, each get
+     * the full time; use deadline() to bound a group of queries together.
+     *
+     * @param timeout Time allowed for each execution, or null for no limit (the default).
+     * @return The Query object for further use in the fluent API pattern.
+     * @see DeadlineExceededException
+     */
+    public Query timeout(Duration timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Set an absolute deadline for the query, which applies like timeout() but is shared by copies of the query, eg.
+     * all the pages or shards of a larger result. If both are set the earlier limit applies.
+     *
+     * @param deadline Time by which the query must complete, or null for no deadline (the default).
+     * @return The Query object for further use in the fluent API pattern.
+     * @see DeadlineExceededException
+     */
+    public Query deadline(Instant deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    /**
+     * Attach a cancellation token to the query. Cancelling the token aborts the query wherever it is, and makes it
+     * throw QueryCancelledException. Copies of the query, such as those made by templates, share the token.
+     *
+     * @param token Token to observe, or null for none (the default).
+     * @return The Query object for further use in the fluent API pattern.
+     * @see CancellationToken
+     */
+    public Query cancellation(CancellationToken token) {
+        this.cancellation = token;
+        return this;
+    }
+
     /**
      * Set the rrtype parameter of the query. This limits results to only that rrtype, or all rrtypes in the case of
      * RRTYPE_ANY.
@@ -93,6 +231,7 @@ public class Query {
      */
     public Query rrtype(String rrtype) {
         this.rrtype = rrtype;
+        this.suffix = null;
         return this;
     }
 
@@ -107,6 +246,7 @@ public class Query {
      */
     public Query bailiwick(String bailiwick) {
         this.bailiwick = bailiwick;
+        this.suffix = null;
         return this;
     }
 
@@ -118,7 +258,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#time-fencing-query-parameters">Time-fencing query parameters.</a>
      */
     public Query timeFirstBefore(int time) {
-        uriBuilder.setParameter("time_first_before", Integer.toString(time));
+        setParameter("time_first_before", Integer.toString(time));
         return this;
     }
 
@@ -130,7 +270,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#time-fencing-query-parameters">Time-fencing query parameters.</a>
      */
     public Query timeFirstBefore(Date date) {
-        uriBuilder.setParameter("time_first_before", Long.toString(date.getTime() / 1000));
+        setParameter("time_first_before", Long.toString(date.getTime() / 1000));
         return this;
     }
 
@@ -142,7 +282,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#time-fencing-query-parameters">Time-fencing query parameters.</a>
      */
     public Query timeFirstBefore(Instant instant) {
-        uriBuilder.setParameter("time_first_before", Long.toString(instant.getEpochSecond()));
+        setParameter("time_first_before", Long.toString(instant.getEpochSecond()));
         return this;
     }
 
@@ -154,7 +294,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#time-fencing-query-parameters">Time-fencing query parameters.</a>
      */
     public Query timeFirstAfter(int time) {
-        uriBuilder.setParameter("time_first_after", Integer.toString(time));
+        setParameter("time_first_after", Integer.toString(time));
         return this;
     }
 
@@ -166,7 +306,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#time-fencing-query-parameters">Time-fencing query parameters.</a>
      */
     public Query timeFirstAfter(Date date) {
-        uriBuilder.setParameter("time_first_after", Long.toString(date.getTime() / 1000));
+        setParameter("time_first_after", Long.toString(date.getTime() / 1000));
         return this;
     }
 
@@ -178,7 +318,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#time-fencing-query-parameters">Time-fencing query parameters.</a>
      */
     public Query timeFirstAfter(Instant instant) {
-        uriBuilder.setParameter("time_first_after", Long.toString(instant.getEpochSecond()));
+        setParameter("time_first_after", Long.toString(instant.getEpochSecond()));
         return this;
     }
 
@@ -190,7 +330,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#time-fencing-query-parameters">Time-fencing query parameters.</a>
      */
     public Query timeLastBefore(int time) {
-        uriBuilder.setParameter("time_last_before", Integer.toString(time));
+        setParameter("time_last_before", Integer.toString(time));
         return this;
     }
 
@@ -202,7 +342,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#time-fencing-query-parameters">Time-fencing query parameters.</a>
      */
     public Query timeLastBefore(Date date) {
-        uriBuilder.setParameter("time_last_before", Long.toString(date.getTime() / 1000));
+        setParameter("time_last_before", Long.toString(date.getTime() / 1000));
         return this;
     }
 
@@ -214,7 +354,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#time-fencing-query-parameters">Time-fencing query parameters.</a>
      */
     public Query timeLastBefore(Instant instant) {
-        uriBuilder.setParameter("time_last_before", Long.toString(instant.getEpochSecond()));
+        setParameter("time_last_before", Long.toString(instant.getEpochSecond()));
         return this;
     }
 
@@ -226,7 +366,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#time-fencing-query-parameters">Time-fencing query parameters.</a>
      */
     public Query timeLastAfter(int time) {
-        uriBuilder.setParameter("time_last_after", Integer.toString(time));
+        setParameter("time_last_after", Integer.toString(time));
         return this;
     }
 
@@ -238,7 +378,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#time-fencing-query-parameters">Time-fencing query parameters.</a>
      */
     public Query timeLastAfter(Date date) {
-        uriBuilder.setParameter("time_last_after", Long.toString(date.getTime() / 1000));
+        setParameter("time_last_after", Long.toString(date.getTime() / 1000));
         return this;
     }
 
@@ -250,7 +390,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#time-fencing-query-parameters">Time-fencing query parameters.</a>
      */
     public Query timeLastAfter(Instant instant) {
-        uriBuilder.setParameter("time_last_after", Long.toString(instant.getEpochSecond()));
+        setParameter("time_last_after", Long.toString(instant.getEpochSecond()));
         return this;
     }
 
@@ -264,7 +404,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#other-query-parameters">Other query parameters.</a>
      */
     public Query limit(int limit) {
-        uriBuilder.setParameter("limit", Integer.toString(limit));
+        setParameter("limit", Integer.toString(limit));
         return this;
     }
 
@@ -278,7 +418,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#other-query-parameters">Other query parameters.</a>
      */
     public Query swClient(String swclient) {
-        uriBuilder.setParameter("swclient", swclient);
+        setParameter("swclient", swclient);
         return this;
     }
 
@@ -292,7 +432,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#other-query-parameters">Other query parameters.</a>
      */
     public Query version(String version) {
-        uriBuilder.setParameter("version", version);
+        setParameter("version", version);
         return this;
     }
 
@@ -306,7 +446,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#other-query-parameters">Other query parameters.</a>
      */
     public Query id(String id) {
-        uriBuilder.setParameter("id", id);
+        setParameter("id", id);
         return this;
     }
 
@@ -318,7 +458,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#other-query-parameters">Other query parameters.</a>
      */
     public Query aggr(boolean on) {
-        uriBuilder.setParameter("aggr", Boolean.toString(on));
+        setParameter("aggr", Boolean.toString(on));
         return this;
     }
 
@@ -330,7 +470,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#other-query-parameters">Other query parameters.</a>
      */
     public Query humanTime(boolean on) {
-        uriBuilder.setParameter("aggr", Boolean.toString(on));
+        setParameter("aggr", Boolean.toString(on));
         return this;
     }
 
@@ -346,7 +486,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#additional-query-parameter-for-lookup">Additional query parameter for lookup.</a>
      */
     public Query offset(int offset) {
-        uriBuilder.setParameter("offset", Integer.toString(offset));
+        setParameter("offset", Integer.toString(offset));
         return this;
     }
 
@@ -360,7 +500,7 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#additional-query-parameter-for-summarize">Additional query parameter for summarize.</a>
      */
     public Query maxCount(int maxCount) {
-        uriBuilder.setParameter("max_count", Integer.toString(maxCount));
+        setParameter("max_count", Integer.toString(maxCount));
         return this;
     }
 
@@ -373,133 +513,262 @@ public class Query {
      * @see <a href="https://docs.dnsdb.info/dnsdb-flex-api/#the-exclude-parameter">The exclude parameter.</a>
      */
     public Query exclude(String exclude) {
-        uriBuilder.setParameter("exclude", exclude);
+        setParameter("exclude", exclude);
         return this;
     }
 
+    /**
+     * Capture the endpoint and all options of this query, except the value searched for, in an immutable template.
+     * Templates precompute the encoded rrtype, bailiwick and query parameters once, and may be shared between threads
+     * to issue many lookups with the same options, eg.
+     * client.lookupRRSet(Client.TYPE_NAME, "").rrtype("A").limit(100).template().stream("www.example.com")
+     *
+     * @return A QueryTemplate with the options of this query.
+     */
+    public QueryTemplate template() {
+        return new QueryTemplate(this);
+    }
+
+    private void setParameter(String name, String value) {
+        parameters.put(name, value);
+        suffix = null;
+    }
+
+    /**
+     * @return The encoded path suffix for rrtype and bailiwick followed by the query string.
+     */
+    String suffix() {
+        if (suffix == null) {
+            List<NameValuePair> pairs = new ArrayList<>(parameters.size());
+            for (Map.Entry<String, String> e : parameters.entrySet()) {
+                pairs.add(new BasicNameValuePair(e.getKey(), e.getValue()));
+            }
+            String segments = bailiwick == null ?
+                    URLEncodedUtils.formatSegments(rrtype) : URLEncodedUtils.formatSegments(rrtype, bailiwick);
+            suffix = segments + "?" + URLEncodedUtils.format(pairs, StandardCharsets.UTF_8);
+        }
+        return suffix;
+    }
+
+    /**
+     * @return The URI of the request for this query.
+     */
+    URI uri() {
+        return client.buildURI(endpoint, value, suffix());
+    }
+
     /**
      * Execute the query, returning an Iterator of results. The Iterator will throw the same exceptions
      * listed below on calls to next() and hasNext().
      *
      * @return An Iterator of JSON objects formatted per the query endpoint used.
-     * @throws DNSDBException If the server returns an invalid status code.
+     * @throws HTTPStatusException If the server returns an invalid status code, eg. RateLimitedException for 429.
+     * @throws CircuitOpenException If the client's concurrency limiter has opened its circuit breaker.
      * @throws DNSDBException If the connection was unsuccessful.
      * @throws InvalidJSONException If invalid JSON data is returned by the server.
      * @throws TruncatedResponseException If the response does not include a trailer or is otherwise truncated.
      * @throws UnexpectedCondException If the server sends an unknown condition or a condition at the wrong state.
      * @throws QueryLimitedException If the server reports that the result set was incomplete.
      * @throws QueryFailedException If the server reports that the query has failed.
+     * @throws DeadlineExceededException If the query does not complete within its timeout or deadline.
+     * @throws QueryCancelledException If the query's cancellation token is cancelled.
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#rrset-results">rrset results for lookup.</a>
      * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#rdata-results">rdata results for lookup.</a>
      * @see <a href="https://docs.dnsdb.info/dnsdb-flex-api/#rrnames-results">rrnames results for flex.</a>
      * @see <a href="https://docs.dnsdb.info/dnsdb-flex-api/#rdata-results">rdata results for flex.</a>
      */
     public Iterator<JSONObject> stream() {
-        URI uri;
+        return stream(false);
+    }
 
-        List<String> pathSegments = uriBuilder.getPathSegments();
-        pathSegments.add(rrtype);
-        if (bailiwick != null) {
-            pathSegments.add(bailiwick);
+    /**
+     * Execute the query, passing each result to an action, and return the terminal condition instead of throwing
+     * QueryLimitedException or QueryFailedException. This is the cheaper form for paging loops, where limited results
+     * are expected.
+     *
+     * @param action Action applied to each result.
+     * @return The terminal condition of the query.
+     * @throws DNSDBException For the same reasons as stream(), other than limited and failed conditions.
+     * @see Query#stream()
+     */
+    public QueryResult forEach(Consumer<? super JSONObject> action) {
+        Iterator<JSONObject> it = stream(true);
+        while (it.hasNext()) {
+            action.accept(it.next());
         }
-        uriBuilder.setPathSegments(pathSegments);
+        return trace.result();
+    }
 
-        try {
-            uri = uriBuilder.build();
-        } catch (URISyntaxException e) {
-            throw new DNSDBException(e);
-        }
+    /**
+     * The terminal condition of the last execution of this query, by stream(), forEach(), cursor(), count() or
+     * summary(). It is set when the server sends the condition, including when it is also thrown as an exception.
+     *
+     * @return The terminal condition, or null if the query has not been executed or has not reached its end.
+     */
+    public QueryResult result() {
+        QueryTrace t = trace;
+        return t == null ? null : t.result();
+    }
+
+    private Iterator<JSONObject> stream(boolean conditionsAsValues) {
+        QueryTrace trace = new QueryTrace(endpoint, rrtype, uri(), stats);
+        StreamLineSource body = new StreamLineSource(open(trace), stats);
+        LineSource source = body;
+        this.source = source;
 
-        HttpRequest request = client.buildRequest(uri);
-        HttpResponse<InputStream> response;
+        JSONObject line;
         try {
-            response = this.client.client.send(request, HttpResponse.BodyHandlers.ofInputStream());
-            if (response.statusCode() != HTTP_OK) {
-                throw new DNSDBException("Received status code " + response.statusCode());
+            line = source.next();
+            if (line == null) {
+                throw new TruncatedResponseException("Response ended before the begin condition");
+            }
+            if (!line.optString("cond").equals(COND_BEGIN)) {
+                throw new UnexpectedCondException(line);
             }
-        } catch (IOException | InterruptedException e) {
-            throw new DNSDBException(e);
+        } catch (RuntimeException e) {
+            source.close();
+            trace.failed();
+            throw e;
         }
+        trace.begun();
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(response.body()));
-
-        JSONObject line;
-        try {
-            line = new JSONObject(reader.readLine());
-        } catch (IOException e) {
-            throw new TruncatedResponseException(e);
-        } catch (JSONException e) {
-            throw new DNSDBException(e);
+        if (filter != null) {
+            body.filter(filter);
         }
-        if (!line.getString("cond").equals(COND_BEGIN)) {
-            throw new UnexpectedCondException(line);
+        if (decodePool != null) {
+            source = new ParallelLineSource(body, preserveOrder, decodePool, stats);
+            this.source = source;
+        } else if (readAhead > 0) {
+            source = new ReadAheadLineSource(source, readAhead, stats);
+            this.source = source;
         }
+        return new ResultIterator(source, disableLimitedException || conditionsAsValues, conditionsAsValues, stats,
+                trace);
+    }
 
-        return new Iterator<>() {
-            boolean done;
-            JSONObject next;
+    /**
+     * Execute the query and count its results without decoding them. Rows are scanned in place and only fixed-size
+     * statistics are kept: the exact row count, the time range, and HyperLogLog estimates of distinct rrnames, rdata
+     * values and bailiwicks.
+     *
+     * @return The counts of the results.
+     * @throws DNSDBException For the same reasons as stream().
+     * @see Query#stream()
+     */
+    public QueryCounts count() {
+        return count(new QueryCounts());
+    }
 
-            @Override
-            public boolean hasNext() {
-                getNext();
-                return !done;
+    /**
+     * Execute the query and add the counts of its results to existing counts, eg. to combine the shards of a large
+     * query.
+     *
+     * @param counts Counts to add the results to.
+     * @return The counts passed in.
+     * @throws DNSDBException For the same reasons as stream().
+     * @see Query#count()
+     */
+    public QueryCounts count(QueryCounts counts) {
+        QueryTrace trace = new QueryTrace(endpoint, rrtype, uri(), stats);
+        try (RawResultReader reader = new RawResultReader(open(trace), stats, disableLimitedException, filter,
+                trace)) {
+            reader.begin();
+            while (reader.advance()) {
+                counts.add(reader.scanner());
+                stats.rows.incrementAndGet();
             }
+        }
+        return counts;
+    }
+
+    /**
+     * Execute the query and return a cursor over its results, which reads each row in place instead of decoding it to
+     * a JSONObject. Only the well-known fields of rrset and rdata results are available. The filter applies as for
+     * stream().
+     *
+     * @return A RowCursor positioned before the first row. It must be closed if not read to the end.
+     * @throws DNSDBException For the same reasons as stream(), from this method or from RowCursor.advance().
+     * @see RowCursor
+     */
+    public RowCursor cursor() {
+        QueryTrace trace = new QueryTrace(endpoint, rrtype, uri(), stats);
+        RawResultReader reader = new RawResultReader(open(trace), stats, disableLimitedException, filter, trace);
+        reader.begin();
+        return new RowCursor(reader, stats);
+    }
 
-            @Override
-            public JSONObject next() {
-                getNext();
-                if (next == null) {
-                    throw new NoSuchElementException();
+    /**
+     * Execute a summarize query and return its single result row without building a JSON tree. Options such as
+     * maxCount and the time fences apply as for stream().
+     *
+     * @return The summary, with all values 0 if nothing matched.
+     * @throws DNSDBException For the same reasons as stream().
+     * @throws UnexpectedCondException If the server returns more than one row, eg. for a query that is not a
+     * summarize query.
+     * @see Client#summarizeRRSet(String, String)
+     * @see Client#summarizeRData(String, String)
+     */
+    public Summary summary() {
+        Summary summary = new Summary(0, 0, 0, 0, 0, 0);
+        QueryTrace trace = new QueryTrace(endpoint, rrtype, uri(), stats);
+        try (RawResultReader reader = new RawResultReader(open(trace), stats, disableLimitedException, null,
+                trace)) {
+            reader.begin();
+            for (int n = 0; reader.advance(); n++) {
+                if (n > 0) {
+                    throw new UnexpectedCondException(StreamLineSource.decode(reader.reader().line()));
                 }
-                JSONObject res = next;
-                next = null;
-                return res;
+                summary = Summary.of(reader.scanner());
+                stats.rows.incrementAndGet();
             }
+        }
+        return summary;
+    }
 
-            private void getNext() {
-                if (next != null) {
-                    return;
-                }
+    /**
+     * Send the request for an execution of this query, under its deadline and cancellation token.
+     *
+     * @param trace Trace of the execution, which becomes the query's current one.
+     * @return The body of a successful (200) response, watched for the deadline and cancellation.
+     * @throws HTTPStatusException If the server returns an invalid status code.
+     * @throws QueryCancelledException If the query is cancelled before the response begins.
+     * @throws DeadlineExceededException If the deadline passes before the response begins.
+     * @throws DNSDBException If the connection was unsuccessful.
+     */
+    private InputStream open(QueryTrace trace) {
+        this.trace = trace;
+        Deadline d = Deadline.of(deadline, timeout, cancellation);
+        try {
+            d.check();
+            return d.watch(client.open(trace.uri(), d));
+        } catch (RuntimeException e) {
+            trace.failed();
+            throw d.translate(e);
+        }
+    }
 
-                while (true) {
-                    JSONObject line;
-                    try {
-                        line = new JSONObject(reader.readLine());
-                    } catch (IOException e) {
-                        throw new TruncatedResponseException(e);
-                    } catch (JSONException e) {
-                        throw new DNSDBException(e);
-                    }
-
-                    String cond = "";
-                    if (line.has("cond")) {
-                        cond = line.getString("cond");
-                    }
-
-                    switch (cond) {
-                        case "":
-                        case COND_ONGOING:
-                            if (line.has("obj")) {
-                                next = line.getJSONObject("obj");
-                                return;
-                            }
-                            break;
-                        case COND_SUCCEEDED:
-                            done = true;
-                            return;
-                        case COND_FAILED:
-                            throw new QueryFailedException(line);
-                        case COND_LIMITED:
-                            if (disableLimitedException) {
-                                done = true;
-                                return;
-                            }
-                            throw new QueryLimitedException();
-                        default:
-                            throw new UnexpectedCondException(line);
-                    }
-                }
-            }
-        };
+    /**
+     * Counters for this query, updated live while results are streamed.
+     *
+     * @return The QueryStats of this query.
+     */
+    public QueryStats stats() {
+        return stats;
+    }
+
+    /**
+     * Release the response body of a streaming query and stop any background threads reading it. Iterators returned
+     * by stream() may throw on subsequent use. Closing a query that has not been streamed has no effect.
+     */
+    @Override
+    public void close() {
+        LineSource s = source;
+        if (s != null) {
+            s.close();
+        }
+        QueryTrace t = trace;
+        if (t != null) {
+            t.failed();
+        }
     }
 }
@@ -0,0 +1,164 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+/**
+ * Fixed-size statistics of a query's results: the exact number of rows, the earliest and latest observation times,
+ * and HyperLogLog estimates of the number of distinct rrnames, rdata values and bailiwicks. The memory used does not
+ * depend on the number of rows.
+ *
+ * Counts of sharded sub-queries, such as one query per time window, can be combined with merge().
+ *
+ * This class is not thread-safe.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see Query#count()
+ */
+public class QueryCounts {
+    private final HyperLogLog rrnames;
+    private final HyperLogLog rdata;
+    private final HyperLogLog bailiwicks;
+    private long rows;
+    private long timeFirst = Long.MAX_VALUE;
+    private long timeLast = Long.MIN_VALUE;
+
+    /**
+     * Class constructor using sketches of the default precision.
+     */
+    public QueryCounts() {
+        this(HyperLogLog.DEFAULT_PRECISION);
+    }
+
+    /**
+     * Class constructor using sketches of the given precision.
+     *
+     * @param precision Precision of the HyperLogLog sketches.
+     * @see HyperLogLog#HyperLogLog(int)
+     */
+    public QueryCounts(int precision) {
+        this.rrnames = new HyperLogLog(precision);
+        this.rdata = new HyperLogLog(precision);
+        this.bailiwicks = new HyperLogLog(precision);
+    }
+
+    void add(RowScanner row) {
+        rows++;
+        byte[] buf = row.buffer();
+        if (row.has(RowScanner.RRNAME)) {
+            rrnames.add(buf, row.start(RowScanner.RRNAME), row.end(RowScanner.RRNAME));
+        }
+        if (row.has(RowScanner.BAILIWICK)) {
+            bailiwicks.add(buf, row.start(RowScanner.BAILIWICK), row.end(RowScanner.BAILIWICK));
+        }
+        for (int i = 0; i < row.rdataCount(); i++) {
+            rdata.add(buf, row.rdataStart(i), row.rdataEnd(i));
+        }
+
+        long first = row.longValue(RowScanner.TIME_FIRST, row.longValue(RowScanner.ZONE_TIME_FIRST, Long.MAX_VALUE));
+        if (first < timeFirst) {
+            timeFirst = first;
+        }
+        long last = row.longValue(RowScanner.TIME_LAST, row.longValue(RowScanner.ZONE_TIME_LAST, Long.MIN_VALUE));
+        if (last > timeLast) {
+            timeLast = last;
+        }
+    }
+
+    /**
+     * Combine the counts of another query into these counts.
+     *
+     * @param other Counts built with sketches of the same precision.
+     * @return These counts.
+     * @throws IllegalArgumentException If the sketch precisions differ.
+     */
+    public QueryCounts merge(QueryCounts other) {
+        rrnames.merge(other.rrnames);
+        rdata.merge(other.rdata);
+        bailiwicks.merge(other.bailiwicks);
+        rows += other.rows;
+        timeFirst = Math.min(timeFirst, other.timeFirst);
+        timeLast = Math.max(timeLast, other.timeLast);
+        return this;
+    }
+
+    /**
+     * @return The exact number of result rows.
+     */
+    public long rows() {
+        return rows;
+    }
+
+    /**
+     * @return The estimated number of distinct rrnames.
+     */
+    public long distinctRRNames() {
+        return rrnames.estimate();
+    }
+
+    /**
+     * @return The estimated number of distinct rdata values. Each value of an rrset counts separately.
+     */
+    public long distinctRData() {
+        return rdata.estimate();
+    }
+
+    /**
+     * @return The estimated number of distinct bailiwicks.
+     */
+    public long distinctBailiwicks() {
+        return bailiwicks.estimate();
+    }
+
+    /**
+     * @return The earliest time_first or zone_time_first in seconds since the epoch, or 0 if there were no rows.
+     */
+    public long timeFirst() {
+        return timeFirst == Long.MAX_VALUE ? 0 : timeFirst;
+    }
+
+    /**
+     * @return The latest time_last or zone_time_last in seconds since the epoch, or 0 if there were no rows.
+     */
+    public long timeLast() {
+        return timeLast == Long.MIN_VALUE ? 0 : timeLast;
+    }
+
+    /**
+     * @return The sketch of rrnames, eg. to serialize it.
+     */
+    public HyperLogLog rrnameSketch() {
+        return rrnames;
+    }
+
+    /**
+     * @return The sketch of rdata values.
+     */
+    public HyperLogLog rdataSketch() {
+        return rdata;
+    }
+
+    /**
+     * @return The sketch of bailiwicks.
+     */
+    public HyperLogLog bailiwickSketch() {
+        return bailiwicks;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("rows=%d rrnames~%d rdata~%d bailiwicks~%d time_first=%d time_last=%d",
+                rows, distinctRRNames(), distinctRData(), distinctBailiwicks(), timeFirst(), timeLast());
+    }
+}
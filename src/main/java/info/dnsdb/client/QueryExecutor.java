@@ -0,0 +1,62 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+
+/**
+ * The part of a client that builds and sends the requests of its queries. This is an abstract class rather than an
+ * interface so that these methods stay out of the public API of the clients.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see Query
+ */
+abstract class QueryExecutor {
+    /**
+     * @return The server URI and API prefix that endpoint paths are appended to.
+     */
+    abstract String prefix();
+
+    /**
+     * Build the HTTP request for a URI, including the API key and content negotiation headers.
+     */
+    abstract HttpRequest buildRequest(URI uri);
+
+    /**
+     * Send the request for a query.
+     *
+     * @param uri URI of the query.
+     * @param deadline Deadline and cancellation token of the query, which bound any waiting before the response
+     * begins. The caller watches the body.
+     * @return The body of a successful (200) response.
+     * @throws HTTPStatusException If the server returns an invalid status code.
+     * @throws DNSDBException If the connection was unsuccessful.
+     */
+    abstract InputStream open(URI uri, Deadline deadline);
+
+    /**
+     * Build the URI for a query.
+     *
+     * @param endpoint Path of the endpoint relative to the API prefix, eg. lookup/rrset/name.
+     * @param value Value searched for, encoded as a single path segment.
+     * @param suffix Encoded remainder of the URI, starting with a slash or question mark.
+     * @return The URI of the request.
+     */
+    URI buildURI(String endpoint, String value, String suffix) {
+        return URI.create(prefix() + endpoint + HTTPClient.encodeValue(endpoint, value) + suffix);
+    }
+}
@@ -29,7 +29,7 @@ public class QueryFailedException extends SAFException {
      * @param obj JSONObject with optional cond and msg keys.
      */
     public QueryFailedException(JSONObject obj) {
-        super(format(obj));
+        super(format(obj), null);
     }
 
     private static String format(JSONObject obj) {
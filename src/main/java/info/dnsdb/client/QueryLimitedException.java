@@ -14,6 +14,8 @@
 
 package info.dnsdb.client;
 
+import org.json.JSONObject;
+
 /**
  * Exception raised when the DNSDB server reports via SAF that a query has exceeded its row limit.
  *
@@ -22,10 +24,30 @@ package info.dnsdb.client;
  * @see <a href="https://docs.dnsdb.info/dnsdb-saf-protocol/">Farsight Streaming API Framing Protocol.</a>
  */
 public class QueryLimitedException extends SAFException {
+    private final String serverMessage;
+
     /**
      * Default class constructor.
      */
     public QueryLimitedException() {
-        super("Limited");
+        super("Limited", null);
+        this.serverMessage = null;
+    }
+
+    /**
+     * Class constructor using a parsed SAF message.
+     *
+     * @param obj JSONObject with an optional msg key.
+     */
+    public QueryLimitedException(JSONObject obj) {
+        super(obj.has("msg") ? "Limited: " + obj.getString("msg") : "Limited", null);
+        this.serverMessage = obj.optString("msg", null);
+    }
+
+    /**
+     * @return The msg sent by the server with the limited condition, or null if there was none.
+     */
+    public String serverMessage() {
+        return serverMessage;
     }
 }
@@ -0,0 +1,105 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+/**
+ * The terminal SAF condition of a query: whether it succeeded, was limited or failed, with the message sent by the
+ * server and the number of rows delivered. Unlike QueryLimitedException and QueryFailedException, this reports the
+ * outcome as a value, so that paging loops can treat a limited result as the normal case it is.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see Query#result()
+ * @see Query#forEach(java.util.function.Consumer)
+ * @see <a href="https://docs.dnsdb.info/dnsdb-saf-protocol/">Farsight Streaming API Framing Protocol.</a>
+ */
+public final class QueryResult {
+    /**
+     * Terminal conditions of a query.
+     */
+    public enum Status {
+        /**
+         * All results were sent.
+         */
+        SUCCEEDED,
+        /**
+         * The results were cut short by a row or time limit.
+         */
+        LIMITED,
+        /**
+         * The server failed the query after sending the begin message.
+         */
+        FAILED
+    }
+
+    private final Status status;
+    private final String message;
+    private final long rows;
+
+    QueryResult(Status status, String message, long rows) {
+        this.status = status;
+        this.message = message;
+        this.rows = rows;
+    }
+
+    /**
+     * Map a terminal cond value to a result.
+     */
+    static QueryResult of(String cond, String message, long rows) {
+        switch (cond) {
+            case Query.COND_SUCCEEDED:
+                return new QueryResult(Status.SUCCEEDED, message, rows);
+            case Query.COND_LIMITED:
+                return new QueryResult(Status.LIMITED, message, rows);
+            default:
+                return new QueryResult(Status.FAILED, message, rows);
+        }
+    }
+
+    /**
+     * @return The terminal condition.
+     */
+    public Status status() {
+        return status;
+    }
+
+    /**
+     * @return True if all results were sent.
+     */
+    public boolean succeeded() {
+        return status == Status.SUCCEEDED;
+    }
+
+    /**
+     * @return The msg sent with the terminal condition, or null if there was none.
+     */
+    public String message() {
+        return message;
+    }
+
+    /**
+     * @return The number of rows delivered before the terminal condition.
+     */
+    public long rows() {
+        return rows;
+    }
+
+    @Override
+    public String toString() {
+        if (message == null) {
+            return String.format("%s rows=%d", status, rows);
+        }
+        return String.format("%s rows=%d: %s", status, rows, message);
+    }
+}
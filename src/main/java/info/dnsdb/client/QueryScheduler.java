@@ -0,0 +1,339 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Shares one client between workloads of different urgency. Queries are admitted to a fixed number of concurrent
+ * streams; when all are busy they wait in a queue per priority class, and a stream that frees up goes to the most
+ * urgent class with work waiting. Bulk work can therefore never delay interactive queries by more than the time it
+ * takes one running stream to end, and reserve() can keep streams free for the other classes even then.
+ *
+ * Within a class, tenants are served by weighted fair queuing: each tenant gets a share of the dispatches in
+ * proportion to its weight, however many queries it has queued, so one tenant's backfill does not starve another's.
+ *
+ * Queries are routed through the scheduler by creating them from a view returned by client(priority, tenant), eg.
+ * <pre>
+ * QueryScheduler scheduler = new QueryScheduler(client, 8).reserve(2);
+ * Client analyst = scheduler.client(QueryScheduler.Priority.INTERACTIVE, "alice");
+ * Client backfill = scheduler.client(QueryScheduler.Priority.BULK, "etl");
+ * </pre>
+ *
+ * A query holds its stream from the moment it is admitted until its response has been read to the end or closed.
+ * ping() and rateLimit() bypass the scheduler.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ */
+public class QueryScheduler {
+    /**
+     * Priority classes, most urgent first.
+     */
+    public enum Priority {
+        /**
+         * Queries a person is waiting for.
+         */
+        INTERACTIVE,
+        /**
+         * Ordinary automated queries.
+         */
+        NORMAL,
+        /**
+         * Backfills and other bulk work, which only uses capacity the other classes leave spare.
+         */
+        BULK
+    }
+
+    private final Client client;
+    private final QueryExecutor executor;
+    private final int concurrency;
+    private int reserve;
+    private final Map<String, Double> weights = new HashMap<>();
+    private final Map<Priority, PriorityQueue<Ticket>> queues = new EnumMap<>(Priority.class);
+    private final Map<Priority, Map<String, Double>> lastTags = new EnumMap<>(Priority.class);
+    private final Map<Priority, Double> virtualTimes = new EnumMap<>(Priority.class);
+    private final Map<Priority, Integer> running = new EnumMap<>(Priority.class);
+    private int active;
+    private long sequence;
+
+    /**
+     * A query waiting for or holding a stream. Tickets are ordered by their virtual finish tag.
+     */
+    private static final class Ticket implements Comparable<Ticket> {
+        final Priority priority;
+        final double tag;
+        final long seq;
+        boolean granted;
+
+        Ticket(Priority priority, double tag, long seq) {
+            this.priority = priority;
+            this.tag = tag;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Ticket o) {
+            int c = Double.compare(tag, o.tag);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    /**
+     * Class constructor scheduling the queries of an HTTPClient.
+     *
+     * @param client Client sending the queries.
+     * @param concurrency Number of queries that may stream at once.
+     */
+    public QueryScheduler(HTTPClient client, int concurrency) {
+        this(client, client, concurrency);
+    }
+
+    /**
+     * Class constructor scheduling the queries of a PooledClient.
+     *
+     * @param client Client sending the queries.
+     * @param concurrency Number of queries that may stream at once.
+     */
+    public QueryScheduler(PooledClient client, int concurrency) {
+        this(client, client, concurrency);
+    }
+
+    private QueryScheduler(Client client, QueryExecutor executor, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        this.client = client;
+        this.executor = executor;
+        this.concurrency = concurrency;
+        for (Priority p : Priority.values()) {
+            queues.put(p, new PriorityQueue<>());
+            lastTags.put(p, new HashMap<>());
+            virtualTimes.put(p, 0.0);
+            running.put(p, 0);
+        }
+    }
+
+    /**
+     * Keep streams for interactive and normal queries: bulk queries are only admitted while more than this many
+     * streams are free. The default is 0.
+     *
+     * @param streams Number of streams bulk work may not use.
+     * @return The QueryScheduler object for further use in the fluent API pattern.
+     */
+    public synchronized QueryScheduler reserve(int streams) {
+        if (streams < 0 || streams >= concurrency) {
+            throw new IllegalArgumentException("reserve must be between 0 and concurrency - 1");
+        }
+        this.reserve = streams;
+        return this;
+    }
+
+    /**
+     * Set the weight of a tenant within each class. Tenants have weight 1 unless set.
+     *
+     * @param tenant Tenant name.
+     * @param weight Relative share of dispatches, greater than 0.
+     * @return The QueryScheduler object for further use in the fluent API pattern.
+     */
+    public synchronized QueryScheduler weight(String tenant, double weight) {
+        if (!(weight > 0)) {
+            throw new IllegalArgumentException("weight must be positive");
+        }
+        weights.put(tenant, weight);
+        return this;
+    }
+
+    /**
+     * Create a view of the client whose queries are scheduled in the given class on behalf of a tenant.
+     *
+     * @param priority Priority class.
+     * @param tenant Tenant name, or a tag for a kind of work.
+     * @return A Client sharing this scheduler.
+     */
+    public Client client(Priority priority, String tenant) {
+        return new Scheduled(priority, tenant);
+    }
+
+    /**
+     * @return The number of queries holding a stream.
+     */
+    public synchronized int running() {
+        return active;
+    }
+
+    /**
+     * @param priority Priority class.
+     * @return The number of queries of the class waiting for a stream.
+     */
+    public synchronized int queued(Priority priority) {
+        return queues.get(priority).size();
+    }
+
+    /**
+     * Wait for a stream.
+     *
+     * @throws QueryCancelledException If the query is cancelled while waiting.
+     * @throws DeadlineExceededException If the deadline of the query passes while waiting.
+     * @throws DNSDBException If the thread is interrupted while waiting.
+     */
+    @SuppressWarnings("try")
+    synchronized Ticket acquire(Priority priority, String tenant, Deadline deadline) {
+        double start = Math.max(virtualTimes.get(priority), lastTags.get(priority).getOrDefault(tenant, 0.0));
+        double tag = start + 1.0 / weights.getOrDefault(tenant, 1.0);
+        lastTags.get(priority).put(tenant, tag);
+        Ticket ticket = new Ticket(priority, tag, sequence++);
+        queues.get(priority).add(ticket);
+        dispatch();
+        try (CancellationToken.Registration r = deadline.onCancel(this::wakeUp)) {
+            while (!ticket.granted) {
+                deadline.await(this);
+            }
+        } catch (InterruptedException | DNSDBException e) {
+            if (ticket.granted) {
+                release(ticket);
+            } else {
+                queues.get(priority).remove(ticket);
+            }
+            if (e instanceof DNSDBException) {
+                throw (DNSDBException) e;
+            }
+            Thread.currentThread().interrupt();
+            throw new DNSDBException(e);
+        }
+        return ticket;
+    }
+
+    private synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    synchronized void release(Ticket ticket) {
+        active--;
+        running.merge(ticket.priority, -1, Integer::sum);
+        dispatch();
+    }
+
+    private void dispatch() {
+        boolean granted = false;
+        while (active < concurrency) {
+            Ticket next = null;
+            for (Priority p : Priority.values()) {
+                if (p == Priority.BULK && concurrency - active <= reserve) {
+                    break;
+                }
+                if (!queues.get(p).isEmpty()) {
+                    next = queues.get(p).poll();
+                    break;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            next.granted = true;
+            virtualTimes.put(next.priority, next.tag);
+            running.merge(next.priority, 1, Integer::sum);
+            active++;
+            granted = true;
+        }
+        if (granted) {
+            notifyAll();
+        }
+        // Forget the tags of idle tenants once the class has no work, so the map does not grow without bound.
+        for (Priority p : Priority.values()) {
+            if (queues.get(p).isEmpty() && running.get(p) == 0) {
+                lastTags.get(p).clear();
+            }
+        }
+    }
+
+    /**
+     * A view of the client whose queries are admitted by the scheduler.
+     */
+    private final class Scheduled extends QueryExecutor implements Client {
+        private final Priority priority;
+        private final String tenant;
+
+        Scheduled(Priority priority, String tenant) {
+            this.priority = priority;
+            this.tenant = tenant;
+        }
+
+        @Override
+        public boolean ping() {
+            return client.ping();
+        }
+
+        @Override
+        public JSONObject rateLimit() {
+            return client.rateLimit();
+        }
+
+        @Override
+        public Query lookupRRSet(String type, String value) {
+            return new Query(this, "lookup/rrset/" + type, value);
+        }
+
+        @Override
+        public Query lookupRData(String type, String value) {
+            return new Query(this, "lookup/rdata/" + type, value);
+        }
+
+        @Override
+        public Query summarizeRRSet(String type, String value) {
+            return new Query(this, "summarize/rrset/" + type, value);
+        }
+
+        @Override
+        public Query summarizeRData(String type, String value) {
+            return new Query(this, "summarize/rdata/" + type, value);
+        }
+
+        @Override
+        public Query flex(String method, String key, String value) {
+            return new Query(this, method + "/" + key, value);
+        }
+
+        @Override
+        String prefix() {
+            return executor.prefix();
+        }
+
+        @Override
+        HttpRequest buildRequest(URI uri) {
+            return executor.buildRequest(uri);
+        }
+
+        @Override
+        InputStream open(URI uri, Deadline deadline) {
+            Ticket ticket = acquire(priority, tenant, deadline);
+            InputStream body;
+            try {
+                body = executor.open(uri, deadline);
+            } catch (RuntimeException e) {
+                release(ticket);
+                throw e;
+            }
+            return new ReleasingInputStream(body, () -> release(ticket));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live counters for a single Query. All methods may be called from any thread while the query is streaming.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see Query#stats()
+ */
+public class QueryStats {
+    final AtomicLong rows = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLong producerWaits = new AtomicLong();
+    final AtomicLong consumerWaits = new AtomicLong();
+    final AtomicLong filterHits = new AtomicLong();
+    final AtomicLong filterMisses = new AtomicLong();
+    private final AtomicLong bufferHighWater = new AtomicLong();
+    private volatile RingBuffer<?> buffer;
+
+    QueryStats() {}
+
+    /**
+     * @return The number of result rows returned to the caller so far.
+     */
+    public long rows() {
+        return rows.get();
+    }
+
+    /**
+     * @return The number of response body bytes read from the server so far.
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return The capacity of the read-ahead buffer, or 0 if read-ahead is not in use.
+     */
+    public int bufferCapacity() {
+        RingBuffer<?> b = buffer;
+        return b == null ? 0 : b.capacity();
+    }
+
+    /**
+     * @return The number of messages currently waiting in the read-ahead buffer.
+     */
+    public int bufferOccupancy() {
+        RingBuffer<?> b = buffer;
+        return b == null ? 0 : Math.max(0, Math.min(b.size(), b.capacity()));
+    }
+
+    /**
+     * @return The highest read-ahead buffer occupancy observed so far.
+     */
+    public long bufferHighWater() {
+        return bufferHighWater.get();
+    }
+
+    /**
+     * @return The number of times the background reader waited because the read-ahead buffer, or the parallel
+     * decoding pipeline, was full. A high value means the consumer is the bottleneck.
+     */
+    public long producerWaits() {
+        return producerWaits.get();
+    }
+
+    /**
+     * @return The number of times the consumer waited because the read-ahead buffer was empty, or the next batch was
+     * not yet decoded. A high value means the network or decoding is the bottleneck.
+     */
+    public long consumerWaits() {
+        return consumerWaits.get();
+    }
+
+    /**
+     * @return The number of result rows accepted by the query's filter.
+     */
+    public long filterHits() {
+        return filterHits.get();
+    }
+
+    /**
+     * @return The number of result rows rejected by the query's filter without being decoded.
+     */
+    public long filterMisses() {
+        return filterMisses.get();
+    }
+
+    void buffer(RingBuffer<?> buffer) {
+        this.buffer = buffer;
+    }
+
+    void occupancy(int n) {
+        if (n > bufferHighWater.get()) {
+            bufferHighWater.set(n);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("rows=%d bytes=%d buffer=%d/%d highWater=%d producerWaits=%d consumerWaits=%d "
+                        + "filterHits=%d filterMisses=%d",
+                rows(), bytes(), bufferOccupancy(), bufferCapacity(), bufferHighWater(), producerWaits(), consumerWaits(),
+                filterHits(), filterMisses());
+    }
+}
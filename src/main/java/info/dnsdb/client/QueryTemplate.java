@@ -0,0 +1,90 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.Iterator;
+
+/**
+ * An immutable set of query options for one endpoint, used to issue many lookups that differ only in the value
+ * searched for. The encoded path suffix and query string are computed once when the template is created, so
+ * producing the URI or HttpRequest for each value is a single string concatenation.
+ *
+ * Templates are obtained from a configured Query with Query.template() and are safe to share between threads.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see Query#template()
+ */
+public final class QueryTemplate {
+    private final Query prototype;
+    private final QueryExecutor client;
+    private final String endpoint;
+    private final String base;
+    private final String suffix;
+
+    QueryTemplate(Query query) {
+        // The prototype is a private copy that is never modified or streamed.
+        this.prototype = new Query(query, query.value);
+        this.client = query.client;
+        this.endpoint = query.endpoint;
+        this.base = client.prefix() + endpoint;
+        this.suffix = prototype.suffix();
+    }
+
+    /**
+     * Build the request URI for a value.
+     *
+     * @param value Value to search for, as would be passed to the Client method that created the template's query.
+     * @return The URI of the request.
+     */
+    public URI uri(String value) {
+        return URI.create(base + HTTPClient.encodeValue(endpoint, value) + suffix);
+    }
+
+    /**
+     * Build the HTTP request for a value, including the API key and content negotiation headers.
+     *
+     * @param value Value to search for, as would be passed to the Client method that created the template's query.
+     * @return The HttpRequest for the lookup.
+     */
+    public HttpRequest request(String value) {
+        return client.buildRequest(uri(value));
+    }
+
+    /**
+     * Create a Query for a value with the options of this template. The returned Query may be further modified
+     * without affecting the template.
+     *
+     * @param value Value to search for, as would be passed to the Client method that created the template's query.
+     * @return A new Query object.
+     */
+    public Query query(String value) {
+        return new Query(prototype, value);
+    }
+
+    /**
+     * Execute a lookup for a value with the options of this template.
+     *
+     * @param value Value to search for, as would be passed to the Client method that created the template's query.
+     * @return An Iterator of JSON objects formatted per the query endpoint used.
+     * @see Query#stream()
+     */
+    public Iterator<JSONObject> stream(String value) {
+        return query(value).stream();
+    }
+}
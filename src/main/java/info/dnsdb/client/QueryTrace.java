@@ -0,0 +1,211 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.net.URI;
+
+/**
+ * Tracks one execution of a query: its terminal condition, and JDK Flight Recorder events for its start, the begin
+ * message, the first row and its completion. The events carry the endpoint, the rrtype and the URI of the request,
+ * which holds no credentials since the API key is sent as a header. Creating and committing events costs little more
+ * than a field check while recording is disabled.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see <a href="https://docs.oracle.com/en/java/javase/11/docs/api/jdk.jfr/jdk/jfr/package-summary.html">JDK Flight
+ * Recorder.</a>
+ */
+final class QueryTrace {
+    @Name("info.dnsdb.QueryStart")
+    @Label("DNSDB Query Start")
+    @Category("DNSDB")
+    @Description("A query request is sent")
+    static final class StartEvent extends Event {
+        @Label("Endpoint")
+        String endpoint;
+        @Label("RRType")
+        String rrtype;
+        @Label("URI")
+        String uri;
+    }
+
+    @Name("info.dnsdb.QueryBegin")
+    @Label("DNSDB Query Begin")
+    @Category("DNSDB")
+    @Description("Time from sending a query to receiving its begin message")
+    @StackTrace(false)
+    static final class BeginEvent extends Event {
+        @Label("Endpoint")
+        String endpoint;
+        @Label("RRType")
+        String rrtype;
+        @Label("URI")
+        String uri;
+    }
+
+    @Name("info.dnsdb.QueryFirstRow")
+    @Label("DNSDB Query First Row")
+    @Category("DNSDB")
+    @Description("Time from sending a query to receiving its first result")
+    @StackTrace(false)
+    static final class FirstRowEvent extends Event {
+        @Label("Endpoint")
+        String endpoint;
+        @Label("RRType")
+        String rrtype;
+        @Label("URI")
+        String uri;
+    }
+
+    @Name("info.dnsdb.Query")
+    @Label("DNSDB Query")
+    @Category("DNSDB")
+    @Description("A query from sending its request to its terminal condition")
+    @StackTrace(false)
+    static final class QueryEvent extends Event {
+        @Label("Endpoint")
+        String endpoint;
+        @Label("RRType")
+        String rrtype;
+        @Label("URI")
+        String uri;
+        @Label("Rows")
+        long rows;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Condition")
+        @Description("The terminal SAF condition, or error if the query ended with an exception")
+        String cond;
+    }
+
+    private static final String COND_ERROR = "error";
+
+    private final String endpoint;
+    private final String rrtype;
+    private final URI uri;
+    private final QueryStats stats;
+    private final long startBytes;
+    private final BeginEvent begin = new BeginEvent();
+    private final FirstRowEvent firstRow = new FirstRowEvent();
+    private final QueryEvent query = new QueryEvent();
+    private long rows;
+    private boolean done;
+    private volatile QueryResult result;
+
+    QueryTrace(String endpoint, String rrtype, URI uri, QueryStats stats) {
+        this.endpoint = endpoint;
+        this.rrtype = rrtype;
+        this.uri = uri;
+        this.stats = stats;
+        this.startBytes = stats.bytes();
+
+        StartEvent start = new StartEvent();
+        if (start.shouldCommit()) {
+            start.endpoint = endpoint;
+            start.rrtype = rrtype;
+            start.uri = uri.toString();
+            start.commit();
+        }
+        begin.begin();
+        firstRow.begin();
+        query.begin();
+    }
+
+    /**
+     * Record the begin message.
+     */
+    void begun() {
+        begin.end();
+        if (begin.shouldCommit()) {
+            begin.endpoint = endpoint;
+            begin.rrtype = rrtype;
+            begin.uri = uri.toString();
+            begin.commit();
+        }
+    }
+
+    /**
+     * Count a result row delivered to the caller.
+     */
+    void row() {
+        if (rows++ == 0) {
+            firstRow.end();
+            if (firstRow.shouldCommit()) {
+                firstRow.endpoint = endpoint;
+                firstRow.rrtype = rrtype;
+                firstRow.uri = uri.toString();
+                firstRow.commit();
+            }
+        }
+    }
+
+    /**
+     * Record the terminal condition sent by the server.
+     *
+     * @param cond One of succeeded, limited or failed.
+     * @param message The msg sent with the condition, or null.
+     */
+    void result(String cond, String message) {
+        result = QueryResult.of(cond, message, rows);
+        end(cond);
+    }
+
+    /**
+     * Record that the query ended with an exception or was closed before its terminal condition. Has no effect after
+     * result().
+     */
+    void failed() {
+        end(COND_ERROR);
+    }
+
+    private synchronized void end(String cond) {
+        if (done) {
+            return;
+        }
+        done = true;
+        query.end();
+        if (query.shouldCommit()) {
+            query.endpoint = endpoint;
+            query.rrtype = rrtype;
+            query.uri = uri.toString();
+            query.rows = rows;
+            query.bytes = stats.bytes() - startBytes;
+            query.cond = cond;
+            query.commit();
+        }
+    }
+
+    /**
+     * @return The URI of the request.
+     */
+    URI uri() {
+        return uri;
+    }
+
+    /**
+     * @return The terminal condition, or null before it was received.
+     */
+    QueryResult result() {
+        return result;
+    }
+}
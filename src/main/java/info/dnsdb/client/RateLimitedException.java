@@ -0,0 +1,38 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+/**
+ * Exception raised when the DNSDB server refuses a query with status 429 because the API key has exceeded its
+ * concurrent connection limit or its quota.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#service-limits-and-quotas">Service limits and quotas.</a>
+ */
+public class RateLimitedException extends HTTPStatusException {
+    static final int TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Default class constructor.
+     */
+    public RateLimitedException() {
+        super(TOO_MANY_REQUESTS);
+    }
+
+    @Override
+    public boolean isOverload() {
+        return true;
+    }
+}
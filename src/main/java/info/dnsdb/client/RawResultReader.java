@@ -0,0 +1,176 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Applies the SAF state machine to raw response lines, positioning a RowScanner on each result row without decoding
+ * it. Only messages carrying a condition other than ongoing are decoded, to raise the usual exceptions.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see ResultIterator
+ * @see <a href="https://docs.dnsdb.info/dnsdb-saf-protocol/">Farsight Streaming API Framing Protocol.</a>
+ */
+final class RawResultReader implements AutoCloseable {
+    private final LineReader reader;
+    private final RowScanner scanner = new RowScanner();
+    private final QueryStats stats;
+    private final boolean disableLimitedException;
+    private final RowFilter filter;
+    private final QueryTrace trace;
+    private boolean done;
+
+    RawResultReader(InputStream body, QueryStats stats, boolean disableLimitedException, RowFilter filter,
+                    QueryTrace trace) {
+        this.reader = new LineReader(body, stats);
+        this.stats = stats;
+        this.disableLimitedException = disableLimitedException;
+        this.filter = filter;
+        this.trace = trace;
+    }
+
+    /**
+     * Read the begin message.
+     *
+     * @throws TruncatedResponseException If the response ends first.
+     * @throws UnexpectedCondException If the first message is not begin.
+     */
+    void begin() {
+        try {
+            if (!readLine()) {
+                throw new TruncatedResponseException("Response ended before the begin condition");
+            }
+            if (!scanner.condIs(Query.COND_BEGIN)) {
+                throw new UnexpectedCondException(StreamLineSource.decode(reader.line()));
+            }
+        } catch (RuntimeException e) {
+            finish();
+            trace.failed();
+            throw e;
+        }
+        trace.begun();
+    }
+
+    /**
+     * Advance to the next result row accepted by the filter.
+     *
+     * @return True if the scanner is positioned on a row, false once the query has completed.
+     */
+    boolean advance() {
+        if (done) {
+            return false;
+        }
+
+        try {
+            while (true) {
+                if (!readLine()) {
+                    throw new TruncatedResponseException("Response ended without a terminal condition");
+                }
+
+                if (scanner.condIs("") || scanner.condIs(Query.COND_ONGOING)) {
+                    if (!scanner.hasObj()) {
+                        continue;
+                    }
+                    if (filter == null) {
+                        trace.row();
+                        return true;
+                    }
+                    if (filter.test(scanner)) {
+                        stats.filterHits.incrementAndGet();
+                        trace.row();
+                        return true;
+                    }
+                    stats.filterMisses.incrementAndGet();
+                } else if (scanner.condIs(Query.COND_SUCCEEDED)) {
+                    finish();
+                    result(Query.COND_SUCCEEDED);
+                    return false;
+                } else if (scanner.condIs(Query.COND_LIMITED)) {
+                    JSONObject line = result(Query.COND_LIMITED);
+                    if (disableLimitedException) {
+                        finish();
+                        return false;
+                    }
+                    throw new QueryLimitedException(line);
+                } else if (scanner.condIs(Query.COND_FAILED)) {
+                    throw new QueryFailedException(result(Query.COND_FAILED));
+                } else {
+                    throw new UnexpectedCondException(StreamLineSource.decode(reader.line()));
+                }
+            }
+        } catch (RuntimeException e) {
+            finish();
+            trace.failed();
+            throw e;
+        }
+    }
+
+    /**
+     * Report the terminal condition of the current line. Terminal lines are rare, so they are decoded for the msg.
+     */
+    private JSONObject result(String cond) {
+        JSONObject line = StreamLineSource.decode(reader.line());
+        trace.result(cond, line.optString("msg", null));
+        return line;
+    }
+
+    private boolean readLine() {
+        try {
+            if (!reader.next()) {
+                return false;
+            }
+        } catch (IOException e) {
+            throw new TruncatedResponseException(e);
+        }
+        scanner.scan(reader.buffer(), reader.start(), reader.end());
+        return true;
+    }
+
+    /**
+     * @return The scanner, positioned on the current row after advance() returned true.
+     */
+    RowScanner scanner() {
+        return scanner;
+    }
+
+    /**
+     * @return The terminal condition, or null before it was received.
+     */
+    QueryResult result() {
+        return trace.result();
+    }
+
+    /**
+     * @return The reader, positioned on the line of the current row.
+     */
+    LineReader reader() {
+        return reader;
+    }
+
+    private void finish() {
+        done = true;
+        reader.close();
+    }
+
+    @Override
+    public void close() {
+        finish();
+        trace.failed();
+    }
+}
@@ -0,0 +1,161 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LineSource that reads and decodes messages from another source on a background thread, buffering up to a fixed
+ * number of decoded messages ahead of the consumer in a lock-free ring buffer. Network I/O and JSON decoding thereby
+ * overlap with the consumer's processing of earlier rows.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ */
+class ReadAheadLineSource implements LineSource {
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final Object END = new Object();
+
+    private final LineSource source;
+    private final RingBuffer<Object> buffer;
+    private final QueryStats stats;
+    private final Thread reader;
+    private volatile Thread consumer;
+    private volatile boolean producerParked;
+    private volatile boolean closed;
+    private boolean done;
+
+    /**
+     * @param source Source read on the background thread.
+     * @param depth Number of messages to buffer, rounded up to a power of two.
+     * @param stats Counters updated with buffer activity.
+     */
+    ReadAheadLineSource(LineSource source, int depth, QueryStats stats) {
+        this.source = source;
+        this.buffer = new RingBuffer<>(depth);
+        this.stats = stats;
+        stats.buffer(buffer);
+
+        this.reader = new Thread(this::read, "dnsdb-read-ahead");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    private void read() {
+        try {
+            JSONObject line;
+            do {
+                line = source.next();
+                put(line == null ? END : line);
+            } while (line != null && !closed);
+        } catch (DNSDBException e) {
+            put(e);
+        } catch (RuntimeException e) {
+            put(new DNSDBException(e));
+        }
+    }
+
+    private void put(Object item) {
+        int spins = 0;
+        while (!buffer.offer(item)) {
+            if (closed) {
+                return;
+            }
+            if (spins < SPINS) {
+                spins++;
+                Thread.onSpinWait();
+                continue;
+            }
+            if (spins++ == SPINS) {
+                stats.producerWaits.incrementAndGet();
+            }
+            producerParked = true;
+            if (!buffer.offer(item)) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+                producerParked = false;
+                continue;
+            }
+            producerParked = false;
+            break;
+        }
+        stats.occupancy(buffer.size());
+
+        Thread c = consumer;
+        if (c != null) {
+            LockSupport.unpark(c);
+        }
+    }
+
+    @Override
+    public JSONObject next() {
+        if (done) {
+            return null;
+        }
+
+        Object item = take();
+        if (producerParked) {
+            LockSupport.unpark(reader);
+        }
+
+        if (item == END) {
+            done = true;
+            return null;
+        }
+        if (item instanceof DNSDBException) {
+            done = true;
+            throw (DNSDBException) item;
+        }
+        return (JSONObject) item;
+    }
+
+    private Object take() {
+        Object item = buffer.poll();
+        if (item != null) {
+            return item;
+        }
+
+        int spins = 0;
+        while ((item = buffer.poll()) == null) {
+            if (closed) {
+                return END;
+            }
+            if (spins < SPINS) {
+                spins++;
+                Thread.onSpinWait();
+                continue;
+            }
+            if (spins++ == SPINS) {
+                stats.consumerWaits.incrementAndGet();
+            }
+            consumer = Thread.currentThread();
+            if ((item = buffer.poll()) != null) {
+                break;
+            }
+            LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        consumer = null;
+        return item;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        source.close();
+        LockSupport.unpark(reader);
+    }
+}
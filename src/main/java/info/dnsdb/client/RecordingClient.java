@@ -0,0 +1,299 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A Client that sends queries through another client and records each one to an archive: its URI, the status and
+ * time of its response, and the raw response body with the time each chunk arrived. API keys are sent in a header and
+ * are never recorded. The archive can be served by ReplayClient for deterministic, offline runs.
+ *
+ * The archive is a gzip-compressed sequence of frames. Frames of concurrent queries are interleaved as they happen, so
+ * recording uses constant memory regardless of response sizes. The archive is complete once the client is closed.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see ReplayClient
+ */
+public class RecordingClient extends QueryExecutor implements Client, AutoCloseable {
+    static final int MAGIC = 0x444e5352;
+    static final int VERSION = 1;
+    static final byte OPEN = 1;
+    static final byte DATA = 2;
+    static final byte END = 3;
+    static final int STATUS_FAILED = -1;
+
+    private final Client client;
+    private final QueryExecutor executor;
+    private final DataOutputStream out;
+    private final AtomicInteger ids = new AtomicInteger();
+    private boolean closed;
+
+    /**
+     * Class constructor recording the queries of an HTTPClient.
+     *
+     * @param client Client sending the queries.
+     * @param archive File to write, replacing any existing file.
+     * @throws DNSDBException If the archive cannot be created.
+     */
+    public RecordingClient(HTTPClient client, Path archive) {
+        this(client, client, archive);
+    }
+
+    /**
+     * Class constructor recording the queries of a PooledClient.
+     *
+     * @param client Client sending the queries.
+     * @param archive File to write, replacing any existing file.
+     * @throws DNSDBException If the archive cannot be created.
+     */
+    public RecordingClient(PooledClient client, Path archive) {
+        this(client, client, archive);
+    }
+
+    private RecordingClient(Client client, QueryExecutor executor, Path archive) {
+        this.client = client;
+        this.executor = executor;
+        try {
+            this.out = new DataOutputStream(new GZIPOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(archive)), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        } catch (IOException e) {
+            throw new DNSDBException(e);
+        }
+    }
+
+    /**
+     * Calls ping on the underlying client. Not recorded.
+     *
+     * @return The result of the underlying client.
+     */
+    @Override
+    public boolean ping() {
+        return client.ping();
+    }
+
+    /**
+     * Calls rateLimit on the underlying client. Not recorded.
+     *
+     * @return The result of the underlying client.
+     */
+    @Override
+    public JSONObject rateLimit() {
+        return client.rateLimit();
+    }
+
+    /**
+     * Creates a recorded Query object for a lookup RRSet search.
+     *
+     * @param type One of TYPE_NAME or TYPE_IP.
+     * @param value A domain name with or without wildcards or a hex-encoded raw rrname string.
+     * @return A Query object set up with the desired parameters.
+     * @see HTTPClient#lookupRRSet(String, String)
+     */
+    @Override
+    public Query lookupRRSet(String type, String value) {
+        return new Query(this, "lookup/rrset/" + type, value);
+    }
+
+    /**
+     * Creates a recorded Query object for a lookup RData search.
+     *
+     * @param type One of TYPE_NAME, TYPE_IP, or TYPE_RAW.
+     * @param value A domain name with or without wildcards, an IP address with or without CIDR notation, or a hex-encoded raw rrname string.
+     * @return A Query object set up with the desired parameters.
+     * @see HTTPClient#lookupRData(String, String)
+     */
+    @Override
+    public Query lookupRData(String type, String value) {
+        return new Query(this, "lookup/rdata/" + type, value);
+    }
+
+    /**
+     * Creates a recorded Query object for a summarize RRSet search.
+     *
+     * @param type One of TYPE_NAME or TYPE_RAW.
+     * @param value A domain name with or without wildcards or a hex-encoded raw rrname string.
+     * @return A Query object set up with the desired parameters.
+     * @see HTTPClient#summarizeRRSet(String, String)
+     */
+    @Override
+    public Query summarizeRRSet(String type, String value) {
+        return new Query(this, "summarize/rrset/" + type, value);
+    }
+
+    /**
+     * Creates a recorded Query object for a summarize RData search.
+     *
+     * @param type One of TYPE_NAME, TYPE_IP, or TYPE_RAW.
+     * @param value A domain name with or without wildcards, an IP address with or without CIDR notation, or a hex-encoded raw rrname string.
+     * @return A Query object set up with the desired parameters.
+     * @see HTTPClient#summarizeRData(String, String)
+     */
+    @Override
+    public Query summarizeRData(String type, String value) {
+        return new Query(this, "summarize/rdata/" + type, value);
+    }
+
+    /**
+     * Creates a recorded Query object for a flexible search.
+     *
+     * @param method One of METHOD_REGEX or METHOD_GLOB.
+     * @param key One of KEY_RRNAMES or KEY_RDATA.
+     * @param value A regular expression or glob to search for.
+     * @return A Query object set up with the desired parameters.
+     * @see HTTPClient#flex(String, String, String)
+     */
+    @Override
+    public Query flex(String method, String key, String value) {
+        return new Query(this, method + "/" + key, value);
+    }
+
+    @Override
+    String prefix() {
+        return executor.prefix();
+    }
+
+    @Override
+    HttpRequest buildRequest(URI uri) {
+        return executor.buildRequest(uri);
+    }
+
+    @Override
+    InputStream open(URI uri, Deadline deadline) {
+        int id = ids.incrementAndGet();
+        String path = uri.toString().substring(executor.prefix().length());
+        long start = System.nanoTime();
+        InputStream body;
+        try {
+            body = executor.open(uri, deadline);
+        } catch (DNSDBException e) {
+            int status = e instanceof HTTPStatusException ? ((HTTPStatusException) e).statusCode() : STATUS_FAILED;
+            writeOpen(id, path, System.nanoTime() - start, status);
+            writeEnd(id, System.nanoTime() - start);
+            throw e;
+        }
+        writeOpen(id, path, System.nanoTime() - start, 200);
+
+        return new FilterInputStream(body) {
+            private boolean ended;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    writeData(id, System.nanoTime() - start, b, off, n);
+                } else if (n < 0) {
+                    end();
+                }
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    end();
+                }
+            }
+
+            private synchronized void end() {
+                if (!ended) {
+                    ended = true;
+                    writeEnd(id, System.nanoTime() - start);
+                }
+            }
+        };
+    }
+
+    private synchronized void writeOpen(int id, String path, long nanos, int status) {
+        try {
+            if (!closed) {
+                out.writeByte(OPEN);
+                out.writeInt(id);
+                out.writeUTF(path);
+                out.writeLong(System.currentTimeMillis());
+                out.writeLong(nanos);
+                out.writeInt(status);
+            }
+        } catch (IOException e) {
+            throw new DNSDBException(e);
+        }
+    }
+
+    private synchronized void writeData(int id, long nanos, byte[] b, int off, int len) {
+        try {
+            if (!closed) {
+                out.writeByte(DATA);
+                out.writeInt(id);
+                out.writeLong(nanos);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        } catch (IOException e) {
+            throw new DNSDBException(e);
+        }
+    }
+
+    private synchronized void writeEnd(int id, long nanos) {
+        try {
+            if (!closed) {
+                out.writeByte(END);
+                out.writeInt(id);
+                out.writeLong(nanos);
+            }
+        } catch (IOException e) {
+            throw new DNSDBException(e);
+        }
+    }
+
+    /**
+     * Finish the archive. Queries still streaming are recorded up to this point, without an end frame.
+     *
+     * @throws DNSDBException If the archive cannot be written.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DNSDBException(e);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A Client serving the responses recorded by RecordingClient, without network access. Queries are matched by their
+ * URI and streamed through the normal Query machinery, so that pipelines can be benchmarked on production-shaped data
+ * deterministically. Recorded error statuses are raised as the same exceptions.
+ *
+ * If a URI was recorded several times its responses are served in recorded order, starting over after the last. By
+ * default responses are served as fast as they are read; with timed(true) the recorded time to the response and
+ * between chunks is reproduced.
+ *
+ * The archive is loaded into memory when the client is created. The client is thread-safe.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see RecordingClient
+ */
+public class ReplayClient extends QueryExecutor implements Client {
+    private static final String PREFIX = HTTPClient.DEFAULT_SERVER + HTTPClient.PREFIX;
+
+    private final Map<String, Responses> responses = new HashMap<>();
+    private volatile boolean timed;
+
+    /**
+     * A recorded response.
+     */
+    private static final class Response {
+        final int status;
+        final long headersNanos;
+        final List<long[]> chunks = new ArrayList<>();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] body;
+
+        Response(int status, long headersNanos) {
+            this.status = status;
+            this.headersNanos = headersNanos;
+        }
+    }
+
+    private static final class Responses {
+        final List<Response> list = new ArrayList<>();
+        final AtomicInteger next = new AtomicInteger();
+
+        Response next() {
+            return list.get(Math.floorMod(next.getAndIncrement(), list.size()));
+        }
+    }
+
+    /**
+     * Class constructor loading an archive.
+     *
+     * @param archive Archive written by RecordingClient.
+     * @throws DNSDBException If the archive cannot be read or is invalid.
+     */
+    public ReplayClient(Path archive) {
+        Map<Integer, Response> open = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+                new BufferedInputStream(Files.newInputStream(archive)), 1 << 16))) {
+            if (in.readInt() != RecordingClient.MAGIC || in.readInt() != RecordingClient.VERSION) {
+                throw new DNSDBException("Not a recording archive: " + archive);
+            }
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                int id = in.readInt();
+                if (type == RecordingClient.OPEN) {
+                    String path = in.readUTF();
+                    in.readLong();
+                    long headersNanos = in.readLong();
+                    Response r = new Response(in.readInt(), headersNanos);
+                    open.put(id, r);
+                    responses.computeIfAbsent(path, k -> new Responses()).list.add(r);
+                } else if (type == RecordingClient.DATA) {
+                    long nanos = in.readLong();
+                    byte[] b = new byte[in.readInt()];
+                    in.readFully(b);
+                    Response r = open.get(id);
+                    if (r == null) {
+                        throw new DNSDBException("Invalid frame in recording archive: " + archive);
+                    }
+                    r.buffer.write(b);
+                    r.chunks.add(new long[]{r.buffer.size(), nanos});
+                } else if (type == RecordingClient.END) {
+                    in.readLong();
+                    open.remove(id);
+                } else {
+                    throw new DNSDBException("Invalid frame in recording archive: " + archive);
+                }
+            }
+            for (Responses rs : responses.values()) {
+                for (Response r : rs.list) {
+                    r.body = r.buffer.toByteArray();
+                    r.buffer = null;
+                }
+            }
+        } catch (EOFException e) {
+            throw new DNSDBException("Truncated recording archive: " + archive);
+        } catch (IOException e) {
+            throw new DNSDBException(e);
+        }
+    }
+
+    /**
+     * Reproduce the recorded timing of responses. The default is to serve them as fast as they are read.
+     *
+     * @param timed True to reproduce timing.
+     * @return The ReplayClient object for further use in the fluent API pattern.
+     */
+    public ReplayClient timed(boolean timed) {
+        this.timed = timed;
+        return this;
+    }
+
+    /**
+     * @return The number of recorded responses.
+     */
+    public int size() {
+        return responses.values().stream().mapToInt(r -> r.list.size()).sum();
+    }
+
+    /**
+     * Always succeeds.
+     *
+     * @return True.
+     */
+    @Override
+    public boolean ping() {
+        return true;
+    }
+
+    /**
+     * Replayed queries have no quota.
+     *
+     * @return A JSONObject in the output format of the rate_limit endpoint, reporting an unlimited quota.
+     */
+    @Override
+    public JSONObject rateLimit() {
+        return new JSONObject().put("rate", new JSONObject()
+                .put("limit", "unlimited").put("remaining", "unlimited").put("reset", "n/a"));
+    }
+
+    /**
+     * Creates a Query object for a recorded lookup RRSet search.
+     *
+     * @param type One of TYPE_NAME or TYPE_IP.
+     * @param value A domain name with or without wildcards or a hex-encoded raw rrname string.
+     * @return A Query object set up with the desired parameters.
+     * @see HTTPClient#lookupRRSet(String, String)
+     */
+    @Override
+    public Query lookupRRSet(String type, String value) {
+        return new Query(this, "lookup/rrset/" + type, value);
+    }
+
+    /**
+     * Creates a Query object for a recorded lookup RData search.
+     *
+     * @param type One of TYPE_NAME, TYPE_IP, or TYPE_RAW.
+     * @param value A domain name with or without wildcards, an IP address with or without CIDR notation, or a hex-encoded raw rrname string.
+     * @return A Query object set up with the desired parameters.
+     * @see HTTPClient#lookupRData(String, String)
+     */
+    @Override
+    public Query lookupRData(String type, String value) {
+        return new Query(this, "lookup/rdata/" + type, value);
+    }
+
+    /**
+     * Creates a recorded Query object for a summarize RRSet search.
+     *
+     * @param type One of TYPE_NAME or TYPE_RAW.
+     * @param value A domain name with or without wildcards or a hex-encoded raw rrname string.
+     * @return A Query object set up with the desired parameters.
+     * @see HTTPClient#summarizeRRSet(String, String)
+     */
+    @Override
+    public Query summarizeRRSet(String type, String value) {
+        return new Query(this, "summarize/rrset/" + type, value);
+    }
+
+    /**
+     * Creates a recorded Query object for a summarize RData search.
+     *
+     * @param type One of TYPE_NAME, TYPE_IP, or TYPE_RAW.
+     * @param value A domain name with or without wildcards, an IP address with or without CIDR notation, or a hex-encoded raw rrname string.
+     * @return A Query object set up with the desired parameters.
+     * @see HTTPClient#summarizeRData(String, String)
+     */
+    @Override
+    public Query summarizeRData(String type, String value) {
+        return new Query(this, "summarize/rdata/" + type, value);
+    }
+
+    /**
+     * Creates a Query object for a recorded flexible search.
+     *
+     * @param method One of METHOD_REGEX or METHOD_GLOB.
+     * @param key One of KEY_RRNAMES or KEY_RDATA.
+     * @param value A regular expression or glob to search for.
+     * @return A Query object set up with the desired parameters.
+     * @see HTTPClient#flex(String, String, String)
+     */
+    @Override
+    public Query flex(String method, String key, String value) {
+        return new Query(this, method + "/" + key, value);
+    }
+
+    @Override
+    String prefix() {
+        return PREFIX;
+    }
+
+    @Override
+    HttpRequest buildRequest(URI uri) {
+        return HttpRequest.newBuilder(uri).GET().build();
+    }
+
+    /**
+     * @throws DNSDBException If the URI was not recorded, or with the recorded failure.
+     */
+    @Override
+    InputStream open(URI uri, Deadline deadline) {
+        String path = uri.toString().substring(PREFIX.length());
+        Responses rs = responses.get(path);
+        if (rs == null) {
+            throw new DNSDBException("No recorded response for " + path);
+        }
+        Response r = rs.next();
+        long start = System.nanoTime();
+        if (timed) {
+            long until = start + r.headersNanos;
+            if (deadline.bounded()) {
+                until = Math.min(until, start + deadline.remainingNanos());
+            }
+            sleepUntil(until);
+        }
+        deadline.check();
+        if (r.status == RecordingClient.STATUS_FAILED) {
+            throw new DNSDBException("Recorded connection failure for " + path);
+        }
+        if (r.status != 200) {
+            throw HTTPStatusException.of(r.status);
+        }
+        return new ReplayInputStream(r, timed, start);
+    }
+
+    private static void sleepUntil(long deadline) {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DNSDBException(e);
+            }
+        }
+    }
+
+    /**
+     * Serves a recorded body chunk by chunk, each no earlier than it was recorded relative to start if timed.
+     */
+    private static final class ReplayInputStream extends InputStream {
+        private final byte[] body;
+        private final List<long[]> chunks;
+        private final boolean timed;
+        private final long start;
+        private int pos;
+        private int chunk;
+
+        ReplayInputStream(Response r, boolean timed, long start) {
+            this.body = r.body;
+            this.chunks = r.chunks;
+            this.timed = timed;
+            this.start = start;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (chunk == chunks.size()) {
+                return -1;
+            }
+            long[] c = chunks.get(chunk);
+            if (timed) {
+                sleepUntil(start + c[1]);
+            }
+            int n = Math.min(len, (int) c[0] - pos);
+            System.arraycopy(body, pos, b, off, n);
+            pos += n;
+            if (pos == c[0]) {
+                chunk++;
+            }
+            return n;
+        }
+    }
+}
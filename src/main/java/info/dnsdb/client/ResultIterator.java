@@ -0,0 +1,129 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator of result objects that applies the SAF state machine to the messages of a LineSource, following the
+ * begin message. The source is closed once a terminal condition is reached or an exception is thrown. The terminal
+ * condition is recorded in a QueryTrace; limited and failed conditions are only thrown if configured so.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see <a href="https://docs.dnsdb.info/dnsdb-saf-protocol/">Farsight Streaming API Framing Protocol.</a>
+ */
+class ResultIterator implements Iterator<JSONObject> {
+    private final LineSource source;
+    private final boolean disableLimitedException;
+    private final boolean disableFailedException;
+    private final QueryStats stats;
+    private final QueryTrace trace;
+    private boolean done;
+    private JSONObject next;
+
+    ResultIterator(LineSource source, boolean disableLimitedException, boolean disableFailedException,
+                   QueryStats stats, QueryTrace trace) {
+        this.source = source;
+        this.disableLimitedException = disableLimitedException;
+        this.disableFailedException = disableFailedException;
+        this.stats = stats;
+        this.trace = trace;
+    }
+
+    @Override
+    public boolean hasNext() {
+        getNext();
+        return !done;
+    }
+
+    @Override
+    public JSONObject next() {
+        getNext();
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        JSONObject res = next;
+        next = null;
+        trace.row();
+        stats.rows.incrementAndGet();
+        return res;
+    }
+
+    private void getNext() {
+        if (next != null || done) {
+            return;
+        }
+
+        try {
+            while (true) {
+                JSONObject line = source.next();
+                if (line == null) {
+                    throw new TruncatedResponseException("Response ended without a terminal condition");
+                }
+
+                String cond = "";
+                if (line.has("cond")) {
+                    cond = line.getString("cond");
+                }
+
+                switch (cond) {
+                    case "":
+                    case Query.COND_ONGOING:
+                        if (line.has("obj")) {
+                            next = line.getJSONObject("obj");
+                            return;
+                        }
+                        break;
+                    case Query.COND_SUCCEEDED:
+                        finish();
+                        result(cond, line);
+                        return;
+                    case Query.COND_FAILED:
+                        result(cond, line);
+                        if (disableFailedException) {
+                            finish();
+                            return;
+                        }
+                        throw new QueryFailedException(line);
+                    case Query.COND_LIMITED:
+                        result(cond, line);
+                        if (disableLimitedException) {
+                            finish();
+                            return;
+                        }
+                        throw new QueryLimitedException(line);
+                    default:
+                        throw new UnexpectedCondException(line);
+                }
+            }
+        } catch (RuntimeException e) {
+            finish();
+            trace.failed();
+            throw e;
+        }
+    }
+
+    private void result(String cond, JSONObject line) {
+        trace.result(cond, line.optString("msg", null));
+    }
+
+    private void finish() {
+        done = true;
+        source.close();
+    }
+}
@@ -0,0 +1,94 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded lock-free ring buffer for exactly one producer thread and one consumer thread. offer() and poll() never
+ * block; callers decide how to wait.
+ *
+ * @param <T> Type of the buffered elements.
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ */
+final class RingBuffer<T> {
+    private final Object[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity Minimum number of elements the buffer can hold, rounded up to a power of two.
+     */
+    RingBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Producer only: append an element.
+     *
+     * @return False if the buffer is full.
+     */
+    boolean offer(T element) {
+        long t = tail.get();
+        if (t - head.get() == slots.length) {
+            return false;
+        }
+        slots[(int) t & mask] = element;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Consumer only: remove the oldest element.
+     *
+     * @return The element, or null if the buffer is empty.
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        int i = (int) h & mask;
+        T element = (T) slots[i];
+        slots[i] = null;
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    /**
+     * @return The number of buffered elements. Exact only when called by the producer or consumer.
+     */
+    int size() {
+        long h = head.get();
+        return (int) (tail.get() - h);
+    }
+
+    /**
+     * @return The maximum number of elements the buffer can hold.
+     */
+    int capacity() {
+        return slots.length;
+    }
+}
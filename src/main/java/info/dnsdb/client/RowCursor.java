@@ -0,0 +1,175 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+/**
+ * Flyweight view over the result rows of a query, for loops that must not allocate per row:
+ *
+ * <pre>
+ * try (RowCursor cursor = query.cursor()) {
+ *     while (cursor.advance()) {
+ *         total += cursor.count();
+ *         names.add(cursor.rrname().toString());
+ *     }
+ * }
+ * </pre>
+ *
+ * The cursor reads the response in place. Accessors return primitives, or CharSequence views into a reused buffer
+ * that are only valid until the next call to advance() and must be copied, eg. with toString(), to be kept. rdata(i)
+ * reuses a single view for all indexes. Numeric fields that are absent read as 0 and string fields as null; the
+ * time fields also accept the RFC 3339 form returned with humanTime(true).
+ *
+ * Rows are scanned rather than parsed: only the fields listed here are located, and the rest of each row is skipped.
+ * Once its buffers have grown to fit the rows, a cursor allocates nothing per row. A cursor is not thread-safe.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see Query#cursor()
+ */
+public final class RowCursor implements AutoCloseable {
+    private final RawResultReader reader;
+    private final QueryStats stats;
+    private final ByteSlice rrname = new ByteSlice();
+    private final ByteSlice rrtype = new ByteSlice();
+    private final ByteSlice bailiwick = new ByteSlice();
+    private final ByteSlice rdata = new ByteSlice();
+    private RowScanner row;
+
+    RowCursor(RawResultReader reader, QueryStats stats) {
+        this.reader = reader;
+        this.stats = stats;
+    }
+
+    /**
+     * Move to the next row.
+     *
+     * @return True if the cursor is on a row, false once the query has completed.
+     * @throws DNSDBException For the same reasons as Query.stream().
+     */
+    public boolean advance() {
+        if (!reader.advance()) {
+            row = null;
+            return false;
+        }
+        row = reader.scanner();
+        stats.rows.incrementAndGet();
+        return true;
+    }
+
+    private RowScanner row() {
+        if (row == null) {
+            throw new IllegalStateException("cursor is not on a row");
+        }
+        return row;
+    }
+
+    private CharSequence string(int field, ByteSlice slice) {
+        RowScanner r = row();
+        if (!r.has(field) || !r.isString(field)) {
+            return null;
+        }
+        return slice.set(r.buffer(), r.start(field), r.end(field));
+    }
+
+    /**
+     * @return The owner name of the rrset, or null if absent.
+     */
+    public CharSequence rrname() {
+        return string(RowScanner.RRNAME, rrname);
+    }
+
+    /**
+     * @return The rrtype, or null if absent.
+     */
+    public CharSequence rrtype() {
+        return string(RowScanner.RRTYPE, rrtype);
+    }
+
+    /**
+     * @return The bailiwick, or null if absent.
+     */
+    public CharSequence bailiwick() {
+        return string(RowScanner.BAILIWICK, bailiwick);
+    }
+
+    /**
+     * @return The earliest sensor observation in seconds since the epoch, or 0.
+     */
+    public long timeFirst() {
+        return row().longValue(RowScanner.TIME_FIRST, 0);
+    }
+
+    /**
+     * @return The latest sensor observation in seconds since the epoch, or 0.
+     */
+    public long timeLast() {
+        return row().longValue(RowScanner.TIME_LAST, 0);
+    }
+
+    /**
+     * @return The earliest zone file observation in seconds since the epoch, or 0.
+     */
+    public long zoneTimeFirst() {
+        return row().longValue(RowScanner.ZONE_TIME_FIRST, 0);
+    }
+
+    /**
+     * @return The latest zone file observation in seconds since the epoch, or 0.
+     */
+    public long zoneTimeLast() {
+        return row().longValue(RowScanner.ZONE_TIME_LAST, 0);
+    }
+
+    /**
+     * @return The number of observations, or 0.
+     */
+    public long count() {
+        return row().longValue(RowScanner.COUNT, 0);
+    }
+
+    /**
+     * @return The number of rdata values: the length of the rdata array, or 1 for a single string.
+     */
+    public int rdataCount() {
+        return row().rdataCount();
+    }
+
+    /**
+     * @param i Index of the rdata value, less than rdataCount().
+     * @return The rdata value, in a view shared by all indexes.
+     */
+    public CharSequence rdata(int i) {
+        RowScanner r = row();
+        if (i < 0 || i >= r.rdataCount()) {
+            throw new IndexOutOfBoundsException(i);
+        }
+        return rdata.set(r.buffer(), r.rdataStart(i), r.rdataEnd(i));
+    }
+
+    /**
+     * @return The terminal condition once advance() has returned false, otherwise null.
+     */
+    public QueryResult result() {
+        return reader.result();
+    }
+
+    /**
+     * Release the response. Rows not yet read are discarded.
+     */
+    @Override
+    public void close() {
+        row = null;
+        reader.close();
+    }
+}
@@ -0,0 +1,299 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * A predicate on result rows that is evaluated against the raw bytes of each response line, before the row is decoded
+ * into a JSONObject. Rows rejected by a filter are never materialized, so selective filters save most of the decoding
+ * cost. Filters are built with the static methods of this class and combined with and(), or() and negate(), eg.
+ *
+ * RowFilter.rrtype("A", "AAAA").and(RowFilter.bailiwickSuffix("example.com")).and(RowFilter.timeLastAfter(t))
+ *
+ * Name comparisons ignore ASCII case and a trailing dot. Time comparisons use time_first and time_last, or the zone
+ * times for rows that were only observed in zone files. Filters are immutable and may be shared between queries.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see Query#filter(RowFilter)
+ * @see QueryStats#filterHits()
+ */
+public abstract class RowFilter {
+    RowFilter() {}
+
+    /**
+     * @return True if the row positioned in the scanner is accepted.
+     */
+    abstract boolean test(RowScanner row);
+
+    /**
+     * @param other Another filter.
+     * @return A filter accepting rows accepted by both filters. The other filter is only evaluated if this one accepts.
+     */
+    public RowFilter and(RowFilter other) {
+        RowFilter self = this;
+        return new RowFilter() {
+            @Override
+            boolean test(RowScanner row) {
+                return self.test(row) && other.test(row);
+            }
+        };
+    }
+
+    /**
+     * @param other Another filter.
+     * @return A filter accepting rows accepted by either filter. The other filter is only evaluated if this one rejects.
+     */
+    public RowFilter or(RowFilter other) {
+        RowFilter self = this;
+        return new RowFilter() {
+            @Override
+            boolean test(RowScanner row) {
+                return self.test(row) || other.test(row);
+            }
+        };
+    }
+
+    /**
+     * @return A filter accepting the rows this one rejects.
+     */
+    public RowFilter negate() {
+        RowFilter self = this;
+        return new RowFilter() {
+            @Override
+            boolean test(RowScanner row) {
+                return !self.test(row);
+            }
+        };
+    }
+
+    /**
+     * @param rrtypes Accepted rrtypes, eg. "A" or "CNAME".
+     * @return A filter accepting rows of any of the rrtypes.
+     */
+    public static RowFilter rrtype(String... rrtypes) {
+        byte[][] types = new byte[rrtypes.length][];
+        for (int i = 0; i < rrtypes.length; i++) {
+            types[i] = rrtypes[i].toUpperCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+        }
+        return new RowFilter() {
+            @Override
+            boolean test(RowScanner row) {
+                if (!row.has(RowScanner.RRTYPE)) {
+                    return false;
+                }
+                for (byte[] t : types) {
+                    if (equalsIgnoreCase(row, row.start(RowScanner.RRTYPE), row.end(RowScanner.RRTYPE), t)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param suffix Domain name, eg. "example.com".
+     * @return A filter accepting rows whose rrname is the name or a subdomain of it.
+     */
+    public static RowFilter rrnameSuffix(String suffix) {
+        return nameSuffix(RowScanner.RRNAME, suffix);
+    }
+
+    /**
+     * @param suffix Domain name, eg. "example.com".
+     * @return A filter accepting rows whose bailiwick is the name or a subdomain of it.
+     */
+    public static RowFilter bailiwickSuffix(String suffix) {
+        return nameSuffix(RowScanner.BAILIWICK, suffix);
+    }
+
+    /**
+     * @param time Seconds since the epoch.
+     * @return A filter accepting rows last observed after the time.
+     */
+    public static RowFilter timeLastAfter(long time) {
+        return new RowFilter() {
+            @Override
+            boolean test(RowScanner row) {
+                return timeLast(row) > time;
+            }
+        };
+    }
+
+    /**
+     * @param time Seconds since the epoch.
+     * @return A filter accepting rows last observed before the time.
+     */
+    public static RowFilter timeLastBefore(long time) {
+        return new RowFilter() {
+            @Override
+            boolean test(RowScanner row) {
+                long t = timeLast(row);
+                return t != Long.MIN_VALUE && t < time;
+            }
+        };
+    }
+
+    /**
+     * @param time Seconds since the epoch.
+     * @return A filter accepting rows first observed after the time.
+     */
+    public static RowFilter timeFirstAfter(long time) {
+        return new RowFilter() {
+            @Override
+            boolean test(RowScanner row) {
+                long t = timeFirst(row);
+                return t != Long.MAX_VALUE && t > time;
+            }
+        };
+    }
+
+    /**
+     * @param time Seconds since the epoch.
+     * @return A filter accepting rows first observed before the time.
+     */
+    public static RowFilter timeFirstBefore(long time) {
+        return new RowFilter() {
+            @Override
+            boolean test(RowScanner row) {
+                return timeFirst(row) < time;
+            }
+        };
+    }
+
+    /**
+     * @param count Minimum count.
+     * @return A filter accepting rows observed at least count times.
+     */
+    public static RowFilter countAtLeast(long count) {
+        return new RowFilter() {
+            @Override
+            boolean test(RowScanner row) {
+                return row.longValue(RowScanner.COUNT, 0) >= count;
+            }
+        };
+    }
+
+    /**
+     * Match rdata values against a regular expression. Only the rdata strings of each row are decoded.
+     *
+     * @param pattern Pattern searched for with find().
+     * @return A filter accepting rows with at least one matching rdata value.
+     */
+    public static RowFilter rdataMatches(Pattern pattern) {
+        return new RowFilter() {
+            @Override
+            boolean test(RowScanner row) {
+                for (int i = 0; i < row.rdataCount(); i++) {
+                    if (pattern.matcher(row.string(row.rdataStart(i), row.rdataEnd(i))).find()) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Search rdata values for a substring, comparing raw bytes without decoding.
+     *
+     * @param text Substring without characters that JSON escapes, ie. quotes, backslashes or control characters.
+     * @return A filter accepting rows with at least one rdata value containing the text.
+     */
+    public static RowFilter rdataContains(String text) {
+        byte[] needle = text.getBytes(StandardCharsets.UTF_8);
+        return new RowFilter() {
+            @Override
+            boolean test(RowScanner row) {
+                byte[] buf = row.buffer();
+                for (int i = 0; i < row.rdataCount(); i++) {
+                    int last = row.rdataEnd(i) - needle.length;
+                    outer:
+                    for (int p = row.rdataStart(i); p <= last; p++) {
+                        for (int j = 0; j < needle.length; j++) {
+                            if (buf[p + j] != needle[j]) {
+                                continue outer;
+                            }
+                        }
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    private static RowFilter nameSuffix(int field, String suffix) {
+        String s = suffix.toLowerCase(Locale.ROOT);
+        if (s.endsWith(".")) {
+            s = s.substring(0, s.length() - 1);
+        }
+        byte[] name = s.getBytes(StandardCharsets.UTF_8);
+        return new RowFilter() {
+            @Override
+            boolean test(RowScanner row) {
+                if (!row.has(field)) {
+                    return false;
+                }
+                int start = row.start(field);
+                int end = row.end(field);
+                byte[] buf = row.buffer();
+                if (end > start && buf[end - 1] == '.') {
+                    end--;
+                }
+                if (name.length == 0) {
+                    return true;
+                }
+                int s = end - name.length;
+                if (s < start || !equalsIgnoreCase(row, s, end, name)) {
+                    return false;
+                }
+                return s == start || buf[s - 1] == '.';
+            }
+        };
+    }
+
+    private static boolean equalsIgnoreCase(RowScanner row, int start, int end, byte[] lower) {
+        if (end - start != lower.length) {
+            return false;
+        }
+        byte[] buf = row.buffer();
+        for (int i = 0; i < lower.length; i++) {
+            byte b = buf[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            byte c = lower[i];
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (b != c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long timeFirst(RowScanner row) {
+        return row.longValue(RowScanner.TIME_FIRST, row.longValue(RowScanner.ZONE_TIME_FIRST, Long.MAX_VALUE));
+    }
+
+    private static long timeLast(RowScanner row) {
+        return row.longValue(RowScanner.TIME_LAST, row.longValue(RowScanner.ZONE_TIME_LAST, Long.MIN_VALUE));
+    }
+}
@@ -0,0 +1,471 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+
+/**
+ * Locates the SAF fields of a raw NDJSON line, and the well-known fields of its result object, without building a
+ * JSON tree. Field values are recorded as offsets into the scanned buffer, which must not change while the scanner is
+ * in use. A scanner is reused for every line of a response and allocates only when a row has an unusually large
+ * number of rdata values.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see <a href="https://docs.dnsdb.info/dnsdb-saf-protocol/">Farsight Streaming API Framing Protocol.</a>
+ */
+final class RowScanner {
+    static final int RRNAME = 0;
+    static final int RRTYPE = 1;
+    static final int BAILIWICK = 2;
+    static final int TIME_FIRST = 3;
+    static final int TIME_LAST = 4;
+    static final int ZONE_TIME_FIRST = 5;
+    static final int ZONE_TIME_LAST = 6;
+    static final int COUNT = 7;
+    static final int NUM_RESULTS = 8;
+    static final int RDATA = 9;
+    private static final int NUM_FIELDS = 10;
+
+    private static final byte[][] FIELD_NAMES = {
+            bytes("rrname"), bytes("rrtype"), bytes("bailiwick"), bytes("time_first"), bytes("time_last"),
+            bytes("zone_time_first"), bytes("zone_time_last"), bytes("count"), bytes("num_results"), bytes("rdata"),
+    };
+    private static final byte[] OBJ = bytes("obj");
+    private static final byte[] COND = bytes("cond");
+    private static final byte[] MSG = bytes("msg");
+
+    private byte[] buf;
+    private int end;
+    private int pos;
+
+    // Spans of string values exclude the quotes. A start of -1 means the field is absent.
+    private final int[] fieldStart = new int[NUM_FIELDS];
+    private final int[] fieldEnd = new int[NUM_FIELDS];
+    private final boolean[] fieldString = new boolean[NUM_FIELDS];
+    private int condStart;
+    private int condEnd;
+    private int msgStart;
+    private int msgEnd;
+    private boolean hasObj;
+    private int[] rdataStart = new int[8];
+    private int[] rdataEnd = new int[8];
+    private int rdataCount;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Scan a line.
+     *
+     * @throws InvalidJSONException If the line is not a JSON object.
+     */
+    void scan(byte[] buf, int start, int end) {
+        this.buf = buf;
+        this.end = end;
+        this.pos = start;
+        Arrays.fill(fieldStart, -1);
+        condStart = -1;
+        msgStart = -1;
+        hasObj = false;
+        rdataCount = 0;
+
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            int keyStart = pos + 1;
+            int keyEnd = skipString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+
+            if (keyIs(keyStart, keyEnd, OBJ) && peek() == '{') {
+                hasObj = true;
+                scanObj();
+            } else if (keyIs(keyStart, keyEnd, COND) && peek() == '"') {
+                condStart = pos + 1;
+                condEnd = skipString();
+            } else if (keyIs(keyStart, keyEnd, MSG) && peek() == '"') {
+                msgStart = pos + 1;
+                msgEnd = skipString();
+            } else {
+                skipValue();
+            }
+
+            skipWhitespace();
+            if (peek() == ',') {
+                pos++;
+                continue;
+            }
+            expect('}');
+            return;
+        }
+    }
+
+    private void scanObj() {
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            int keyStart = pos + 1;
+            int keyEnd = skipString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+
+            int field = -1;
+            for (int i = 0; i < NUM_FIELDS; i++) {
+                if (keyIs(keyStart, keyEnd, FIELD_NAMES[i])) {
+                    field = i;
+                    break;
+                }
+            }
+
+            if (field == RDATA && peek() == '[') {
+                fieldStart[RDATA] = pos;
+                scanRDataArray();
+                fieldEnd[RDATA] = pos;
+                fieldString[RDATA] = false;
+            } else if (field >= 0 && peek() == '"') {
+                fieldStart[field] = pos + 1;
+                fieldEnd[field] = skipString();
+                fieldString[field] = true;
+                if (field == RDATA) {
+                    addRData(fieldStart[field], fieldEnd[field]);
+                }
+            } else if (field >= 0) {
+                fieldStart[field] = pos;
+                skipValue();
+                fieldEnd[field] = pos;
+                fieldString[field] = false;
+            } else {
+                skipValue();
+            }
+
+            skipWhitespace();
+            if (peek() == ',') {
+                pos++;
+                continue;
+            }
+            expect('}');
+            return;
+        }
+    }
+
+    private void scanRDataArray() {
+        expect('[');
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            if (peek() == '"') {
+                int s = pos + 1;
+                int e = skipString();
+                addRData(s, e);
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+            if (peek() == ',') {
+                pos++;
+                continue;
+            }
+            expect(']');
+            return;
+        }
+    }
+
+    private void addRData(int s, int e) {
+        if (rdataCount == rdataStart.length) {
+            rdataStart = Arrays.copyOf(rdataStart, rdataCount * 2);
+            rdataEnd = Arrays.copyOf(rdataEnd, rdataCount * 2);
+        }
+        rdataStart[rdataCount] = s;
+        rdataEnd[rdataCount] = e;
+        rdataCount++;
+    }
+
+    private boolean keyIs(int start, int end, byte[] key) {
+        return Arrays.equals(buf, start, end, key, 0, key.length);
+    }
+
+    private byte peek() {
+        if (pos >= end) {
+            throw invalid("unexpected end of line");
+        }
+        return buf[pos];
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw invalid("expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            byte b = buf[pos];
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    // Skip a string starting at pos and return the offset of its closing quote.
+    private int skipString() {
+        expect('"');
+        while (pos < end) {
+            byte b = buf[pos];
+            if (b == '\\') {
+                pos += 2;
+                continue;
+            }
+            if (b == '"') {
+                return pos++;
+            }
+            pos++;
+        }
+        throw invalid("unterminated string");
+    }
+
+    private void skipValue() {
+        byte b = peek();
+        if (b == '"') {
+            skipString();
+            return;
+        }
+        if (b == '{' || b == '[') {
+            int depth = 0;
+            while (pos < end) {
+                b = buf[pos];
+                if (b == '"') {
+                    skipString();
+                    continue;
+                }
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    depth--;
+                    if (depth == 0) {
+                        pos++;
+                        return;
+                    }
+                }
+                pos++;
+            }
+            throw invalid("unterminated value");
+        }
+        // number, true, false or null
+        int s = pos;
+        while (pos < end) {
+            b = buf[pos];
+            if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                break;
+            }
+            pos++;
+        }
+        if (pos == s) {
+            throw invalid("expected a value");
+        }
+    }
+
+    private static InvalidJSONException invalid(String message) {
+        return new InvalidJSONException(new JSONException(message));
+    }
+
+    /**
+     * @return True if the line has an obj key holding an object.
+     */
+    boolean hasObj() {
+        return hasObj;
+    }
+
+    /**
+     * @return True if the line has a cond key equal to cond.
+     */
+    boolean condIs(String cond) {
+        if (condStart < 0) {
+            return cond.isEmpty();
+        }
+        int n = condEnd - condStart;
+        if (n != cond.length()) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (buf[condStart + i] != cond.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return True if the result object has the field.
+     */
+    boolean has(int field) {
+        return fieldStart[field] >= 0;
+    }
+
+    /**
+     * @return True if the field's value is a JSON string, whose span excludes the quotes.
+     */
+    boolean isString(int field) {
+        return fieldString[field];
+    }
+
+    /**
+     * @return The scanned buffer.
+     */
+    byte[] buffer() {
+        return buf;
+    }
+
+    int start(int field) {
+        return fieldStart[field];
+    }
+
+    int end(int field) {
+        return fieldEnd[field];
+    }
+
+    /**
+     * @return The number of string rdata values, from either a single string or an array.
+     */
+    int rdataCount() {
+        return rdataCount;
+    }
+
+    int rdataStart(int i) {
+        return rdataStart[i];
+    }
+
+    int rdataEnd(int i) {
+        return rdataEnd[i];
+    }
+
+    /**
+     * Parse an integer field. Time fields in RFC3339 format, as returned with humantime, are converted to seconds
+     * since the epoch.
+     *
+     * @param field The field index.
+     * @param absent Value returned if the field is absent.
+     * @return The value of the field.
+     */
+    long longValue(int field, long absent) {
+        int s = fieldStart[field];
+        if (s < 0) {
+            return absent;
+        }
+        int e = fieldEnd[field];
+        if (fieldString[field]) {
+            try {
+                return OffsetDateTime.parse(new String(buf, s, e - s, StandardCharsets.US_ASCII)).toEpochSecond();
+            } catch (DateTimeParseException ex) {
+                throw invalid("invalid time value");
+            }
+        }
+
+        boolean negative = buf[s] == '-';
+        long v = 0;
+        for (int i = negative ? s + 1 : s; i < e; i++) {
+            byte b = buf[i];
+            if (b < '0' || b > '9') {
+                throw invalid("invalid integer value");
+            }
+            v = v * 10 + (b - '0');
+        }
+        return negative ? -v : v;
+    }
+
+    /**
+     * Decode a string span, resolving JSON escapes.
+     */
+    String string(int start, int end) {
+        boolean escaped = false;
+        for (int i = start; i < end; i++) {
+            if (buf[i] == '\\') {
+                escaped = true;
+                break;
+            }
+        }
+        if (!escaped) {
+            return new String(buf, start, end - start, StandardCharsets.UTF_8);
+        }
+        StringBuilder sb = new StringBuilder(end - start);
+        unescape(buf, start, end, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Append the unescaped UTF-8 contents of a JSON string span.
+     */
+    static void unescape(byte[] buf, int start, int end, StringBuilder sb) {
+        int runStart = start;
+        int i = start;
+        while (i < end) {
+            if (buf[i] != '\\') {
+                i++;
+                continue;
+            }
+            sb.append(new String(buf, runStart, i - runStart, StandardCharsets.UTF_8));
+            if (i + 1 >= end) {
+                throw invalid("invalid escape");
+            }
+            byte c = buf[i + 1];
+            switch (c) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    if (i + 6 > end) {
+                        throw invalid("invalid escape");
+                    }
+                    try {
+                        sb.append((char) Integer.parseInt(new String(buf, i + 2, 4, StandardCharsets.US_ASCII), 16));
+                    } catch (NumberFormatException e) {
+                        throw invalid("invalid escape");
+                    }
+                    i += 4;
+                    break;
+                default: sb.append((char) c);
+            }
+            i += 2;
+            runStart = i;
+        }
+        sb.append(new String(buf, runStart, end - runStart, StandardCharsets.UTF_8));
+    }
+}
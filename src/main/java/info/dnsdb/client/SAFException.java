@@ -39,4 +39,15 @@ public class SAFException extends DNSDBException {
     public SAFException(String message) {
         super(message);
     }
+
+    /**
+     * Class constructor for conditions reported by the server, which carry no stack trace: they are part of the
+     * protocol rather than errors in the calling code, and paging loops may raise them for every page.
+     *
+     * @param message Message to pass to RuntimeException.
+     * @param cause Cause to pass to RuntimeException, or null.
+     */
+    protected SAFException(String message, Throwable cause) {
+        super(message, cause, false, false);
+    }
 }
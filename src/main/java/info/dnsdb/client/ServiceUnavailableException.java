@@ -0,0 +1,36 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
+
+/**
+ * Exception raised when the DNSDB server answers a query with status 503 because it is temporarily overloaded.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ */
+public class ServiceUnavailableException extends ServerErrorException {
+    /**
+     * Default class constructor.
+     */
+    public ServiceUnavailableException() {
+        super(HTTP_UNAVAILABLE);
+    }
+
+    @Override
+    public boolean isOverload() {
+        return true;
+    }
+}
@@ -0,0 +1,161 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * String to string table holding entries in memory up to a budget, then spilling them to an append-only file. Spilled
+ * entries are indexed by a 64-bit hash of their key in a LongLongMap of file offsets, which costs 16 bytes per entry
+ * whatever the size of the key and value. The key is stored with each spilled entry and checked on lookup, so a hash
+ * collision reads as a miss rather than a wrong value.
+ *
+ * This class is thread-safe.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ */
+final class SpillTable implements AutoCloseable {
+    // Rough heap cost of an in-memory entry beyond its characters: the map node and two String headers.
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final long memoryBudget;
+    private final Path tempDirectory;
+    private final Map<String, String> memory = new HashMap<>();
+    private final LongLongMap index = new LongLongMap();
+    private long buffered;
+    private Path file;
+    private FileChannel channel;
+    private long spilled;
+
+    SpillTable(long memoryBudget, Path tempDirectory) {
+        this.memoryBudget = memoryBudget;
+        this.tempDirectory = tempDirectory;
+    }
+
+    synchronized void put(String key, String value) {
+        if (memory.put(key, value) == null) {
+            buffered += 2L * (key.length() + value.length()) + ENTRY_OVERHEAD;
+        }
+        if (buffered >= memoryBudget) {
+            spill();
+        }
+    }
+
+    /**
+     * @return The value of key, or null if absent.
+     */
+    synchronized String get(String key) {
+        String value = memory.get(key);
+        if (value != null || channel == null) {
+            return value;
+        }
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        long offset = index.get(HyperLogLog.hash(k, 0, k.length));
+        if (offset == LongLongMap.ABSENT) {
+            return null;
+        }
+        try {
+            ByteBuffer lengths = ByteBuffer.allocate(8);
+            read(lengths, offset);
+            int keyLength = lengths.getInt(0);
+            int valueLength = lengths.getInt(4);
+            ByteBuffer entry = ByteBuffer.allocate(keyLength + valueLength);
+            read(entry, offset + 8);
+            if (!Arrays.equals(k, 0, k.length, entry.array(), 0, keyLength)) {
+                return null;
+            }
+            return new String(entry.array(), keyLength, valueLength, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new DNSDBException(e);
+        }
+    }
+
+    /**
+     * @return The number of entries, in memory and spilled.
+     */
+    synchronized long size() {
+        return memory.size() + spilled;
+    }
+
+    /**
+     * @return The number of entries spilled to disk.
+     */
+    synchronized long spilled() {
+        return spilled;
+    }
+
+    private void read(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("truncated spill file " + file);
+            }
+        }
+    }
+
+    private void spill() {
+        try {
+            if (channel == null) {
+                file = tempDirectory == null ? Files.createTempFile("dnsdb-table", ".spill")
+                        : Files.createTempFile(tempDirectory, "dnsdb-table", ".spill");
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            long position = channel.size();
+            for (Map.Entry<String, String> e : memory.entrySet()) {
+                byte[] k = e.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] v = e.getValue().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer buf = ByteBuffer.allocate(8 + k.length + v.length);
+                buf.putInt(k.length).putInt(v.length).put(k).put(v).flip();
+                while (buf.hasRemaining()) {
+                    position += channel.write(buf, position);
+                }
+                long previous = index.put(HyperLogLog.hash(k, 0, k.length), position - buf.limit());
+                if (previous == LongLongMap.ABSENT) {
+                    spilled++;
+                }
+            }
+        } catch (IOException e) {
+            throw new DNSDBException(e);
+        }
+        memory.clear();
+        buffered = 0;
+    }
+
+    /**
+     * Delete the spill file.
+     */
+    @Override
+    public synchronized void close() {
+        memory.clear();
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+            // best effort
+        }
+        channel = null;
+    }
+}
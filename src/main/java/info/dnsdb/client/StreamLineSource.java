@@ -0,0 +1,101 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * LineSource that reads and decodes each line of a response body on the calling thread. If a RowFilter is given, result
+ * rows it rejects are skipped before decoding.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ */
+class StreamLineSource implements LineSource {
+    private final LineReader reader;
+    private final QueryStats stats;
+    private RowFilter filter;
+    private RowScanner scanner;
+
+    StreamLineSource(InputStream body, QueryStats stats) {
+        this.reader = new LineReader(body, stats);
+        this.stats = stats;
+    }
+
+    /**
+     * Skip result rows rejected by the filter from now on.
+     */
+    void filter(RowFilter filter) {
+        this.filter = filter;
+        this.scanner = new RowScanner();
+    }
+
+    /**
+     * Read the next line without decoding it.
+     *
+     * @return The next line, or null if the response body has ended.
+     * @throws TruncatedResponseException If reading the response fails.
+     */
+    String readLine() {
+        try {
+            while (reader.next()) {
+                if (filter == null || accept()) {
+                    return reader.line();
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            throw new TruncatedResponseException(e);
+        }
+    }
+
+    private boolean accept() {
+        scanner.scan(reader.buffer(), reader.start(), reader.end());
+        if (!scanner.hasObj() || !(scanner.condIs("") || scanner.condIs(Query.COND_ONGOING))) {
+            return true;
+        }
+        if (filter.test(scanner)) {
+            stats.filterHits.incrementAndGet();
+            return true;
+        }
+        stats.filterMisses.incrementAndGet();
+        return false;
+    }
+
+    @Override
+    public JSONObject next() {
+        String line = readLine();
+        if (line == null) {
+            return null;
+        }
+        return decode(line);
+    }
+
+    static JSONObject decode(String line) {
+        try {
+            return new JSONObject(line);
+        } catch (JSONException e) {
+            throw new InvalidJSONException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        reader.close();
+    }
+}
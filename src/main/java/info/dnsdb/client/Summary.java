@@ -0,0 +1,114 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+/**
+ * The result of a summarize query: the total number of observations of the matching records, the number of records
+ * examined, and the earliest and latest observation times.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see Query#summary()
+ */
+public final class Summary {
+    private final long count;
+    private final long numResults;
+    private final long timeFirst;
+    private final long timeLast;
+    private final long zoneTimeFirst;
+    private final long zoneTimeLast;
+
+    Summary(long count, long numResults, long timeFirst, long timeLast, long zoneTimeFirst, long zoneTimeLast) {
+        this.count = count;
+        this.numResults = numResults;
+        this.timeFirst = timeFirst;
+        this.timeLast = timeLast;
+        this.zoneTimeFirst = zoneTimeFirst;
+        this.zoneTimeLast = zoneTimeLast;
+    }
+
+    /**
+     * Read the summary from a scanned result row.
+     */
+    static Summary of(RowScanner row) {
+        return new Summary(row.longValue(RowScanner.COUNT, 0), row.longValue(RowScanner.NUM_RESULTS, 0),
+                row.longValue(RowScanner.TIME_FIRST, 0), row.longValue(RowScanner.TIME_LAST, 0),
+                row.longValue(RowScanner.ZONE_TIME_FIRST, 0), row.longValue(RowScanner.ZONE_TIME_LAST, 0));
+    }
+
+    /**
+     * @return The total number of times the matching records were observed.
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * @return The number of records (rrsets or rdata) that were summarized.
+     */
+    public long numResults() {
+        return numResults;
+    }
+
+    /**
+     * @return The earliest sensor observation in seconds since the epoch, or 0 if there was none.
+     */
+    public long timeFirst() {
+        return timeFirst;
+    }
+
+    /**
+     * @return The latest sensor observation in seconds since the epoch, or 0 if there was none.
+     */
+    public long timeLast() {
+        return timeLast;
+    }
+
+    /**
+     * @return The earliest zone file observation in seconds since the epoch, or 0 if there was none.
+     */
+    public long zoneTimeFirst() {
+        return zoneTimeFirst;
+    }
+
+    /**
+     * @return The latest zone file observation in seconds since the epoch, or 0 if there was none.
+     */
+    public long zoneTimeLast() {
+        return zoneTimeLast;
+    }
+
+    /**
+     * @return The earliest observation of either kind, or 0 if there was none.
+     */
+    public long firstSeen() {
+        if (timeFirst == 0 || zoneTimeFirst == 0) {
+            return Math.max(timeFirst, zoneTimeFirst);
+        }
+        return Math.min(timeFirst, zoneTimeFirst);
+    }
+
+    /**
+     * @return The latest observation of either kind, or 0 if there was none.
+     */
+    public long lastSeen() {
+        return Math.max(timeLast, zoneTimeLast);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d num_results=%d time_first=%d time_last=%d zone_time_first=%d zone_time_last=%d",
+                count, numResults, timeFirst, timeLast, zoneTimeFirst, zoneTimeLast);
+    }
+}
@@ -28,6 +28,15 @@ public class TruncatedResponseException extends SAFException {
      * @param cause Cause to pass to RuntimeException.
      */
     public TruncatedResponseException(Throwable cause) {
-        super(cause);
+        super(String.valueOf(cause), cause);
+    }
+
+    /**
+     * Class constructor with a message.
+     *
+     * @param message Message to pass to RuntimeException.
+     */
+    public TruncatedResponseException(String message) {
+        super(message, null);
     }
 }
@@ -30,7 +30,7 @@ public class UnexpectedCondException extends SAFException {
      * @param obj A SAF json message decoded as a JSONObject.
      */
     UnexpectedCondException(JSONObject obj) {
-        super(format(obj));
+        super(format(obj), null);
     }
 
     private static String format(JSONObject obj) {
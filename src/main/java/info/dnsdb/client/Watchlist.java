@@ -0,0 +1,465 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Incremental monitor for a list of watched queries. For each watched query the monitor persists a time_last
+ * watermark and a compact set of the rows it has already reported. Every run re-issues each query fenced with
+ * time_last_after at the watermark, and reports only rows that are new or whose count or times changed since they
+ * were last reported. Steady-state polling therefore transfers only recently active records.
+ *
+ * State is kept in one file per watched query in a state directory, and is written after each successful poll that
+ * changed it. Once a poll completes, rows whose time_last has fallen behind the polled window are dropped from the
+ * seen-set, so it only holds rows that a later poll can return again.
+ *
+ * The watermark only advances when a poll returns a complete result. A watched query that is always limited
+ * therefore re-reads the same window on every run; its rows are still reported once, but it should be narrowed or
+ * given a larger limit. Listener.onLimited() is called for such polls.
+ *
+ * @author Farsight Security, Inc. &lt;support@farsightsecurity.com&gt;
+ * @see <a href="https://docs.dnsdb.info/dnsdb-apiv2/#time-fencing-query-parameters">Time-fencing query parameters.</a>
+ */
+public class Watchlist implements AutoCloseable {
+    private static final int STATE_MAGIC = 0x44574c32;
+
+    private final Client client;
+    private final Path stateDir;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private Duration interval = Duration.ofMinutes(5);
+    private double jitter = 0.1;
+    private int concurrency = 4;
+    private long slack = 3600;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Receives the rows reported by a Watchlist. Methods may be called concurrently from several threads.
+     */
+    public interface Listener {
+        /**
+         * Called for each new or changed row.
+         *
+         * @param key Key of the watched query.
+         * @param row The result row.
+         * @param isNew True if the row was never reported before, false if its count or times changed.
+         */
+        void onRow(String key, JSONObject row, boolean isNew);
+
+        /**
+         * Called when polling a watched query fails. Its state is left unchanged and it is retried on the next run.
+         *
+         * @param key Key of the watched query.
+         * @param e The failure.
+         */
+        default void onError(String key, DNSDBException e) {}
+
+        /**
+         * Called when a poll returned a limited result, so the watermark of the query was not advanced.
+         *
+         * @param key Key of the watched query.
+         */
+        default void onLimited(String key) {}
+    }
+
+    /**
+     * Class constructor for Watchlist.
+     *
+     * @param client Client used for polling.
+     * @param stateDir Directory holding watermarks and seen-sets. It is created if necessary.
+     */
+    public Watchlist(Client client, Path stateDir) {
+        this.client = client;
+        this.stateDir = stateDir;
+    }
+
+    /**
+     * Watch an arbitrary query. The factory is called on every run to create a fresh Query, to which the time_last
+     * watermark is added.
+     *
+     * @param key Unique, stable key identifying the watched query across restarts.
+     * @param factory Function creating the query from the Watchlist's client.
+     * @return The Watchlist object for further use in the fluent API pattern.
+     */
+    public Watchlist watch(String key, Function<Client, Query> factory) {
+        entries.put(key, new Entry(key, factory));
+        return this;
+    }
+
+    /**
+     * Watch the rrsets of a name, with or without wildcards.
+     *
+     * @param name Domain name.
+     * @return The Watchlist object for further use in the fluent API pattern.
+     */
+    public Watchlist watchRRSet(String name) {
+        return watch("rrset/name/" + name, c -> c.lookupRRSet(Client.TYPE_NAME, name));
+    }
+
+    /**
+     * Watch the records pointing at a name, address or netblock.
+     *
+     * @param type One of TYPE_NAME, TYPE_IP, or TYPE_RAW.
+     * @param value Value as passed to lookupRData.
+     * @return The Watchlist object for further use in the fluent API pattern.
+     */
+    public Watchlist watchRData(String type, String value) {
+        return watch("rdata/" + type + "/" + value, c -> c.lookupRData(type, value));
+    }
+
+    /**
+     * Stop watching a query. Its state file is kept.
+     *
+     * @param key Key of the watched query.
+     * @return The Watchlist object for further use in the fluent API pattern.
+     */
+    public Watchlist unwatch(String key) {
+        entries.remove(key);
+        return this;
+    }
+
+    /**
+     * Set the mean interval between runs started by start(). The default is 5 minutes.
+     *
+     * @param interval Interval between runs.
+     * @return The Watchlist object for further use in the fluent API pattern.
+     */
+    public Watchlist interval(Duration interval) {
+        this.interval = interval;
+        return this;
+    }
+
+    /**
+     * Set the random variation of the interval between runs, as a fraction of the interval. The default is 0.1.
+     *
+     * @param jitter Fraction between 0 and 1.
+     * @return The Watchlist object for further use in the fluent API pattern.
+     */
+    public Watchlist jitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        }
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of watched queries polled concurrently. The default is 4.
+     *
+     * @param concurrency Number of concurrent queries.
+     * @return The Watchlist object for further use in the fluent API pattern.
+     */
+    public Watchlist concurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Set how far before the watermark each poll starts, to tolerate records whose time_last is updated late. Rows
+     * seen again in the overlap are not reported unless they changed. The default is one hour.
+     *
+     * @param slack Overlap.
+     * @return The Watchlist object for further use in the fluent API pattern.
+     */
+    public Watchlist slack(Duration slack) {
+        this.slack = slack.getSeconds();
+        return this;
+    }
+
+    /**
+     * Poll every watched query once, with bounded concurrency, and wait for all to complete.
+     *
+     * @param listener Receives new and changed rows, and failures.
+     */
+    public void runOnce(Listener listener) {
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "dnsdb-watch");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> pending = new ArrayList<>();
+            for (Entry entry : entries.values()) {
+                pending.add(pool.submit(() -> entry.poll(listener)));
+            }
+            for (Future<?> f : pending) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new DNSDBException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Start polling in the background. The first run starts after a random fraction of the interval, and each
+     * subsequent run starts a jittered interval after the previous one completes.
+     *
+     * @param listener Receives new and changed rows, and failures.
+     * @throws IllegalStateException If already started.
+     */
+    public synchronized void start(Listener listener) {
+        if (scheduler != null) {
+            throw new IllegalStateException("watchlist already started");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dnsdb-watch-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        long first = (long) (interval.toMillis() * ThreadLocalRandom.current().nextDouble());
+        scheduler.schedule(() -> runScheduled(listener), first, TimeUnit.MILLISECONDS);
+    }
+
+    private void runScheduled(Listener listener) {
+        try {
+            runOnce(listener);
+        } finally {
+            double factor = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+            synchronized (this) {
+                if (scheduler != null) {
+                    scheduler.schedule(() -> runScheduled(listener),
+                            (long) (interval.toMillis() * factor), TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop background polling. A run in progress is interrupted; state already written is kept.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * @param key Key of the watched query.
+     * @return The current time_last watermark of the query in seconds since the epoch, or 0 if it was never polled.
+     */
+    public long watermark(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            throw new IllegalArgumentException("not watched: " + key);
+        }
+        synchronized (entry) {
+            entry.load();
+            return entry.watermark;
+        }
+    }
+
+    private final class Entry {
+        final String key;
+        final Function<Client, Query> factory;
+        final Path file;
+        boolean loaded;
+        long watermark;
+        /**
+         * Maps the identity of each reported row to its time_last in the high 32 bits and a hash of its version in
+         * the low 32 bits.
+         */
+        LongLongMap seen = new LongLongMap();
+
+        Entry(String key, Function<Client, Query> factory) {
+            this.key = key;
+            this.factory = factory;
+            byte[] b = key.getBytes(StandardCharsets.UTF_8);
+            this.file = stateDir.resolve(String.format("%016x.state", HyperLogLog.hash(b, 0, b.length)));
+        }
+
+        synchronized void poll(Listener listener) {
+            try {
+                load();
+                Query query = factory.apply(client).disableLimitedException(true);
+                boolean unaggregated = "false".equals(query.parameters.get("aggr"));
+                if (watermark > slack) {
+                    query.timeLastAfter(Instant.ofEpochSecond(watermark - slack));
+                }
+
+                long newWatermark = watermark;
+                boolean complete;
+                // Previous values of the entries changed by this poll, to restore if it fails.
+                LongLongMap undo = new LongLongMap();
+                List<JSONObject> changed = new ArrayList<>();
+                List<Boolean> isNew = new ArrayList<>();
+                boolean committed = false;
+                try {
+                    try (query) {
+                        Iterator<JSONObject> it = query.stream();
+                        while (it.hasNext()) {
+                            JSONObject row = it.next();
+                            long id = identity(row, unaggregated);
+                            long timeLast = timeLast(row);
+                            long version = timeLast << 32 | version(row) & 0xffffffffL;
+                            long previous = seen.put(id, version);
+                            if (previous != version) {
+                                if (!undo.containsKey(id)) {
+                                    undo.put(id, previous);
+                                }
+                                changed.add(row);
+                                isNew.add(previous == LongLongMap.ABSENT);
+                            }
+                            newWatermark = Math.max(newWatermark, timeLast);
+                        }
+                        // Rows are not in time order, so the unseen remainder of a limited result may be older than
+                        // the newest row seen.
+                        complete = query.result().succeeded();
+                    }
+
+                    for (int i = 0; i < changed.size(); i++) {
+                        listener.onRow(key, changed.get(i), isNew.get(i));
+                    }
+                    committed = true;
+                } finally {
+                    if (!committed) {
+                        undo.forEach((id, previous) -> {
+                            if (previous == LongLongMap.ABSENT) {
+                                seen.remove(id);
+                            } else {
+                                seen.put(id, previous);
+                            }
+                        });
+                    }
+                }
+
+                boolean dirty = !changed.isEmpty();
+                if (complete) {
+                    dirty |= newWatermark != watermark;
+                    watermark = newWatermark;
+                    // The next poll only returns rows last seen after watermark - slack.
+                    long horizon = watermark - slack;
+                    dirty |= seen.removeIf((id, version) -> version >>> 32 < horizon) > 0;
+                } else {
+                    listener.onLimited(key);
+                }
+                if (dirty) {
+                    store();
+                }
+            } catch (DNSDBException e) {
+                listener.onError(key, e);
+            } catch (UncheckedIOException e) {
+                listener.onError(key, new DNSDBException(e.getCause()));
+            }
+        }
+
+        void load() {
+            if (loaded) {
+                return;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() != STATE_MAGIC || !in.readUTF().equals(key)) {
+                    throw new IOException("invalid watchlist state file " + file);
+                }
+                watermark = in.readLong();
+                int n = in.readInt();
+                LongLongMap map = new LongLongMap();
+                for (int i = 0; i < n; i++) {
+                    map.put(in.readLong(), in.readLong());
+                }
+                seen = map;
+            } catch (NoSuchFileException e) {
+                // never polled
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            loaded = true;
+        }
+
+        void store() {
+            try {
+                Files.createDirectories(stateDir);
+                Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                    out.writeInt(STATE_MAGIC);
+                    out.writeUTF(key);
+                    out.writeLong(watermark);
+                    out.writeInt(seen.size());
+                    seen.forEach((k, v) -> {
+                        try {
+                            out.writeLong(k);
+                            out.writeLong(v);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * @param unaggregated True if the query returns one row per observation period of an rrset, which are told apart
+     * by time_first.
+     */
+    private static long identity(JSONObject row, boolean unaggregated) {
+        String s = row.optString("rrname") + '\0' + row.optString("rrtype") + '\0'
+                + row.optString("bailiwick") + '\0' + row.opt("rdata");
+        if (unaggregated) {
+            s += '\0' + row.optString("time_first", row.optString("zone_time_first"));
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        return HyperLogLog.hash(b, 0, b.length);
+    }
+
+    private static long timeLast(JSONObject row) {
+        return row.optLong("time_last", row.optLong("zone_time_last"));
+    }
+
+    private static long version(JSONObject row) {
+        String s = row.optLong("count") + "/" + row.optString("time_first", row.optString("zone_time_first"))
+                + "/" + row.optString("time_last", row.optString("zone_time_last"));
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        return HyperLogLog.hash(b, 0, b.length);
+    }
+}
@@ -0,0 +1,131 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchPlannerTest {
+    @Test
+    void collapse() throws IOException {
+        List<String> paths = new ArrayList<>();
+        try (StandInServer server = new StandInServer(exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            synchronized (paths) {
+                paths.add(path);
+            }
+            if (path.contains("/summarize/")) {
+                int n = path.contains("*.example.com") ? 20 : 1000000;
+                StandInServer.send(exchange, 200, "{\"cond\":\"begin\"}\n{\"obj\":{\"count\":1,\"num_results\":" + n
+                        + "}}\n{\"cond\":\"succeeded\"}\n");
+            } else if (path.contains("*.example.com")) {
+                StandInServer.send(exchange, 200, StandInServer.saf(20, Query.COND_SUCCEEDED));
+            } else {
+                StandInServer.send(exchange, 200, StandInServer.saf(1, Query.COND_SUCCEEDED));
+            }
+        })) {
+            BatchPlanner planner = new BatchPlanner(server.client());
+            List<String> names = List.of("host1.example.com", "HOST2.example.com.", "host3.example.com",
+                    "host1.example.com", "a.big.org", "b.big.org", "c.big.org", "other.net");
+            BatchPlanner.Plan plan = planner.plan(names);
+            assertEquals(7, plan.names());
+            assertEquals(2, plan.summaries(), "*.example.com and *.big.org were considered");
+            assertEquals(5, plan.steps().size(), "*.big.org matches too many rows to collapse");
+            assertTrue(plan.steps().get(0).wildcard());
+            assertEquals("*.example.com", plan.steps().get(0).value());
+
+            Map<String, Integer> rows = new TreeMap<>();
+            planner.execute(plan, (name, row) -> rows.merge(name, 1, Integer::sum));
+            assertEquals(Map.of("host1.example.com", 1, "HOST2.example.com.", 1, "host3.example.com", 1,
+                    "a.big.org", 1, "b.big.org", 1, "c.big.org", 1, "other.net", 1), rows);
+            assertFalse(paths.stream().anyMatch(p -> p.contains("/lookup/rrset/name/host")),
+                    "example.com names were not looked up one by one");
+        }
+    }
+
+    @Test
+    void limitedWildcardFallsBack() throws IOException {
+        try (StandInServer server = new StandInServer(exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            if (path.contains("/summarize/")) {
+                StandInServer.send(exchange, 200, "{\"cond\":\"begin\"}\n{\"obj\":{\"num_results\":3}}\n"
+                        + "{\"cond\":\"succeeded\"}\n");
+            } else if (path.contains("*.example.com")) {
+                StandInServer.send(exchange, 200, StandInServer.saf(3, Query.COND_LIMITED));
+            } else {
+                StandInServer.send(exchange, 200, StandInServer.saf(1, Query.COND_SUCCEEDED));
+            }
+        })) {
+            BatchPlanner planner = new BatchPlanner(server.client());
+            BatchPlanner.Plan plan = planner.plan(List.of("host0.example.com", "host1.example.com", "host2.example.com"));
+            assertEquals(1, plan.steps().size());
+
+            List<JSONObject> rows = new ArrayList<>();
+            planner.execute(plan, (name, row) -> rows.add(row));
+            assertEquals(3, rows.size(), "rows of the limited wildcard were replaced by exact lookups");
+        }
+    }
+
+    @Test
+    void withoutSummarize() throws IOException {
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(1, Query.COND_SUCCEEDED))) {
+            HTTPClient http = server.client();
+            // An implementation written before summarize was added to Client.
+            Client legacy = new Client() {
+                @Override
+                public boolean ping() {
+                    return http.ping();
+                }
+
+                @Override
+                public JSONObject rateLimit() {
+                    return http.rateLimit();
+                }
+
+                @Override
+                public Query lookupRRSet(String type, String value) {
+                    return http.lookupRRSet(type, value);
+                }
+
+                @Override
+                public Query lookupRData(String type, String value) {
+                    return http.lookupRData(type, value);
+                }
+
+                @Override
+                public Query flex(String method, String key, String value) {
+                    return http.flex(method, key, value);
+                }
+            };
+            BatchPlanner planner = new BatchPlanner(legacy);
+            BatchPlanner.Plan plan = planner.plan(List.of("host0.example.com", "host1.example.com", "host2.example.com"));
+            assertEquals(0, plan.summaries());
+            assertEquals(3, plan.steps().size());
+            assertFalse(plan.steps().get(0).wildcard());
+            assertEquals(0, server.requests(), "planning sent nothing");
+        }
+    }
+}
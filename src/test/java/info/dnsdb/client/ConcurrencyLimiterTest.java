@@ -0,0 +1,77 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConcurrencyLimiterTest {
+    @Test
+    void growAndBackOff() throws IOException {
+        AtomicInteger status = new AtomicInteger(200);
+        try (StandInServer server = new StandInServer(exchange ->
+                StandInServer.send(exchange, status.get(), StandInServer.saf(3, Query.COND_SUCCEEDED)))) {
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter().initialLimit(2).latencyTolerance(1000);
+            HTTPClient c = server.client().limiter(limiter);
+            for (int i = 0; i < 20; i++) {
+                try (Query q = c.lookupRRSet(Client.TYPE_NAME, "example.com")) {
+                    q.stream().next();
+                    assertEquals(1, limiter.inFlight());
+                }
+            }
+            assertEquals(0, limiter.inFlight(), "closing a query releases its permit");
+            assertEquals(2, limiter.limit(), "no growth without utilization");
+
+            status.set(503);
+            assertThrows(ServiceUnavailableException.class, () -> c.lookupRRSet(Client.TYPE_NAME, "x").stream());
+            assertEquals(1, limiter.limit());
+            assertEquals(1, limiter.overloads());
+            assertEquals(0, limiter.inFlight());
+        }
+    }
+
+    @Test
+    void circuitBreaker() throws IOException {
+        AtomicInteger status = new AtomicInteger(500);
+        try (StandInServer server = new StandInServer(exchange ->
+                StandInServer.send(exchange, status.get(), StandInServer.saf(3, Query.COND_SUCCEEDED)))) {
+            CircuitBreaker breaker = new CircuitBreaker().failureThreshold(3).openInterval(Duration.ofMillis(200));
+            HTTPClient c = server.client().limiter(new ConcurrencyLimiter().circuitBreaker(breaker));
+            for (int i = 0; i < 3; i++) {
+                assertThrows(ServerErrorException.class, () -> c.lookupRRSet(Client.TYPE_NAME, "x").count());
+            }
+            assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+            assertThrows(CircuitOpenException.class, () -> c.lookupRRSet(Client.TYPE_NAME, "x").count());
+            assertEquals(3, server.requests(), "an open circuit fails fast");
+
+            status.set(200);
+            long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+            while (breaker.state() != CircuitBreaker.State.HALF_OPEN) {
+                assertTrue(System.nanoTime() < deadline);
+                Thread.yield();
+            }
+            assertEquals(3, c.lookupRRSet(Client.TYPE_NAME, "x").count().rows());
+            assertEquals(CircuitBreaker.State.CLOSED, breaker.state(), "a successful probe closes the circuit");
+        }
+    }
+}
@@ -0,0 +1,333 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import com.sun.net.httpserver.HttpHandler;
+import org.json.JSONObject;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeadlineTest {
+    private static final long STALL_MILLIS = 10000;
+
+    /**
+     * Send the begin line and one row, then stall.
+     */
+    private static final HttpHandler STALLED_STREAM = exchange -> {
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        out.write(("{\"cond\":\"begin\"}\n" + StandInServer.row(0) + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        stall();
+    };
+
+    private static final HttpHandler STALLED_HEADERS = exchange -> {
+        stall();
+        StandInServer.send(exchange, 200, StandInServer.saf(1, Query.COND_SUCCEEDED));
+    };
+
+    /**
+     * Send the headers, then stall before the begin line.
+     */
+    private static final HttpHandler STALLED_BEGIN = exchange -> {
+        exchange.sendResponseHeaders(200, 0);
+        exchange.getResponseBody().flush();
+        stall();
+    };
+
+    private static void stall() throws IOException {
+        try {
+            Thread.sleep(STALL_MILLIS);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * The first exchange of the JVM loads and initializes the HTTP stack, which can take longer than the timeouts
+     * below.
+     */
+    @BeforeAll
+    static void warmUp() throws IOException {
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(1, Query.COND_SUCCEEDED))) {
+            drain(server.client().lookupRRSet(Client.TYPE_NAME, "example.com").stream());
+        }
+    }
+
+    private static void drain(Iterator<JSONObject> it) {
+        while (it.hasNext()) {
+            it.next();
+        }
+    }
+
+    private static void assertQuick(long start) {
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(STALL_MILLIS / 2),
+                "aborted before the server stopped stalling");
+    }
+
+    @Test
+    void timeoutBeforeBegin() throws IOException {
+        try (StandInServer server = new StandInServer(STALLED_HEADERS)) {
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com").timeout(Duration.ofMillis(200));
+            long start = System.nanoTime();
+            assertThrows(DeadlineExceededException.class, q::stream);
+            assertQuick(start);
+        }
+    }
+
+    @Test
+    void timeoutWhileStreaming() throws IOException {
+        try (StandInServer server = new StandInServer(STALLED_STREAM)) {
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com").timeout(Duration.ofMillis(500));
+            long start = System.nanoTime();
+            Iterator<JSONObject> it = q.stream();
+            assertTrue(it.hasNext());
+            it.next();
+            assertThrows(DeadlineExceededException.class, () -> drain(it));
+            assertQuick(start);
+        }
+    }
+
+    @Test
+    void timeoutWithReadAhead() throws IOException {
+        try (StandInServer server = new StandInServer(STALLED_STREAM)) {
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com").readAhead(16)
+                    .timeout(Duration.ofMillis(500));
+            long start = System.nanoTime();
+            assertThrows(DeadlineExceededException.class, () -> drain(q.stream()));
+            assertQuick(start);
+        }
+    }
+
+    @Test
+    void cancelWhileStreaming() throws IOException {
+        ScheduledExecutorService canceller = Executors.newSingleThreadScheduledExecutor();
+        try (StandInServer server = new StandInServer(STALLED_STREAM)) {
+            CancellationToken token = new CancellationToken();
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com").cancellation(token);
+            long start = System.nanoTime();
+            canceller.schedule(token::cancel, 200, TimeUnit.MILLISECONDS);
+            assertThrows(QueryCancelledException.class, () -> q.count());
+            assertQuick(start);
+        } finally {
+            canceller.shutdownNow();
+        }
+    }
+
+    @Test
+    void cancelBeforeBegin() throws IOException {
+        ScheduledExecutorService canceller = Executors.newSingleThreadScheduledExecutor();
+        try (StandInServer server = new StandInServer(STALLED_HEADERS)) {
+            CancellationToken token = new CancellationToken();
+            HedgingPolicy policy = new HedgingPolicy().budget(1)
+                    .delayBounds(Duration.ofMillis(10), Duration.ofMillis(50));
+            for (HTTPClient c : new HTTPClient[]{server.client(), server.client().hedging(policy)}) {
+                CancellationToken child = token.child();
+                Query q = c.lookupRRSet(Client.TYPE_NAME, "example.com").cancellation(child);
+                long start = System.nanoTime();
+                canceller.schedule(child::cancel, 200, TimeUnit.MILLISECONDS);
+                assertThrows(QueryCancelledException.class, q::stream);
+                assertQuick(start);
+            }
+            assertFalse(token.isCancelled(), "cancelling a child leaves the parent");
+        } finally {
+            canceller.shutdownNow();
+        }
+    }
+
+    @Test
+    void timeoutBeforeBeginHedged() throws IOException {
+        try (StandInServer server = new StandInServer(STALLED_BEGIN)) {
+            HedgingPolicy policy = new HedgingPolicy().budget(1)
+                    .delayBounds(Duration.ofMillis(10), Duration.ofMillis(50));
+            for (HTTPClient c : new HTTPClient[]{server.client(), server.client().hedging(policy)}) {
+                Query q = c.lookupRRSet(Client.TYPE_NAME, "example.com").timeout(Duration.ofMillis(500));
+                long start = System.nanoTime();
+                assertThrows(DeadlineExceededException.class, () -> drain(q.stream()));
+                assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2), "the deadline bounds the wait");
+            }
+            assertEquals(1, policy.hedges());
+        }
+    }
+
+    @Test
+    void abortsAreNotOverload() throws IOException {
+        try (StandInServer server = new StandInServer(STALLED_HEADERS)) {
+            CircuitBreaker breaker = new CircuitBreaker().failureThreshold(3);
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter().initialLimit(8).circuitBreaker(breaker);
+            HTTPClient c = server.client().limiter(limiter);
+            for (int i = 0; i < 5; i++) {
+                Query q = c.lookupRRSet(Client.TYPE_NAME, "example.com").timeout(Duration.ofMillis(100));
+                assertThrows(DeadlineExceededException.class, q::stream);
+            }
+            cancelAll(c);
+            assertEquals(8, limiter.limit());
+            assertEquals(0, limiter.overloads());
+            assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+            assertEquals(0, limiter.inFlight());
+        }
+    }
+
+    @Test
+    void abortsKeepKeys() throws IOException {
+        try (StandInServer server = new StandInServer(exchange -> {
+            if (exchange.getRequestURI().getPath().endsWith("/rate_limit")) {
+                StandInServer.send(exchange, 200, "{\"rate\":{\"limit\":5000,\"remaining\":5000,"
+                        + "\"reset\":4102444800}}");
+            } else {
+                STALLED_HEADERS.handle(exchange);
+            }
+        })) {
+            PooledClient pool = new PooledClient(server.uri(), "key-aaaa");
+            pool.refresh();
+            for (int i = 0; i < 5; i++) {
+                Query q = pool.lookupRRSet(Client.TYPE_NAME, "example.com").timeout(Duration.ofMillis(100));
+                assertThrows(DeadlineExceededException.class, q::stream);
+            }
+            cancelAll(pool);
+            PooledClient.Key key = pool.keys().get(0);
+            assertTrue(key.available(), "the key was not blocked");
+            assertEquals(0, key.errors());
+            assertEquals(0, key.active());
+        }
+    }
+
+    private static void cancelAll(Client c) {
+        ScheduledExecutorService canceller = Executors.newSingleThreadScheduledExecutor();
+        try {
+            for (int i = 0; i < 5; i++) {
+                CancellationToken token = new CancellationToken();
+                Query q = c.lookupRRSet(Client.TYPE_NAME, "example.com").cancellation(token);
+                canceller.schedule(token::cancel, 50, TimeUnit.MILLISECONDS);
+                assertThrows(QueryCancelledException.class, q::stream);
+            }
+        } finally {
+            canceller.shutdownNow();
+        }
+    }
+
+    @Test
+    void cancelledExchangeClosedOnArrival() throws IOException, InterruptedException {
+        CountDownLatch closed = new CountDownLatch(1);
+        ScheduledExecutorService canceller = Executors.newSingleThreadScheduledExecutor();
+        try (StandInServer server = new StandInServer(exchange -> {
+            // The headers only arrive after the query was cancelled.
+            try {
+                Thread.sleep(500);
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                for (int i = 0; i < 100; i++) {
+                    out.write(' ');
+                    out.flush();
+                    Thread.sleep(50);
+                }
+            } catch (IOException e) {
+                closed.countDown();
+            } catch (InterruptedException e) {
+                // server stopped
+            }
+        })) {
+            CancellationToken token = new CancellationToken();
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com").cancellation(token);
+            canceller.schedule(token::cancel, 100, TimeUnit.MILLISECONDS);
+            assertThrows(QueryCancelledException.class, q::stream);
+            assertTrue(closed.await(3, TimeUnit.SECONDS), "the late response was closed");
+        } finally {
+            canceller.shutdownNow();
+        }
+    }
+
+    @Test
+    void cancelledTokenSendsNothing() throws IOException {
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(1, Query.COND_SUCCEEDED))) {
+            CancellationToken token = new CancellationToken();
+            CancellationToken child = token.child();
+            token.cancel();
+            assertTrue(child.isCancelled(), "cancelling a parent cancels its children");
+
+            QueryTemplate t = server.client().lookupRRSet(Client.TYPE_NAME, "").cancellation(child).template();
+            assertThrows(QueryCancelledException.class, () -> t.stream("example.com"));
+            Query expired = server.client().lookupRRSet(Client.TYPE_NAME, "example.com")
+                    .deadline(Instant.now().minusSeconds(1));
+            assertThrows(DeadlineExceededException.class, expired::count);
+            assertEquals(0, server.requests());
+        }
+    }
+
+    @Test
+    void deadlineSharedByPages() throws IOException {
+        try (StandInServer server = new StandInServer(exchange -> {
+            try {
+                Thread.sleep(150);
+            } catch (InterruptedException e) {
+                return;
+            }
+            StandInServer.send(exchange, 200, StandInServer.saf(1, Query.COND_LIMITED));
+        })) {
+            QueryTemplate t = server.client().lookupRRSet(Client.TYPE_NAME, "")
+                    .disableLimitedException(true)
+                    .deadline(Instant.now().plusMillis(500))
+                    .template();
+            int pages = 0;
+            try {
+                for (; pages < 10; pages++) {
+                    drain(t.stream("example.com"));
+                }
+            } catch (DeadlineExceededException e) {
+                // expected once the pages have used up the deadline
+            }
+            assertTrue(pages >= 1 && pages < 10, "pages until the deadline: " + pages);
+        }
+    }
+
+    @Test
+    void waitForPermit() throws IOException {
+        try (StandInServer server = new StandInServer(STALLED_STREAM)) {
+            QueryScheduler scheduler = new QueryScheduler(server.client(), 1);
+            Client c = scheduler.client(QueryScheduler.Priority.NORMAL, "t");
+            CancellationToken token = new CancellationToken();
+            Iterator<JSONObject> holder = c.lookupRRSet(Client.TYPE_NAME, "a.example.com").cancellation(token)
+                    .stream();
+            assertTrue(holder.hasNext());
+
+            Query waiting = c.lookupRRSet(Client.TYPE_NAME, "b.example.com").timeout(Duration.ofMillis(200));
+            long start = System.nanoTime();
+            assertThrows(DeadlineExceededException.class, waiting::stream);
+            assertQuick(start);
+            assertEquals(0, scheduler.queued(QueryScheduler.Priority.NORMAL));
+
+            token.cancel();
+            assertThrows(QueryCancelledException.class, () -> drain(holder));
+            assertEquals(0, scheduler.running());
+        }
+    }
+}
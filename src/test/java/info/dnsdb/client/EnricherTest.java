@@ -0,0 +1,98 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EnricherTest {
+    @Test
+    void enrich(@TempDir Path dir) throws IOException {
+        try (StandInServer server = new StandInServer(exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            if (path.contains("bad.example")) {
+                StandInServer.send(exchange, 503, "");
+                return;
+            }
+            // later names answer faster, so unordered output would overtake
+            int n = Integer.parseInt(path.replaceAll(".*/host(\\d+)\\.example.*", "$1"));
+            try {
+                Thread.sleep(50L * (5 - n % 5));
+            } catch (InterruptedException e) {
+                return;
+            }
+            StandInServer.send(exchange, 200, StandInServer.saf(n % 3 + 1, Query.COND_LIMITED));
+        })) {
+            HTTPClient c = server.client();
+            StringBuilder csv = new StringBuilder("id,domain,note\n");
+            for (int i = 0; i < 50; i++) {
+                csv.append(i).append(",host").append(i % 10).append(".example.com,\"a, \"\"b\"\"\"\n");
+            }
+            csv.append("50,bad.example.com,\n51,,\n");
+
+            Enricher enricher = new Enricher(name -> c.lookupRRSet(Client.TYPE_NAME, name), "domain")
+                    .concurrency(4).window(16).memoryBudget(1024).tempDirectory(dir);
+            List<JSONObject> out = new ArrayList<>();
+            try (Enricher.Enrichment e = enricher.enrich(Enricher.csv(new BufferedReader(new StringReader(csv.toString()))))) {
+                e.forEachRemaining(out::add);
+                assertEquals(11, e.lookups(), "each indicator looked up once");
+                assertEquals(40, e.hits());
+            }
+            assertEquals(10 + 1, server.requests());
+
+            assertEquals(52, out.size());
+            for (int i = 0; i < 50; i++) {
+                JSONObject r = out.get(i);
+                assertEquals(Integer.toString(i), r.getString("id"), "input order preserved");
+                assertEquals("a, \"b\"", r.getString("note"));
+                assertEquals(i % 10 % 3 + 1, r.getJSONArray("dnsdb").length());
+            }
+            assertTrue(out.get(50).has("dnsdb_error"));
+            assertFalse(out.get(51).has("dnsdb"), "blank indicator passed through");
+
+            Iterator<JSONObject> unordered = new Enricher(name -> c.lookupRRSet(Client.TYPE_NAME, name), "domain")
+                    .preserveOrder(false).concurrency(5)
+                    .enrich(Enricher.ndjson(new BufferedReader(new StringReader(
+                            "{\"domain\":\"host0.example.com\"}\n\n{\"domain\":\"host4.example.com\",\"tag\":null}\n{\"x\":1}\n"))));
+            List<JSONObject> rows = new ArrayList<>();
+            unordered.forEachRemaining(rows::add);
+            assertEquals(3, rows.size());
+            assertNull(rows.get(0).optString("domain", null), "the record without an indicator is ready first");
+            Set<String> domains = new HashSet<>();
+            rows.forEach(r -> domains.add(r.optString("domain")));
+            assertTrue(domains.contains("host0.example.com"));
+            JSONObject host4 = rows.stream().filter(r -> r.optString("domain").equals("host4.example.com"))
+                    .findFirst().orElseThrow();
+            assertTrue(host4.has("tag") && host4.isNull("tag"), "null fields are copied");
+        }
+    }
+}
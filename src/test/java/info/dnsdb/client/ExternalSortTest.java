@@ -0,0 +1,89 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExternalSortTest {
+    private static final int MAX_RUNS = 64;
+
+    private static JSONObject row(String rrname, long timeFirst) {
+        return new JSONObject().put("rrname", rrname).put("rrtype", "A")
+                .put("time_first", timeFirst).put("rdata", new String[]{"192.0.2.1"});
+    }
+
+    private static List<JSONObject> drain(Iterator<JSONObject> it) {
+        List<JSONObject> rows = new ArrayList<>();
+        it.forEachRemaining(rows::add);
+        return rows;
+    }
+
+    private static long files(Path dir) throws IOException {
+        try (Stream<Path> s = Files.list(dir)) {
+            return s.count();
+        }
+    }
+
+    @Test
+    void spillAndMerge(@TempDir Path dir) throws IOException {
+        Random rnd = new Random(1);
+        try (ExternalSort sort = new ExternalSort(ExternalSort.BY_TIME_FIRST).memoryBudget(16 << 10)
+                .tempDirectory(dir).distinct(true)) {
+            for (int i = 0; i < 5000; i++) {
+                JSONObject r = row("host" + i + ".example.com.", rnd.nextInt(1000000));
+                sort.add(r);
+                if (i % 10 == 0) {
+                    sort.add(new JSONObject(r.toString()));
+                }
+            }
+            assertTrue(sort.spilledRuns() > MAX_RUNS, "spilled more runs than one merge takes");
+            assertEquals(5500, sort.rows());
+
+            List<JSONObject> rows = drain(sort.sorted());
+            assertEquals(5000, rows.size(), "duplicates dropped");
+            for (int i = 1; i < rows.size(); i++) {
+                assertTrue(rows.get(i - 1).getLong("time_first") <= rows.get(i).getLong("time_first"));
+            }
+        }
+        assertEquals(0, files(dir), "runs deleted on close");
+    }
+
+    @Test
+    void reversedName() {
+        ExternalSort sort = new ExternalSort(ExternalSort.BY_REVERSED_NAME);
+        for (String name : new String[]{"example.net.", "www.Example.com.", "example.com.", "a.example.com.", "com."}) {
+            sort.add(row(name, 0));
+        }
+        List<String> names = new ArrayList<>();
+        sort.sorted().forEachRemaining(r -> names.add(r.getString("rrname")));
+        assertEquals(List.of("com.", "example.com.", "a.example.com.", "www.Example.com.", "example.net."), names);
+        sort.close();
+    }
+}
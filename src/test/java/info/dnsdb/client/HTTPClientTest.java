@@ -16,14 +16,27 @@ package info.dnsdb.client;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpRequest;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class HTTPClientTest {
     @Test
@@ -49,4 +62,153 @@ class HTTPClientTest {
         assertNotEquals(req.headers().firstValue("X-API-Key"), "", "X-API-Key header set");
         assertNotEquals(req.headers().firstValue("Accept"), "", "Accept header set");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void hedging() throws IOException {
+        AtomicInteger n = new AtomicInteger();
+        try (StandInServer server = new StandInServer(exchange -> {
+            if (n.getAndIncrement() == 0) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            StandInServer.send(exchange, 200, StandInServer.saf(10, Query.COND_SUCCEEDED));
+        })) {
+            HedgingPolicy policy = new HedgingPolicy().budget(1)
+                    .delayBounds(Duration.ofMillis(10), Duration.ofMillis(100));
+            HTTPClient c = server.client().hedging(policy);
+
+            long start = System.nanoTime();
+            Iterator<?> it = c.lookupRRSet(Client.TYPE_NAME, "example.com").stream();
+            int rows = 0;
+            while (it.hasNext()) {
+                it.next();
+                rows++;
+            }
+            assertEquals(10, rows);
+            assertTrue(System.nanoTime() - start < Duration.ofSeconds(2).toNanos(), "the fast response won");
+            assertEquals(1, policy.hedges());
+            assertEquals(2, server.requests());
+        }
+    }
+
+    @Test
+    public void hedgingClosesLoser() throws IOException, InterruptedException {
+        // The loser's headers arrive before the winner's, or only after the winner has been chosen.
+        for (long headerDelay : new long[]{0, 500}) {
+            AtomicInteger n = new AtomicInteger();
+            CountDownLatch closed = new CountDownLatch(1);
+            try (StandInServer server = new StandInServer(exchange -> {
+                if (n.getAndIncrement() > 0) {
+                    StandInServer.send(exchange, 200, StandInServer.saf(1, Query.COND_SUCCEEDED));
+                    return;
+                }
+                // Send the headers, then trickle padding without ever completing the begin line.
+                try {
+                    Thread.sleep(headerDelay);
+                    exchange.sendResponseHeaders(200, 0);
+                    OutputStream out = exchange.getResponseBody();
+                    for (int i = 0; i < 100; i++) {
+                        out.write(' ');
+                        out.flush();
+                        Thread.sleep(50);
+                    }
+                } catch (IOException e) {
+                    closed.countDown();
+                } catch (InterruptedException e) {
+                    // server stopped
+                }
+            })) {
+                HedgingPolicy policy = new HedgingPolicy().budget(1)
+                        .delayBounds(Duration.ofMillis(10), Duration.ofMillis(100));
+                assertEquals(1, server.client().hedging(policy).lookupRRSet(Client.TYPE_NAME, "example.com").count()
+                        .rows());
+                assertTrue(closed.await(2, TimeUnit.SECONDS), "the losing exchange was closed before it began");
+            }
+        }
+    }
+
+    @Test
+    public void hedgingBudget() {
+        HedgingPolicy policy = new HedgingPolicy().budget(0.1);
+        for (int i = 0; i < 9; i++) {
+            policy.request();
+        }
+        assertFalse(policy.tryHedge());
+        policy.request();
+        assertTrue(policy.tryHedge());
+        assertFalse(policy.tryHedge(), "hedges never exceed 10% of requests");
+    }
+
+    /**
+     * Records the client address of each ping and query; pings take a little while, so that concurrent pings overlap.
+     */
+    private static StandInServer pingServer(List<InetSocketAddress> pings, List<InetSocketAddress> queries)
+            throws IOException {
+        return new StandInServer(exchange -> {
+            if (exchange.getRequestURI().getPath().endsWith("/ping")) {
+                pings.add(exchange.getRemoteAddress());
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                StandInServer.send(exchange, 200, "{\"ping\":\"ok\"}");
+            } else {
+                queries.add(exchange.getRemoteAddress());
+                StandInServer.send(exchange, 200, StandInServer.saf(1, Query.COND_SUCCEEDED));
+            }
+        });
+    }
+
+    @Test
+    public void warmUp() throws IOException {
+        List<InetSocketAddress> pings = new CopyOnWriteArrayList<>();
+        List<InetSocketAddress> queries = new CopyOnWriteArrayList<>();
+        try (StandInServer server = pingServer(pings, queries)) {
+            HTTPClient c = server.client().warmUp(3, null);
+            assertEquals(3, pings.size());
+            assertEquals(3, Set.copyOf(pings).size(), "one connection per ping");
+
+            Iterator<?> it = c.lookupRRSet(Client.TYPE_NAME, "example.com").stream();
+            while (it.hasNext()) {
+                it.next();
+            }
+            assertTrue(pings.contains(queries.get(0)), "the query used a warm connection");
+        }
+    }
+
+    @Test
+    public void keepAlive() throws IOException, InterruptedException {
+        List<InetSocketAddress> pings = new CopyOnWriteArrayList<>();
+        try (StandInServer server = pingServer(pings, new CopyOnWriteArrayList<>())) {
+            HTTPClient c = server.client().warmUp(2, Duration.ofMillis(100));
+            Thread.sleep(600);
+            assertTrue(pings.size() >= 4, "idle connections pinged again: " + pings.size());
+            assertEquals(2, Set.copyOf(pings).size(), "the same connections are kept");
+
+            c.warmUp(0, null);
+            Thread.sleep(100);
+            int n = pings.size();
+            Thread.sleep(300);
+            assertEquals(n, pings.size(), "no pings after stopping");
+        }
+    }
+
+    @Test
+    public void keepAliveUnderTraffic() throws IOException, InterruptedException {
+        List<InetSocketAddress> pings = new CopyOnWriteArrayList<>();
+        try (StandInServer server = pingServer(pings, new CopyOnWriteArrayList<>())) {
+            HTTPClient c = server.client().warmUp(2, Duration.ofMillis(400));
+            long end = System.nanoTime() + Duration.ofMillis(2000).toNanos();
+            while (System.nanoTime() < end) {
+                c.lookupRRSet(Client.TYPE_NAME, "example.com").count();
+                Thread.sleep(5);
+            }
+            assertTrue(pings.size() >= 10, "connections idle between queries are pinged too: " + pings.size());
+            c.warmUp(0, null);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HyperLogLogTest {
+    private static void assertNear(long expected, long actual, double tolerance) {
+        assertTrue(Math.abs(actual - expected) <= expected * tolerance,
+                String.format("expected %d within %.1f%%, got %d", expected, tolerance * 100, actual));
+    }
+
+    @Test
+    void estimate() {
+        HyperLogLog h = new HyperLogLog();
+        assertEquals(0, h.estimate());
+
+        for (int i = 0; i < 100; i++) {
+            h.add("host" + i + ".example.com.");
+            h.add("host" + i + ".example.com.");
+        }
+        assertNear(100, h.estimate(), 0.02);
+
+        for (int i = 100; i < 500000; i++) {
+            h.add("host" + i + ".example.com.");
+        }
+        assertNear(500000, h.estimate(), 0.03);
+    }
+
+    @Test
+    void merge() {
+        HyperLogLog a = new HyperLogLog(12);
+        HyperLogLog b = new HyperLogLog(12);
+        for (int i = 0; i < 60000; i++) {
+            a.add(Integer.toString(i));
+        }
+        for (int i = 40000; i < 100000; i++) {
+            b.add(Integer.toString(i));
+        }
+        assertNear(100000, a.merge(b).estimate(), 0.05);
+        assertThrows(IllegalArgumentException.class, () -> a.merge(new HyperLogLog(10)));
+    }
+
+    @Test
+    void serialization() {
+        HyperLogLog h = new HyperLogLog(10);
+        for (int i = 0; i < 1000; i++) {
+            h.add(Integer.toString(i));
+        }
+        HyperLogLog copy = HyperLogLog.fromBytes(h.toBytes());
+        assertEquals(h, copy);
+        assertEquals(h.estimate(), copy.estimate());
+    }
+}
@@ -0,0 +1,134 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IPIndexTest {
+    private static List<String> collect(Iterator<IPIndex.Entry<String>> it) {
+        List<String> res = new ArrayList<>();
+        while (it.hasNext()) {
+            res.add(it.next().toString());
+        }
+        return res;
+    }
+
+    @Test
+    void longestPrefixMatch() {
+        IPIndex<String> index = new IPIndex<>();
+        index.put("10.0.0.0/8", "a");
+        index.put("10.1.0.0/16", "b");
+        index.put("10.1.2.3", "c");
+        index.put("2001:db8::/32", "d");
+
+        assertEquals(4, index.size());
+        assertEquals("c", index.longestPrefixMatch("10.1.2.3").value());
+        assertEquals("b", index.longestPrefixMatch("10.1.2.4").value());
+        assertEquals("a", index.longestPrefixMatch("10.2.0.1").value());
+        assertEquals("10.1.0.0/16", index.longestPrefixMatch("10.1.255.255").toString());
+        assertEquals("d", index.longestPrefixMatch("2001:db8::1").value());
+        assertNull(index.longestPrefixMatch("11.0.0.1"));
+        assertTrue(index.contains("10.255.255.255"));
+        assertFalse(index.contains("2001:db9::1"));
+    }
+
+    @Test
+    void getAndMerge() {
+        IPIndex<Integer> index = new IPIndex<>();
+        index.merge("192.0.2.1", 1, Integer::sum);
+        index.merge("192.0.2.1", 1, Integer::sum);
+        index.merge("192.0.2.0/24", 5, Integer::sum);
+
+        assertEquals(2, index.get("192.0.2.1"));
+        assertEquals(5, index.get("192.0.2.77/24"));
+        assertNull(index.get("192.0.2.0/25"));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    void withinAndRange() {
+        IPIndex<String> index = new IPIndex<>();
+        for (String ip : new String[]{"192.0.2.9", "192.0.2.1", "198.51.100.1", "192.0.2.128/25", "192.0.0.0/16"}) {
+            index.put(ip, ip);
+        }
+
+        assertEquals(List.of("192.0.2.1/32", "192.0.2.9/32", "192.0.2.128/25"), collect(index.within("192.0.2.0/24")));
+        assertEquals(List.of("192.0.2.9/32", "192.0.2.128/25", "198.51.100.1/32"),
+                collect(index.range("192.0.2.5", "198.51.100.1")));
+        assertEquals(5, collect(index.iterator()).size());
+        assertThrows(IllegalArgumentException.class, () -> index.range("192.0.2.5", "::1"));
+    }
+
+    @Test
+    void addAll() {
+        JSONObject rrset = new JSONObject().put("rrname", "www.example.com.").put("rrtype", "A")
+                .put("rdata", new JSONArray().put("192.0.2.1").put("192.0.2.2"));
+        JSONObject rdata = new JSONObject().put("rrname", "mail.example.com.").put("rrtype", "AAAA")
+                .put("rdata", "2001:db8::25");
+        JSONObject ns = new JSONObject().put("rrname", "example.com.").put("rrtype", "NS")
+                .put("rdata", new JSONArray().put("ns.example.com."));
+
+        IPIndex<String> index = new IPIndex<>();
+        long n = index.addAll(List.of(rrset, rdata, ns).iterator(), obj -> obj.getString("rrname"), (a, b) -> a);
+
+        assertEquals(3, n);
+        assertEquals("www.example.com.", index.get("192.0.2.2"));
+        assertEquals("mail.example.com.", index.longestPrefixMatch("2001:db8::25").value());
+    }
+
+    @Test
+    void rejectsNames() {
+        IPIndex<String> index = new IPIndex<>();
+        assertThrows(IllegalArgumentException.class, () -> index.put("www.example.com", "x"));
+        assertThrows(IllegalArgumentException.class, () -> index.put("192.0.2.0/33", "x"));
+    }
+
+    @Test
+    void parseAddressLiterals() throws UnknownHostException {
+        for (String literal : new String[]{"192.0.2.1", "0.0.0.0", "255.255.255.255", "::", "::1", "1::",
+                "2001:db8::1", "2001:DB8:0:0:8:800:200C:417A", "1:2:3:4:5:6:7:8", "1:2:3:4:5:6:7::", "::2:3:4:5:6:7:8",
+                "fe80::1:2", "::192.0.2.1", "64:ff9b::192.0.2.1"}) {
+            assertArrayEquals(InetAddress.getByName(literal).getAddress(), IPIndex.parseAddress(literal), literal);
+        }
+        assertArrayEquals(new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xff, (byte) 0xff, (byte) 192, 0, 2, 1},
+                IPIndex.parseAddress("::ffff:192.0.2.1"), "IPv4-mapped literals stay 16 bytes long");
+    }
+
+    @Test
+    void parseAddressRejects() {
+        for (String s : new String[]{"", "1.2.3.4.5", "999.1.1.1", "256.0.0.1", "123", "10.1", "10.1.2", "01.2.3.4",
+                "1.2.3.", ".1.2.3", "1..2.3", "1.2.3.4 ", "0x7f.0.0.1", "example.com", "1.2.3.4:80", ":", ":::",
+                ":1::", "1:", "1::2::3", "12345::", "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7:8::", "1::2:3:4:5:6:7:8",
+                "::1.2.3", "::1.2.3.4.5", "1:2:3:4:5:6:7:1.2.3.4", "fe80::1%eth0", "g::1"}) {
+            assertThrows(IllegalArgumentException.class, () -> IPIndex.parseAddress(s), s);
+        }
+    }
+}
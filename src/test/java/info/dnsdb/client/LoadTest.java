@@ -0,0 +1,327 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Load-generation harness measuring how one HTTPClient behaves under many concurrent streams against a local
+ * StandInServer. Skipped unless the load system property is set; run it with the load profile, eg.
+ *
+ * <pre>
+ * mvn -Pload test -Dload.concurrency=10,100,1000 -Dload.duration=20
+ * mvn -Pload test -Dload.rate=500,2000
+ * </pre>
+ *
+ * Properties:
+ * <ul>
+ * <li>load.concurrency: closed-loop levels, each a number of streams issuing queries back to back (default 10,100).
+ * <li>load.rate: open-loop levels in queries per second. If set, replaces load.concurrency. Latency is measured from
+ * each query's scheduled start, so a saturated client shows as queueing delay rather than a lower rate.
+ * <li>load.duration: seconds per level (default 10).
+ * <li>load.mix: weights of rrset, rdata and flex queries (default rrset:5,rdata:3,flex:2).
+ * <li>load.longFraction: fraction of queries returning long streams (default 0.1).
+ * <li>load.shortRows, load.longRows: rows in short and long streams (default 10 and 10000).
+ * <li>load.readAhead: read-ahead depth of each query, 0 to decode on the caller's thread (default 0).
+ * <li>load.warmUp: connections opened with HTTPClient.warmUp() before the first level, to compare first-query
+ * latency with and without it (default 0).
+ * </ul>
+ *
+ * Each level reports latency percentiles to completion and to the first row, queries and rows per second, errors,
+ * peak live threads, connections accepted by the server, heap growth and the allocation rate of client threads.
+ */
+class LoadTest {
+    private static final String[] ENDPOINTS = {"rrset", "rdata", "flex"};
+    private static final String LONG = "long-";
+    private static final String SHORT = "short-";
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+
+    private int[] weights;
+    private double longFraction;
+    private int readAhead;
+
+    private static String property(String name, String def) {
+        String v = System.getProperty(name);
+        return v == null || v.isEmpty() ? def : v;
+    }
+
+    private static long[] levels(String spec) {
+        return Arrays.stream(spec.split(",")).mapToLong(s -> Long.parseLong(s.trim())).toArray();
+    }
+
+    @Test
+    void load() throws Exception {
+        assumeTrue(System.getProperty("load") != null, "load property set");
+
+        weights = new int[ENDPOINTS.length];
+        for (String part : property("load.mix", "rrset:5,rdata:3,flex:2").split(",")) {
+            String[] kv = part.split(":");
+            weights[Arrays.asList(ENDPOINTS).indexOf(kv[0].trim())] = Integer.parseInt(kv[1].trim());
+        }
+        longFraction = Double.parseDouble(property("load.longFraction", "0.1"));
+        readAhead = Integer.parseInt(property("load.readAhead", "0"));
+        Duration duration = Duration.ofSeconds(Long.parseLong(property("load.duration", "10")));
+
+        String shortBody = StandInServer.saf(Integer.parseInt(property("load.shortRows", "10")), Query.COND_SUCCEEDED);
+        String longBody = StandInServer.saf(Integer.parseInt(property("load.longRows", "10000")), Query.COND_SUCCEEDED);
+        try (StandInServer server = new StandInServer(exchange -> {
+            connections.add(exchange.getRemoteAddress());
+            String path = exchange.getRequestURI().getRawPath();
+            StandInServer.send(exchange, 200, path.contains(LONG) ? longBody : shortBody);
+        })) {
+            HTTPClient client = server.client();
+            int warm = Integer.parseInt(property("load.warmUp", "0"));
+            if (warm > 0) {
+                client.warmUp(warm, null);
+            }
+            String rates = System.getProperty("load.rate");
+            if (rates != null && !rates.isEmpty()) {
+                for (long rate : levels(rates)) {
+                    System.out.println(openLoop(client, rate, duration));
+                }
+            } else {
+                for (long concurrency : levels(property("load.concurrency", "10,100"))) {
+                    System.out.println(closedLoop(client, (int) concurrency, duration));
+                }
+            }
+        }
+    }
+
+    /**
+     * Latencies and counters of one level.
+     */
+    private final class Run {
+        final String name;
+        final long[] latencies = new long[1 << 20];
+        final long[] firstRows = new long[1 << 20];
+        final AtomicInteger queries = new AtomicInteger();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicInteger errors = new AtomicInteger();
+        volatile long heapPeak;
+        long startNanos;
+        long endNanos;
+        long startHeap;
+        long endHeap;
+        long allocated;
+        int threadPeak;
+
+        Run(String name) {
+            this.name = name;
+        }
+
+        void record(long latency, long firstRow, long n) {
+            int i = queries.getAndIncrement();
+            if (i < latencies.length) {
+                latencies[i] = latency;
+                firstRows[i] = firstRow;
+            }
+            rows.addAndGet(n);
+        }
+
+        private String percentiles(long[] values) {
+            int n = Math.min(queries.get(), values.length);
+            long[] sorted = Arrays.copyOf(values, n);
+            Arrays.sort(sorted);
+            StringBuilder sb = new StringBuilder();
+            for (double p : new double[]{0.5, 0.9, 0.99, 0.999}) {
+                long v = n == 0 ? 0 : sorted[Math.min(n - 1, (int) (p * n))];
+                sb.append(String.format(" p%s=%.2fms", Double.toString(p * 100).replaceAll("\\.0$", ""), v / 1e6));
+            }
+            sb.append(String.format(" max=%.2fms", n == 0 ? 0 : sorted[n - 1] / 1e6));
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            double seconds = (endNanos - startNanos) / 1e9;
+            return String.format("%s: queries=%d errors=%d qps=%.0f rows/s=%.0f%n  latency%s%n  first row%s%n"
+                            + "  threads(peak)=%d connections=%d heap(growth)=%.1fMB heap(peak)=%.1fMB alloc=%.1fMB/s",
+                    name, queries.get(), errors.get(), queries.get() / seconds, rows.get() / seconds,
+                    percentiles(latencies), percentiles(firstRows), threadPeak, connections.size(),
+                    (endHeap - startHeap) / 1e6, heapPeak / 1e6, allocated / 1e6 / seconds);
+        }
+    }
+
+    private Run closedLoop(HTTPClient client, int concurrency, Duration duration) throws InterruptedException {
+        Run run = new Run(String.format("closed loop, concurrency %d", concurrency));
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        begin(run);
+        long deadline = run.startNanos + duration.toNanos();
+        CountDownLatch done = new CountDownLatch(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            pool.execute(() -> {
+                while (System.nanoTime() < deadline) {
+                    execute(client, run, System.nanoTime());
+                }
+                done.countDown();
+            });
+        }
+        sample(run, deadline);
+        done.await();
+        end(run);
+        pool.shutdown();
+        return run;
+    }
+
+    private Run openLoop(HTTPClient client, long rate, Duration duration) throws InterruptedException {
+        Run run = new Run(String.format("open loop, %d queries/s", rate));
+        ExecutorService pool = Executors.newCachedThreadPool();
+        begin(run);
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long deadline = run.startNanos + duration.toNanos();
+        AtomicInteger inFlight = new AtomicInteger();
+        Thread dispatcher = new Thread(() -> {
+            for (long scheduled = run.startNanos; scheduled < deadline; scheduled += interval) {
+                long wait = scheduled - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                long start = scheduled;
+                inFlight.incrementAndGet();
+                pool.execute(() -> {
+                    execute(client, run, start);
+                    inFlight.decrementAndGet();
+                });
+            }
+        }, "load-dispatcher");
+        dispatcher.start();
+        sample(run, deadline);
+        dispatcher.join();
+        while (inFlight.get() > 0) {
+            Thread.sleep(10);
+        }
+        end(run);
+        pool.shutdown();
+        return run;
+    }
+
+    private void execute(HTTPClient client, Run run, long start) {
+        Random rnd = ThreadLocalRandom.current();
+        String value = (rnd.nextDouble() < longFraction ? LONG : SHORT) + rnd.nextInt(1 << 20) + ".example.com";
+        Query q;
+        switch (ENDPOINTS[pick(rnd)]) {
+            case "rrset":
+                q = client.lookupRRSet(Client.TYPE_NAME, value);
+                break;
+            case "rdata":
+                q = client.lookupRData(Client.TYPE_NAME, value);
+                break;
+            default:
+                q = client.flex(Client.METHOD_GLOB, Client.KEY_RRNAMES, "*." + value);
+                break;
+        }
+        long firstRow = 0;
+        long n = 0;
+        try (q) {
+            Iterator<JSONObject> it = q.readAhead(readAhead).stream();
+            while (it.hasNext()) {
+                it.next();
+                if (n++ == 0) {
+                    firstRow = System.nanoTime() - start;
+                }
+            }
+            run.record(System.nanoTime() - start, firstRow, n);
+        } catch (DNSDBException e) {
+            run.errors.incrementAndGet();
+        }
+    }
+
+    private int pick(Random rnd) {
+        int total = Arrays.stream(weights).sum();
+        int r = rnd.nextInt(total);
+        for (int i = 0; ; i++) {
+            r -= weights[i];
+            if (r < 0) {
+                return i;
+            }
+        }
+    }
+
+    private void begin(Run run) {
+        connections.clear();
+        System.gc();
+        run.startHeap = memory.getHeapMemoryUsage().getUsed();
+        threads.resetPeakThreadCount();
+        run.allocated = -clientAllocatedBytes();
+        run.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Track the heap peak until the deadline.
+     */
+    private void sample(Run run, long deadline) throws InterruptedException {
+        while (System.nanoTime() < deadline) {
+            run.heapPeak = Math.max(run.heapPeak, memory.getHeapMemoryUsage().getUsed());
+            Thread.sleep(50);
+        }
+    }
+
+    private void end(Run run) {
+        run.endNanos = System.nanoTime();
+        run.allocated += clientAllocatedBytes();
+        run.threadPeak = threads.getPeakThreadCount();
+        System.gc();
+        run.endHeap = memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Bytes allocated by live threads other than the stand-in server's. Threads that ended during a level are not
+     * counted, which is why the pools of each level are only shut down after this is read.
+     */
+    private long clientAllocatedBytes() {
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+        long[] ids = t.getAllThreadIds();
+        ThreadInfo[] infos = t.getThreadInfo(ids);
+        long[] bytes = t.getThreadAllocatedBytes(ids);
+        long sum = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (infos[i] != null && bytes[i] > 0 && !infos[i].getThreadName().startsWith(StandInServer.THREAD_PREFIX)
+                    && !infos[i].getThreadName().startsWith("HTTP-Dispatcher")) {
+                sum += bytes[i];
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,115 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MainTest {
+    private static Map<String, String> params(String query) {
+        Map<String, String> params = new HashMap<>();
+        for (String p : query.split("&")) {
+            String[] kv = p.split("=", 2);
+            params.put(kv[0], URLDecoder.decode(kv[1], StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    /**
+     * Serves 250 rows per indicator, honoring limit and offset, and fails the first request with 503.
+     */
+    private static StandInServer server() throws IOException {
+        AtomicInteger n = new AtomicInteger();
+        return new StandInServer(exchange -> {
+            if (n.getAndIncrement() == 0) {
+                StandInServer.send(exchange, 503, "");
+                return;
+            }
+            Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+            int offset = Integer.parseInt(params.getOrDefault("offset", "0"));
+            int limit = Integer.parseInt(params.getOrDefault("limit", "10000"));
+            StringBuilder sb = new StringBuilder("{\"cond\":\"begin\"}\n");
+            for (int i = offset; i < Math.min(250, offset + limit); i++) {
+                sb.append(StandInServer.row(i)).append('\n');
+            }
+            sb.append("{\"cond\":\"succeeded\"}\n");
+            StandInServer.send(exchange, 200, sb.toString());
+        });
+    }
+
+    private static int run(String input, ByteArrayOutputStream out, ByteArrayOutputStream err, String... args) {
+        return Main.run(args, new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), out,
+                new PrintStream(err, true, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void ndjsonWithPaging() throws IOException {
+        StringBuilder input = new StringBuilder("# indicators\n\n");
+        for (int i = 0; i < 20; i++) {
+            input.append("host").append(i).append(".example.com\n");
+        }
+        try (StandInServer server = server()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            int status = run(input.toString(), out, err,
+                    "-k", "abc123", "-s", server.uri(), "-p", "100", "-c", "8", "-r", "2");
+            assertEquals(0, status, err.toString(StandardCharsets.UTF_8));
+            assertEquals(20 * 250, out.toString(StandardCharsets.UTF_8).split("\n").length);
+            assertEquals(20 * 3 + 1, server.requests(), "three pages per indicator plus one retry");
+            assertTrue(err.toString(StandardCharsets.UTF_8).contains("rows=5000"));
+        }
+    }
+
+    @Test
+    void csv() throws IOException {
+        try (StandInServer server = server()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            int status = run("a,b.example.com\n", out, err,
+                    "-k", "abc123", "-s", server.uri(), "-f", "csv", "-l", "2", "-S", "0");
+            assertEquals(0, status);
+            assertEquals("indicator,rrname,rrtype,bailiwick,time_first,time_last,count,rdata\n"
+                            + "\"a,b.example.com\",host0.example.com.,A,example.com.,1500000000,1600000000,1,10.0.0.0\n"
+                            + "\"a,b.example.com\",host1.example.com.,A,example.com.,1500000001,1600000001,2,10.0.0.1\n",
+                    out.toString(StandardCharsets.UTF_8));
+            assertEquals("", err.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void failures() throws IOException {
+        try (StandInServer server = new StandInServer(exchange -> StandInServer.send(exchange, 404, ""))) {
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            assertEquals(1, run("example.com\n", new ByteArrayOutputStream(), err,
+                    "-k", "abc123", "-s", server.uri(), "-S", "0"));
+            assertEquals("example.com: Received status code 404\n", err.toString(StandardCharsets.UTF_8));
+            assertEquals(1, server.requests(), "client errors are not retried");
+        }
+        assertEquals(2, run("", new ByteArrayOutputStream(), new ByteArrayOutputStream(), "-k", "x", "-f", "xml"));
+    }
+}
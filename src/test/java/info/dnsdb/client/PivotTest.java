@@ -0,0 +1,240 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package info.dnsdb.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PivotTest {
+    /**
+     * A small graph: www.example.com has an A record and a CNAME pointing at it, and shares its address with
+     * other.example.com. Lookups are keyed by endpoint and value, eg. rrset/name/www.example.com.
+     */
+    private static final Map<String, List<String>> GRAPH = new HashMap<>();
+
+    static {
+        GRAPH.put("rrset/name/www.example.com", List.of(
+                record("www.example.com.", "A", "192.0.2.1", 1600000000),
+                record("www.example.com.", "TXT", "v=spf1 -all", 1600000000),
+                record("www.example.com.", "MX", "10 mail.example.com.", 1600000000)));
+        GRAPH.put("rdata/name/www.example.com", List.of(
+                record("alias.example.com.", "CNAME", "www.example.com.", 1600000000)));
+        GRAPH.put("rdata/ip/192.0.2.1", List.of(
+                record("www.example.com.", "A", "192.0.2.1", 1600000000),
+                record("other.example.com.", "A", "192.0.2.1", 1600000000),
+                record("stale.example.com.", "A", "192.0.2.1", 1300000000)));
+        GRAPH.put("rrset/name/alias.example.com", List.of(
+                record("alias.example.com.", "CNAME", "www.example.com.", 1600000000)));
+        GRAPH.put("rrset/name/mail.example.com", List.of(
+                record("mail.example.com.", "A", "192.0.2.25", 1600000000)));
+        GRAPH.put("rrset/name/other.example.com", List.of(
+                record("other.example.com.", "A", "192.0.2.99", 1600000000)));
+    }
+
+    private static String record(String rrname, String rrtype, String rdata, long timeLast) {
+        return new JSONObject().put("obj", new JSONObject().put("rrname", rrname).put("rrtype", rrtype)
+                .put("rdata", rdata).put("count", 1).put("time_first", timeLast - 1000).put("time_last", timeLast))
+                .toString();
+    }
+
+    /**
+     * @return The lookup of a request, eg. rrset/name/www.example.com.
+     */
+    private static String lookup(HttpExchange exchange) {
+        String[] path = exchange.getRequestURI().getPath().substring(HTTPClient.PREFIX.length()).split("/");
+        return path[1] + "/" + path[2] + "/" + path[3];
+    }
+
+    private static void respond(HttpExchange exchange, String lookup) throws IOException {
+        StringBuilder sb = new StringBuilder("{\"cond\":\"begin\"}\n");
+        for (String row : GRAPH.getOrDefault(lookup, List.of())) {
+            sb.append(row).append('\n');
+        }
+        StandInServer.send(exchange, 200, sb.append("{\"cond\":\"succeeded\"}\n").toString());
+    }
+
+    private static List<Pivot.Edge> drain(Pivot.Expansion expansion) {
+        List<Pivot.Edge> edges = new ArrayList<>();
+        while (expansion.hasNext()) {
+            edges.add(expansion.next());
+        }
+        return edges;
+    }
+
+    private static List<String> names(List<Pivot.Edge> edges) {
+        List<String> names = new ArrayList<>();
+        for (Pivot.Edge e : edges) {
+            names.add(e.depth() + " " + e);
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    @Test
+    void expand() throws IOException {
+        List<String> lookups = new CopyOnWriteArrayList<>();
+        List<String> queries = new CopyOnWriteArrayList<>();
+        try (StandInServer server = new StandInServer(exchange -> {
+            lookups.add(lookup(exchange));
+            queries.add(exchange.getRequestURI().getRawQuery());
+            respond(exchange, lookup(exchange));
+        })) {
+            List<Pivot.Edge> edges = drain(new Pivot(server.client()).maxDepth(2).fanOut(50)
+                    .expand("WWW.Example.com."));
+
+            assertEquals(List.of(
+                    "1 alias.example.com CNAME www.example.com",
+                    "1 www.example.com A 192.0.2.1",
+                    "1 www.example.com MX mail.example.com",
+                    "2 mail.example.com A 192.0.2.25",
+                    "2 other.example.com A 192.0.2.1",
+                    "2 stale.example.com A 192.0.2.1"), names(edges), "TXT is not followed, edges are distinct");
+            for (int i = 1; i < edges.size(); i++) {
+                assertTrue(edges.get(i - 1).depth() <= edges.get(i).depth(), "breadth-first order");
+            }
+
+            // The seed, then its three neighbours; other.example.com and stale.example.com are beyond maxDepth.
+            assertEquals(Set.of("rrset/name/www.example.com", "rdata/name/www.example.com", "rdata/ip/192.0.2.1",
+                    "rrset/name/alias.example.com", "rdata/name/alias.example.com",
+                    "rrset/name/mail.example.com", "rdata/name/mail.example.com"), Set.copyOf(lookups));
+            assertEquals(Set.copyOf(lookups).size(), lookups.size(), "each indicator is expanded once");
+            for (String q : queries) {
+                assertTrue(q.contains("limit=50"), "fan-out applied to every lookup: " + q);
+            }
+        }
+    }
+
+    @Test
+    void fences() throws IOException {
+        List<String> queries = new CopyOnWriteArrayList<>();
+        try (StandInServer server = new StandInServer(exchange -> {
+            queries.add(exchange.getRequestURI().getRawQuery());
+            respond(exchange, lookup(exchange));
+        })) {
+            List<Pivot.Edge> edges = drain(new Pivot(server.client()).maxDepth(3).rrtypes("A")
+                    .timeLastAfter(1500000000).expand("192.0.2.1"));
+
+            assertEquals(List.of(
+                    "1 other.example.com A 192.0.2.1",
+                    "1 www.example.com A 192.0.2.1",
+                    "2 other.example.com A 192.0.2.99"), names(edges), "stale.example.com is outside the fence");
+            for (String q : queries) {
+                assertTrue(q.contains("time_last_after=1500000000"), "fence applied to every lookup: " + q);
+            }
+        }
+    }
+
+    @Test
+    void edgesStreamDuringExpansion() throws IOException {
+        CountDownLatch secondHop = new CountDownLatch(1);
+        try (StandInServer server = new StandInServer(exchange -> {
+            String lookup = lookup(exchange);
+            if (!lookup.endsWith("/www.example.com")) {
+                try {
+                    secondHop.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            respond(exchange, lookup);
+        })) {
+            Pivot.Expansion expansion = new Pivot(server.client()).maxDepth(2).expand("www.example.com");
+            List<Pivot.Edge> first = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                assertTrue(expansion.hasNext());
+                first.add(expansion.next());
+            }
+            assertTrue(first.stream().allMatch(e -> e.depth() == 1), "first hop delivered while the second runs");
+            secondHop.countDown();
+            assertEquals(3, drain(expansion).size());
+        }
+    }
+
+    /**
+     * Send the begin line, then stall for the lookups after the first hop.
+     */
+    private static StandInServer stallingServer() throws IOException {
+        return new StandInServer(exchange -> {
+            String lookup = lookup(exchange);
+            if (lookup.endsWith("/www.example.com")) {
+                respond(exchange, lookup);
+                return;
+            }
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            out.write("{\"cond\":\"begin\"}\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException ignored) {
+                // server stopped
+            }
+        });
+    }
+
+    @Test
+    void close() throws IOException {
+        try (StandInServer server = stallingServer()) {
+            Pivot.Expansion expansion = new Pivot(server.client()).expand("www.example.com");
+            for (int i = 0; i < 3; i++) {
+                expansion.next();
+            }
+            long start = System.nanoTime();
+            expansion.close();
+            assertFalse(expansion.hasNext());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2), "closed without waiting");
+        }
+    }
+
+    @Test
+    void cancel() throws IOException {
+        ScheduledExecutorService canceller = Executors.newSingleThreadScheduledExecutor();
+        try (StandInServer server = stallingServer()) {
+            CancellationToken token = new CancellationToken();
+            Pivot.Expansion expansion = new Pivot(server.client()).cancellation(token).expand("www.example.com");
+            for (int i = 0; i < 3; i++) {
+                expansion.next();
+            }
+            long start = System.nanoTime();
+            canceller.schedule(token::cancel, 200, TimeUnit.MILLISECONDS);
+            assertThrows(QueryCancelledException.class, expansion::hasNext);
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5), "lookups in flight aborted");
+        } finally {
+            canceller.shutdownNow();
+        }
+    }
+}
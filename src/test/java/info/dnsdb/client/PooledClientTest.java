@@ -0,0 +1,107 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PooledClientTest {
+    private static final Map<String, Integer> REMAINING = Map.of("key-aaaa", 100, "key-bbbb", 5000, "key-cccc", 0,
+            "key-dddd", 1000);
+
+    private static StandInServer server(Map<String, AtomicInteger> queries) throws IOException {
+        return new StandInServer(exchange -> {
+            String key = exchange.getRequestHeaders().getFirst("X-API-Key");
+            if (exchange.getRequestURI().getPath().endsWith("/rate_limit")) {
+                StandInServer.send(exchange, 200, String.format(
+                        "{\"rate\":{\"limit\":5000,\"remaining\":%d,\"reset\":4102444800}}", REMAINING.get(key)));
+                return;
+            }
+            queries.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+            if (key.equals("key-dddd")) {
+                StandInServer.send(exchange, 429, "");
+            } else {
+                StandInServer.send(exchange, 200, StandInServer.saf(3, Query.COND_SUCCEEDED));
+            }
+        });
+    }
+
+    @Test
+    void leastLoaded() throws IOException {
+        Map<String, AtomicInteger> queries = new ConcurrentHashMap<>();
+        try (StandInServer server = server(queries)) {
+            PooledClient pool = new PooledClient(server.uri(), "key-aaaa", "key-bbbb", "key-cccc");
+            pool.refresh();
+            assertFalse(pool.keys().get(2).available(), "exhausted keys are skipped");
+            assertEquals(5100, pool.rateLimit().getJSONObject("rate").getLong("remaining"));
+
+            // Key bbbb has 50 times the remaining quota of aaaa, so it takes about 50 streams per stream on aaaa.
+            List<Query> open = new ArrayList<>();
+            for (int i = 0; i < 60; i++) {
+                Query q = pool.lookupRRSet(Client.TYPE_NAME, "example.com");
+                q.stream().next();
+                open.add(q);
+            }
+            assertEquals(1, pool.keys().get(0).active());
+            assertEquals(59, pool.keys().get(1).active());
+            assertEquals(0, pool.keys().get(2).queries());
+
+            open.forEach(Query::close);
+            assertEquals(0, pool.keys().get(0).active() + pool.keys().get(1).active());
+            assertEquals(60, queries.get("key-aaaa").get() + queries.get("key-bbbb").get());
+        }
+    }
+
+    @Test
+    void skipRateLimited() throws IOException {
+        Map<String, AtomicInteger> queries = new ConcurrentHashMap<>();
+        try (StandInServer server = server(queries)) {
+            PooledClient pool = new PooledClient(server.uri(), "key-dddd");
+            assertThrows(RateLimitedException.class, () -> pool.lookupRRSet(Client.TYPE_NAME, "x").stream());
+            assertThrows(DNSDBException.class, () -> pool.lookupRRSet(Client.TYPE_NAME, "x").stream(),
+                    "the only key is backing off");
+            assertEquals(1, queries.get("key-dddd").get());
+
+            PooledClient pool2 = new PooledClient(server.uri(), "key-dddd", "key-aaaa");
+            for (int i = 0; i < 3; i++) {
+                assertEquals(3, pool2.lookupRRSet(Client.TYPE_NAME, "x").count().rows());
+            }
+            PooledClient.Key dddd = pool2.keys().get(0);
+            assertTrue(dddd.queries() <= 1);
+            assertEquals(dddd.queries(), dddd.errors());
+            assertEquals(3, pool2.keys().get(1).queries());
+            assertTrue(pool2.keys().get(1).toString().startsWith("...aaaa"));
+        }
+    }
+
+    @Test
+    void sameServer() {
+        assertThrows(IllegalArgumentException.class, () -> new PooledClient(Arrays.asList(
+                new HTTPClient("a", "https://one.example"), new HTTPClient("b", "https://two.example"))));
+    }
+}
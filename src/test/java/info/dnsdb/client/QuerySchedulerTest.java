@@ -0,0 +1,126 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class QuerySchedulerTest {
+    private static void await(QueryScheduler scheduler, QueryScheduler.Priority p, int queued) throws InterruptedException {
+        for (int i = 0; i < 500 && scheduler.queued(p) < queued; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(queued, scheduler.queued(p));
+    }
+
+    private static Thread run(Client c, String value) {
+        Thread t = new Thread(() -> c.lookupRRSet(Client.TYPE_NAME, value).stream().forEachRemaining(row -> { }));
+        t.start();
+        return t;
+    }
+
+    @Test
+    void priorityAndFairness() throws Exception {
+        List<String> served = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch gate = new CountDownLatch(1);
+        try (StandInServer server = new StandInServer(exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            String value = path.replaceAll(".*/name/([^/]+)/.*", "$1");
+            if (value.equals("blocker")) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            served.add(value);
+            StandInServer.send(exchange, 200, StandInServer.saf(1, Query.COND_SUCCEEDED));
+        })) {
+            QueryScheduler scheduler = new QueryScheduler(server.client(), 1).weight("a", 3);
+            Client bulkA = scheduler.client(QueryScheduler.Priority.BULK, "a");
+            Client bulkB = scheduler.client(QueryScheduler.Priority.BULK, "b");
+            Client interactive = scheduler.client(QueryScheduler.Priority.INTERACTIVE, "analyst");
+
+            List<Thread> threads = new ArrayList<>();
+            threads.add(run(bulkB, "blocker"));
+            for (int i = 0; i < 500 && scheduler.running() == 0; i++) {
+                Thread.sleep(10);
+            }
+            for (int i = 0; i < 6; i++) {
+                threads.add(run(bulkA, "a" + i));
+                await(scheduler, QueryScheduler.Priority.BULK, 2 * i + 1);
+                threads.add(run(bulkB, "b" + i));
+                await(scheduler, QueryScheduler.Priority.BULK, 2 * i + 2);
+            }
+            threads.add(run(interactive, "urgent"));
+            await(scheduler, QueryScheduler.Priority.INTERACTIVE, 1);
+
+            gate.countDown();
+            for (Thread t : threads) {
+                t.join(10000);
+            }
+
+            assertEquals(14, served.size());
+            assertEquals("blocker", served.get(0));
+            assertEquals("urgent", served.get(1), "interactive work overtakes queued bulk work");
+            long a = served.subList(2, 10).stream().filter(v -> v.startsWith("a")).count();
+            assertEquals(6, a, "tenant a, with weight 3, gets three of every four dispatches: " + served);
+            assertEquals(0, scheduler.running());
+        }
+    }
+
+    @Test
+    void reserve() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        try (StandInServer server = new StandInServer(exchange -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            StandInServer.send(exchange, 200, StandInServer.saf(1, Query.COND_SUCCEEDED));
+        })) {
+            QueryScheduler scheduler = new QueryScheduler(server.client(), 3).reserve(1);
+            Client bulk = scheduler.client(QueryScheduler.Priority.BULK, "etl");
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                threads.add(run(bulk, "b" + i));
+            }
+            await(scheduler, QueryScheduler.Priority.BULK, 1);
+            assertEquals(2, scheduler.running(), "one stream is kept for other classes");
+
+            threads.add(run(scheduler.client(QueryScheduler.Priority.NORMAL, "app"), "n"));
+            for (int i = 0; i < 500 && scheduler.running() < 3; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(3, scheduler.running());
+            assertEquals(0, scheduler.queued(QueryScheduler.Priority.NORMAL));
+
+            gate.countDown();
+            for (Thread t : threads) {
+                t.join(10000);
+            }
+            assertEquals(0, scheduler.running());
+        }
+    }
+}
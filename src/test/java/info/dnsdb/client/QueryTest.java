@@ -0,0 +1,341 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QueryTest {
+    @Test
+    public void uri() {
+        HTTPClient c = new HTTPClient("abc123");
+        Query q = c.lookupRRSet(Client.TYPE_NAME, "*.fsi.io").rrtype("A").bailiwick("fsi.io").limit(5);
+
+        URI uri = q.uri();
+        assertEquals("/dnsdb/v2/lookup/rrset/name/*.fsi.io/A/fsi.io", uri.getPath());
+        assertEquals("swclient=java&limit=5", uri.getRawQuery());
+        assertEquals(uri, q.uri(), "building the URI does not modify the query");
+    }
+
+    @Test
+    public void uriEncoding() {
+        HTTPClient c = new HTTPClient("abc123");
+
+        assertEquals("/dnsdb/v2/lookup/rdata/ip/104.244.13.0,24/ANY",
+                c.lookupRData(Client.TYPE_IP, "104.244.13.0/24").uri().getPath());
+        assertEquals("/dnsdb/v2/regex/rrnames/%5Efarsight%20security/ANY",
+                c.flex(Client.METHOD_REGEX, Client.KEY_RRNAMES, "^farsight security").uri().getRawPath());
+    }
+
+    @Test
+    public void template() {
+        HTTPClient c = new HTTPClient("abc123");
+        Query q = c.lookupRData(Client.TYPE_IP, "").rrtype("A").limit(10);
+        QueryTemplate t = q.template();
+        q.limit(20);
+
+        assertEquals(c.lookupRData(Client.TYPE_IP, "10.0.0.0/8").rrtype("A").limit(10).uri(), t.uri("10.0.0.0/8"));
+        assertTrue(t.query("10.0.0.0/8").limit(20).uri().getRawQuery().endsWith("limit=20"));
+        assertEquals("limit=10", t.uri("10.0.0.1").getRawQuery().split("&")[1], "template unaffected by queries");
+
+        HttpRequest req = t.request("10.0.0.1");
+        assertEquals(t.uri("10.0.0.1"), req.uri());
+        assertEquals("abc123", req.headers().firstValue("X-API-Key").orElse(""));
+    }
+
+    private static int drain(Iterator<JSONObject> it) {
+        int n = 0;
+        while (it.hasNext()) {
+            assertEquals(String.format("host%d.example.com.", n), it.next().getString("rrname"));
+            n++;
+        }
+        return n;
+    }
+
+    @Test
+    public void stream() throws IOException {
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(100, Query.COND_SUCCEEDED))) {
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com");
+            assertEquals(100, drain(q.stream()));
+            assertEquals(100, q.stats().rows());
+            assertEquals(0, q.stats().bufferCapacity());
+        }
+    }
+
+    @Test
+    public void streamLimited() throws IOException {
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(3, Query.COND_LIMITED))) {
+            Iterator<JSONObject> it = server.client().lookupRRSet(Client.TYPE_NAME, "example.com").stream();
+            assertThrows(QueryLimitedException.class, () -> drain(it));
+            assertFalse(it.hasNext());
+
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com").disableLimitedException(true);
+            assertEquals(3, drain(q.stream()));
+        }
+    }
+
+    @Test
+    public void streamTruncated() throws IOException {
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(3, null))) {
+            Iterator<JSONObject> it = server.client().lookupRRSet(Client.TYPE_NAME, "example.com").stream();
+            assertThrows(TruncatedResponseException.class, () -> drain(it));
+        }
+    }
+
+    @Test
+    public void streamStatusCode() throws IOException {
+        try (StandInServer server = new StandInServer(exchange -> StandInServer.send(exchange, 503, ""))) {
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com");
+            DNSDBException e = assertThrows(ServiceUnavailableException.class, q::stream);
+            assertEquals("Received status code 503", e.getMessage());
+        }
+        try (StandInServer server = new StandInServer(exchange -> StandInServer.send(exchange, 429, ""))) {
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com");
+            assertTrue(assertThrows(RateLimitedException.class, q::stream).isOverload());
+        }
+        try (StandInServer server = new StandInServer(exchange -> StandInServer.send(exchange, 403, ""))) {
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com");
+            assertEquals(403, assertThrows(AuthorizationException.class, q::stream).statusCode());
+        }
+    }
+
+    @Test
+    public void readAhead() throws IOException {
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(5000, Query.COND_SUCCEEDED))) {
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com").readAhead(100);
+            assertEquals(5000, drain(q.stream()));
+            assertEquals(128, q.stats().bufferCapacity());
+            assertTrue(q.stats().bufferHighWater() > 0);
+            assertTrue(q.stats().bufferHighWater() <= 128);
+        }
+
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(10, null))) {
+            Iterator<JSONObject> it = server.client().lookupRRSet(Client.TYPE_NAME, "example.com").readAhead(4).stream();
+            assertThrows(TruncatedResponseException.class, () -> drain(it));
+        }
+    }
+
+    @Test
+    public void readAheadClose() throws IOException {
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(5000, Query.COND_SUCCEEDED))) {
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com").readAhead(16);
+            Iterator<JSONObject> it = q.stream();
+            it.next();
+            q.close();
+            while (it.hasNext()) {
+                it.next();
+            }
+        } catch (TruncatedResponseException e) {
+            // also acceptable: the body was closed under the reader
+        }
+    }
+
+    @Test
+    public void readAheadCloseStalled() throws IOException {
+        try (StandInServer server = new StandInServer(exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            out.write(StandInServer.saf(1, null).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException ignored) {
+                // server stopped
+            }
+        })) {
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com").readAhead(16);
+            Iterator<JSONObject> it = q.stream();
+            it.next();
+            long start = System.nanoTime();
+            q.close();
+            assertTrue(System.nanoTime() - start < 2_000_000_000L, "close does not wait for the stalled reader");
+        }
+    }
+
+    @Test
+    public void parallelDecode() throws IOException {
+        int n = 10 * ParallelLineSource.BATCH_SIZE + 7;
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(n, Query.COND_SUCCEEDED))) {
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com").parallelDecode(true);
+            assertEquals(n, drain(q.stream()));
+
+            ForkJoinPool pool = new ForkJoinPool(4);
+            Iterator<JSONObject> it = server.client().lookupRRSet(Client.TYPE_NAME, "example.com")
+                    .parallelDecode(false, pool).stream();
+            Set<String> names = new HashSet<>();
+            while (it.hasNext()) {
+                names.add(it.next().getString("rrname"));
+            }
+            assertEquals(n, names.size());
+            pool.shutdown();
+        }
+
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(ParallelLineSource.BATCH_SIZE, Query.COND_LIMITED))) {
+            Iterator<JSONObject> it = server.client().lookupRRSet(Client.TYPE_NAME, "example.com")
+                    .parallelDecode(false).stream();
+            int rows = 0;
+            try {
+                while (it.hasNext()) {
+                    it.next();
+                    rows++;
+                }
+            } catch (QueryLimitedException e) {
+                assertEquals(ParallelLineSource.BATCH_SIZE, rows, "terminal condition delivered after all rows");
+            }
+        }
+
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(1000, null))) {
+            Iterator<JSONObject> it = server.client().lookupRRSet(Client.TYPE_NAME, "example.com")
+                    .parallelDecode(true).stream();
+            assertThrows(TruncatedResponseException.class, () -> drain(it));
+        }
+    }
+
+    @Test
+    public void filter() throws IOException {
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(1000, Query.COND_SUCCEEDED))) {
+            RowFilter f = RowFilter.countAtLeast(900).and(RowFilter.rrnameSuffix("Example.COM."));
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com").filter(f);
+            Iterator<JSONObject> it = q.stream();
+            for (int i = 899; i < 1000; i++) {
+                assertEquals(String.format("host%d.example.com.", i), it.next().getString("rrname"));
+            }
+            assertFalse(it.hasNext());
+            assertEquals(101, q.stats().filterHits());
+            assertEquals(899, q.stats().filterMisses());
+
+            q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com").filter(f.negate())
+                    .parallelDecode(true, ForkJoinPool.commonPool());
+            assertEquals(899, drain(q.stream()));
+            assertEquals(101, server.client().lookupRRSet(Client.TYPE_NAME, "example.com").filter(f).count().rows());
+        }
+    }
+
+    @Test
+    public void summary() throws IOException {
+        String body = "{\"cond\":\"begin\"}\n"
+                + "{\"obj\":{\"count\":6350,\"num_results\":3,\"time_first\":1380123423,"
+                + "\"time_last\":1427869045,\"zone_time_first\":1380000000,\"zone_time_last\":1400000000}}\n"
+                + "{\"cond\":\"succeeded\"}\n";
+        try (StandInServer server = StandInServer.ndjson(body)) {
+            Query q = server.client().summarizeRRSet(Client.TYPE_NAME, "example.com").rrtype("A").maxCount(5000);
+            assertEquals("/dnsdb/v2/summarize/rrset/name/example.com/A", q.uri().getPath());
+            assertTrue(q.uri().getRawQuery().endsWith("max_count=5000"));
+
+            Summary s = q.summary();
+            assertEquals(6350, s.count());
+            assertEquals(3, s.numResults());
+            assertEquals(1380000000, s.firstSeen());
+            assertEquals(1427869045, s.lastSeen());
+            assertEquals(1, q.stats().rows());
+        }
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(0, Query.COND_SUCCEEDED))) {
+            assertEquals(0, server.client().summarizeRData(Client.TYPE_IP, "10.0.0.0/8").summary().count());
+        }
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(2, Query.COND_SUCCEEDED))) {
+            assertThrows(UnexpectedCondException.class,
+                    () -> server.client().lookupRRSet(Client.TYPE_NAME, "example.com").summary());
+        }
+    }
+
+    @Test
+    public void count() throws IOException {
+        String body = StandInServer.saf(1000, null)
+                + "{\"obj\":{\"count\":5,\"zone_time_first\":1400000000,\"zone_time_last\":1700000000,"
+                + "\"rrname\":\"esc\\\"aped.example.com.\",\"rrtype\":\"TXT\",\"bailiwick\":\"com.\","
+                + "\"rdata\":[\"\\\"v=spf1 -all\\\"\",\"x\"],\"extra\":{\"nested\":[1,{\"a\":\"}\"}]}}}\n"
+                + "{\"cond\":\"ongoing\",\"msg\":\"keepalive\"}\n"
+                + "{\"cond\":\"succeeded\"}\n";
+        try (StandInServer server = StandInServer.ndjson(body)) {
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com");
+            QueryCounts counts = q.count();
+            assertEquals(1001, counts.rows());
+            assertEquals(1001, q.stats().rows());
+            assertEquals(body.length(), q.stats().bytes());
+            assertTrue(Math.abs(counts.distinctRRNames() - 1001) < 20);
+            assertTrue(Math.abs(counts.distinctRData() - 1002) < 20);
+            assertEquals(2, counts.distinctBailiwicks());
+            assertEquals(1400000000, counts.timeFirst());
+            assertEquals(1700000000, counts.timeLast());
+
+            QueryCounts merged = server.client().lookupRRSet(Client.TYPE_NAME, "example.com").count().merge(counts);
+            assertEquals(2002, merged.rows());
+            assertTrue(Math.abs(merged.distinctRRNames() - 1001) < 20);
+        }
+
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(10, Query.COND_LIMITED))) {
+            assertThrows(QueryLimitedException.class, () -> server.client().lookupRRSet(Client.TYPE_NAME, "x").count());
+            assertEquals(10, server.client().lookupRRSet(Client.TYPE_NAME, "x").disableLimitedException(true).count().rows());
+        }
+
+        try (StandInServer server = StandInServer.ndjson("{\"cond\":\"begin\"}\n{\"obj\":{\"rrname\":}}\n")) {
+            assertThrows(InvalidJSONException.class, () -> server.client().lookupRRSet(Client.TYPE_NAME, "x").count());
+        }
+    }
+
+    @Test
+    public void result() throws IOException {
+        String limited = StandInServer.saf(10, null) + "{\"cond\":\"limited\",\"msg\":\"Result limit reached\"}\n";
+        try (StandInServer server = StandInServer.ndjson(limited)) {
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "x");
+            assertNull(q.result());
+            int[] rows = new int[1];
+            QueryResult result = q.forEach(row -> rows[0]++);
+            assertEquals(10, rows[0]);
+            assertEquals(QueryResult.Status.LIMITED, result.status());
+            assertEquals("Result limit reached", result.message());
+            assertEquals(10, result.rows());
+
+            QueryLimitedException e = assertThrows(QueryLimitedException.class, () -> drain(q.stream()));
+            assertEquals("Result limit reached", e.serverMessage());
+            assertEquals(0, e.getStackTrace().length, "control-flow exceptions are stackless");
+            assertEquals(QueryResult.Status.LIMITED, q.result().status(), "set even when thrown");
+
+            q.disableLimitedException(true).count();
+            assertEquals(10, q.result().rows());
+        }
+
+        String failed = StandInServer.saf(3, null) + "{\"cond\":\"failed\",\"msg\":\"Timeout\"}\n";
+        try (StandInServer server = StandInServer.ndjson(failed)) {
+            QueryResult result = server.client().lookupRRSet(Client.TYPE_NAME, "x").forEach(row -> { });
+            assertEquals(QueryResult.Status.FAILED, result.status());
+            assertEquals("Timeout", result.message());
+            assertEquals(3, result.rows());
+        }
+
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(5, Query.COND_SUCCEEDED))) {
+            QueryResult result = server.client().lookupRRSet(Client.TYPE_NAME, "x").forEach(row -> { });
+            assertTrue(result.succeeded());
+            assertNull(result.message());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class QueryTraceTest {
+    private static List<RecordedEvent> events(Path file, String name) throws IOException {
+        return RecordingFile.readAllEvents(file).stream()
+                .filter(e -> e.getEventType().getName().equals(name))
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    void events(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("query.jfr");
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(20, Query.COND_LIMITED));
+             Recording recording = new Recording()) {
+            recording.enable("info.dnsdb.QueryStart");
+            recording.enable("info.dnsdb.QueryBegin");
+            recording.enable("info.dnsdb.QueryFirstRow");
+            recording.enable("info.dnsdb.Query");
+            recording.start();
+
+            HTTPClient c = server.client();
+            c.lookupRRSet(Client.TYPE_NAME, "example.com").rrtype("A").forEach(row -> { });
+            assertThrows(QueryLimitedException.class, () -> c.lookupRData(Client.TYPE_IP, "10.0.0.0/8").count());
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        assertEquals(2, events(file, "info.dnsdb.QueryStart").size());
+        assertEquals(2, events(file, "info.dnsdb.QueryBegin").size());
+        assertEquals(2, events(file, "info.dnsdb.QueryFirstRow").size());
+
+        List<RecordedEvent> queries = events(file, "info.dnsdb.Query");
+        assertEquals(2, queries.size());
+        for (RecordedEvent e : queries) {
+            assertEquals(20, e.getLong("rows"));
+            assertEquals("limited", e.getString("cond"));
+            assertFalse(e.getLong("bytes") == 0);
+            assertFalse(e.getString("uri").contains("abc123"), "the URI carries no API key");
+        }
+        RecordedEvent rrset = queries.stream().filter(e -> e.getString("endpoint").equals("lookup/rrset/name"))
+                .findFirst().orElseThrow();
+        assertEquals("A", rrset.getString("rrtype"));
+    }
+}
@@ -0,0 +1,100 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplayClientTest {
+    private static List<String> rrnames(Iterator<JSONObject> it) {
+        List<String> names = new ArrayList<>();
+        it.forEachRemaining(row -> names.add(row.getString("rrname")));
+        return names;
+    }
+
+    @Test
+    void recordAndReplay(@TempDir Path dir) throws IOException {
+        Path archive = dir.resolve("queries.rec.gz");
+        List<String> recorded;
+        try (StandInServer server = new StandInServer(exchange -> {
+            if (exchange.getRequestURI().getPath().contains("missing")) {
+                StandInServer.send(exchange, 404, "");
+                return;
+            }
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+            StandInServer.send(exchange, 200, StandInServer.saf(500, Query.COND_SUCCEEDED));
+        }); RecordingClient c = new RecordingClient(server.client(), archive)) {
+            recorded = rrnames(c.lookupRRSet(Client.TYPE_NAME, "example.com").rrtype("A").stream());
+            assertThrows(HTTPStatusException.class, () -> c.lookupRRSet(Client.TYPE_NAME, "missing.com").stream());
+        }
+        assertEquals(500, recorded.size());
+        try (GZIPInputStream in = new GZIPInputStream(Files.newInputStream(archive))) {
+            assertFalse(new String(in.readAllBytes(), StandardCharsets.ISO_8859_1).contains("abc123"),
+                    "the API key is not recorded");
+        }
+
+        ReplayClient replay = new ReplayClient(archive);
+        assertEquals(2, replay.size());
+        long start = System.nanoTime();
+        assertEquals(recorded, rrnames(replay.lookupRRSet(Client.TYPE_NAME, "example.com").rrtype("A").stream()));
+        assertTrue(System.nanoTime() - start < 150_000_000L, "untimed replay does not wait");
+        assertEquals(404, assertThrows(HTTPStatusException.class,
+                () -> replay.lookupRRSet(Client.TYPE_NAME, "missing.com").stream()).statusCode());
+        assertThrows(DNSDBException.class, () -> replay.lookupRRSet(Client.TYPE_NAME, "example.org").stream());
+
+        replay.timed(true);
+        start = System.nanoTime();
+        assertEquals(500, replay.lookupRRSet(Client.TYPE_NAME, "example.com").rrtype("A").count().rows());
+        assertTrue(System.nanoTime() - start >= 200_000_000L, "timed replay waits as long as the server did");
+    }
+
+    @Test
+    void dataWithoutOpen(@TempDir Path dir) throws IOException {
+        Path archive = dir.resolve("corrupt.rec.gz");
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(archive)))) {
+            out.writeInt(RecordingClient.MAGIC);
+            out.writeInt(RecordingClient.VERSION);
+            out.writeByte(RecordingClient.DATA);
+            out.writeInt(7);
+            out.writeLong(0);
+            out.writeInt(1);
+            out.write('\n');
+        }
+        DNSDBException e = assertThrows(DNSDBException.class, () -> new ReplayClient(archive));
+        assertTrue(e.getMessage().startsWith("Invalid frame"), e.getMessage());
+    }
+}
@@ -0,0 +1,96 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RowCursorTest {
+    @Test
+    void fields() throws IOException {
+        String body = "{\"cond\":\"begin\"}\n"
+                + "{\"obj\":{\"count\":7,\"time_first\":1500000000,\"time_last\":1600000000,\"rrname\":\"b\\u00fccher.example.\","
+                + "\"rrtype\":\"TXT\",\"rdata\":[\"\\\"caf\u00e9\\\"\",\"x\"]}}\n"
+                + "{\"obj\":{\"count\":1,\"zone_time_first\":1400000000,\"rrname\":\"example.\",\"rrtype\":\"NS\","
+                + "\"bailiwick\":\"example.\",\"rdata\":\"ns1.example.\"}}\n"
+                + "{\"cond\":\"limited\",\"msg\":\"Result limit reached\"}\n";
+        try (StandInServer server = StandInServer.ndjson(body);
+             RowCursor c = server.client().lookupRRSet(Client.TYPE_NAME, "example")
+                     .disableLimitedException(true).cursor()) {
+            assertThrows(IllegalStateException.class, c::rrname);
+
+            assertTrue(c.advance());
+            assertEquals("b\u00fccher.example.", c.rrname().toString());
+            assertEquals(0, CharSequence.compare("TXT", c.rrtype()));
+            assertNull(c.bailiwick());
+            assertEquals(7, c.count());
+            assertEquals(1500000000, c.timeFirst());
+            assertEquals(0, c.zoneTimeFirst());
+            assertEquals(2, c.rdataCount());
+            assertEquals("\"caf\u00e9\"", c.rdata(0).toString());
+            assertEquals("x", c.rdata(1).toString());
+
+            assertTrue(c.advance());
+            assertEquals("example.", c.bailiwick().toString());
+            assertEquals(1400000000, c.zoneTimeFirst());
+            assertEquals("ns1.example.", c.rdata(0).toString());
+
+            assertFalse(c.advance());
+            assertEquals(QueryResult.Status.LIMITED, c.result().status());
+        }
+    }
+
+    @Test
+    void allocationFree() throws IOException {
+        int rows = 200000;
+        try (StandInServer server = StandInServer.ndjson(StandInServer.saf(rows, Query.COND_SUCCEEDED))) {
+            Query q = server.client().lookupRRSet(Client.TYPE_NAME, "example.com");
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long id = Thread.currentThread().getId();
+
+            try (RowCursor c = q.cursor()) {
+                // warm up, so that buffers have grown and the loop is compiled
+                for (int i = 0; i < 20000; i++) {
+                    assertTrue(c.advance());
+                    sink(c);
+                }
+                long before = threads.getThreadAllocatedBytes(id);
+                long n = 0;
+                while (c.advance()) {
+                    n += sink(c);
+                }
+                long allocated = threads.getThreadAllocatedBytes(id) - before;
+                assertTrue(n > 0);
+                // Reading the body allocates per network chunk, not per row.
+                assertTrue(allocated / (rows - 20000) < 8, "bytes allocated per row: " + allocated / (rows - 20000));
+            }
+        }
+    }
+
+    private static long sink(RowCursor c) {
+        return c.count() + c.timeFirst() + c.timeLast() + c.rrname().length() + c.rrname().charAt(0)
+                + c.rrtype().length() + c.bailiwick().charAt(1) + c.rdata(0).length();
+    }
+}
@@ -0,0 +1,71 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RowFilterTest {
+    private static final String ROW = "{\"obj\":{\"count\":12,\"zone_time_first\":1400000000,"
+            + "\"zone_time_last\":1500000000,\"rrname\":\"www.Example.com.\",\"rrtype\":\"CNAME\","
+            + "\"bailiwick\":\"example.com.\",\"rdata\":[\"cdn.example.net.\",\"t\\u0065st.example.org.\"]}}";
+
+    private static boolean test(RowFilter f) {
+        byte[] b = ROW.getBytes(StandardCharsets.UTF_8);
+        RowScanner scanner = new RowScanner();
+        scanner.scan(b, 0, b.length);
+        return f.test(scanner);
+    }
+
+    @Test
+    void predicates() {
+        assertTrue(test(RowFilter.rrtype("A", "cname")));
+        assertFalse(test(RowFilter.rrtype("A", "AAAA")));
+
+        assertTrue(test(RowFilter.rrnameSuffix("example.com")));
+        assertTrue(test(RowFilter.rrnameSuffix("WWW.example.com.")));
+        assertFalse(test(RowFilter.rrnameSuffix("ample.com")));
+        assertTrue(test(RowFilter.bailiwickSuffix("com")));
+        assertFalse(test(RowFilter.bailiwickSuffix("www.example.com")));
+
+        assertTrue(test(RowFilter.timeLastAfter(1499999999)));
+        assertFalse(test(RowFilter.timeLastAfter(1500000000)));
+        assertTrue(test(RowFilter.timeFirstBefore(1400000001)));
+        assertFalse(test(RowFilter.timeFirstAfter(1400000000)));
+        assertTrue(test(RowFilter.countAtLeast(12)));
+        assertFalse(test(RowFilter.countAtLeast(13)));
+
+        assertTrue(test(RowFilter.rdataContains("cdn.example")));
+        assertFalse(test(RowFilter.rdataContains("test.example")));
+        assertTrue(test(RowFilter.rdataMatches(Pattern.compile("^test\\.example\\.org\\.$"))));
+    }
+
+    @Test
+    void combinators() {
+        RowFilter yes = RowFilter.rrtype("CNAME");
+        RowFilter no = RowFilter.rrtype("A");
+        assertTrue(test(yes.and(yes)));
+        assertFalse(test(yes.and(no)));
+        assertTrue(test(no.or(yes)));
+        assertFalse(test(no.or(no)));
+        assertTrue(test(no.negate()));
+    }
+}
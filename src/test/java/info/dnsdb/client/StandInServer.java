@@ -0,0 +1,113 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local stand-in for the DNSDB API server, serving canned SAF responses.
+ */
+class StandInServer implements AutoCloseable {
+    private final HttpServer server;
+    static final String THREAD_PREFIX = "stand-in-server-";
+
+    private final AtomicInteger threads = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool(
+            r -> new Thread(r, THREAD_PREFIX + threads.incrementAndGet()));
+    private final AtomicInteger requests = new AtomicInteger();
+
+    StandInServer(HttpHandler handler) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            try {
+                handler.handle(exchange);
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Serve the same NDJSON body for every request.
+     */
+    static StandInServer ndjson(String body) throws IOException {
+        return new StandInServer(exchange -> send(exchange, 200, body));
+    }
+
+    static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Build a SAF response of n rrset rows followed by a terminal condition, or none if cond is null.
+     */
+    static String saf(int n, String cond) {
+        StringBuilder sb = new StringBuilder("{\"cond\":\"begin\"}\n");
+        for (int i = 0; i < n; i++) {
+            sb.append(row(i)).append('\n');
+        }
+        if (cond != null) {
+            sb.append("{\"cond\":\"").append(cond).append("\"}\n");
+        }
+        return sb.toString();
+    }
+
+    static String row(int i) {
+        return String.format("{\"obj\":{\"count\":%d,\"time_first\":%d,\"time_last\":%d,"
+                        + "\"rrname\":\"host%d.example.com.\",\"rrtype\":\"A\",\"bailiwick\":\"example.com.\","
+                        + "\"rdata\":[\"10.0.%d.%d\"]}}",
+                i + 1, 1500000000 + i, 1600000000 + i, i, (i >> 8) & 0xff, i & 0xff);
+    }
+
+    String uri() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    HTTPClient client() {
+        return new HTTPClient("abc123", uri());
+    }
+
+    int requests() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,194 @@
+// Copyright (c) 2021 by Farsight Security, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package info.dnsdb.client;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WatchlistTest {
+    private static class Collector implements Watchlist.Listener {
+        final List<JSONObject> rows = new ArrayList<>();
+        final List<Boolean> isNew = new ArrayList<>();
+        final List<DNSDBException> errors = new ArrayList<>();
+        int limited;
+
+        @Override
+        public synchronized void onRow(String key, JSONObject row, boolean isNew) {
+            rows.add(row);
+            this.isNew.add(isNew);
+        }
+
+        @Override
+        public synchronized void onError(String key, DNSDBException e) {
+            errors.add(e);
+        }
+
+        @Override
+        public synchronized void onLimited(String key) {
+            limited++;
+        }
+    }
+
+    @Test
+    void incremental(@TempDir Path dir) throws IOException {
+        AtomicInteger rows = new AtomicInteger(3);
+        AtomicReference<String> query = new AtomicReference<>();
+        try (StandInServer server = new StandInServer(exchange -> {
+            query.set(exchange.getRequestURI().getRawQuery());
+            StandInServer.send(exchange, 200, StandInServer.saf(rows.get(), Query.COND_SUCCEEDED));
+        })) {
+            Watchlist w = new Watchlist(server.client(), dir).watchRRSet("example.com");
+            Collector c = new Collector();
+            w.runOnce(c);
+            assertEquals(3, c.rows.size());
+            assertFalse(query.get().contains("time_last_after"));
+            assertEquals(1600000002, w.watermark("rrset/name/example.com"));
+
+            rows.set(5);
+            c = new Collector();
+            w.runOnce(c);
+            assertEquals(2, c.rows.size(), "only unseen rows are reported");
+            assertTrue(c.isNew.get(0));
+            assertTrue(query.get().contains("time_last_after=" + (1600000002 - 3600)));
+
+            Watchlist restarted = new Watchlist(server.client(), dir).watchRRSet("example.com");
+            c = new Collector();
+            restarted.runOnce(c);
+            assertEquals(0, c.rows.size(), "state survives a restart");
+            assertEquals(1600000004, restarted.watermark("rrset/name/example.com"));
+        }
+    }
+
+    @Test
+    void changedAndFailed(@TempDir Path dir) throws IOException {
+        AtomicReference<String> body = new AtomicReference<>(StandInServer.saf(2, Query.COND_SUCCEEDED));
+        try (StandInServer server = new StandInServer(exchange -> StandInServer.send(exchange, 200, body.get()))) {
+            Watchlist w = new Watchlist(server.client(), dir).watchRRSet("example.com");
+            w.runOnce(new Collector());
+
+            body.set("{\"cond\":\"begin\"}\n"
+                    + StandInServer.row(0).replace("\"count\":1", "\"count\":7") + "\n"
+                    + StandInServer.row(1) + "\n{\"cond\":\"succeeded\"}\n");
+            Collector c = new Collector();
+            w.runOnce(c);
+            assertEquals(1, c.rows.size());
+            assertEquals(7, c.rows.get(0).getLong("count"));
+            assertFalse(c.isNew.get(0));
+
+            body.set(StandInServer.saf(4, null));
+            c = new Collector();
+            w.runOnce(c);
+            assertEquals(1, c.errors.size());
+            assertTrue(c.errors.get(0) instanceof TruncatedResponseException);
+            assertEquals(1600000001, w.watermark("rrset/name/example.com"), "failed runs keep the watermark");
+
+            body.set(StandInServer.saf(3, Query.COND_SUCCEEDED));
+            c = new Collector();
+            w.runOnce(c);
+            assertEquals(2, c.rows.size(), "host0 changed back and host2 was lost with the failed run");
+            assertTrue(c.errors.isEmpty());
+        }
+    }
+
+    @Test
+    void pruned(@TempDir Path dir) throws IOException {
+        AtomicReference<String> body = new AtomicReference<>(StandInServer.saf(1, Query.COND_SUCCEEDED));
+        try (StandInServer server = new StandInServer(exchange -> StandInServer.send(exchange, 200, body.get()))) {
+            Watchlist w = new Watchlist(server.client(), dir).watchRRSet("example.com");
+            w.runOnce(new Collector());
+
+            // host10000 moves the watermark more than the slack past host0.
+            body.set("{\"cond\":\"begin\"}\n" + StandInServer.row(10000) + "\n{\"cond\":\"succeeded\"}\n");
+            w.runOnce(new Collector());
+            assertEquals(1600010000, w.watermark("rrset/name/example.com"));
+
+            body.set("{\"cond\":\"begin\"}\n" + StandInServer.row(0) + "\n" + StandInServer.row(10000)
+                    + "\n{\"cond\":\"succeeded\"}\n");
+            Collector c = new Collector();
+            w.runOnce(c);
+            assertEquals(1, c.rows.size());
+            assertEquals("host0.example.com.", c.rows.get(0).getString("rrname"));
+            assertTrue(c.isNew.get(0), "rows behind the polled window are dropped from the seen-set");
+        }
+    }
+
+    @Test
+    void alwaysLimited(@TempDir Path dir) throws IOException {
+        AtomicReference<String> query = new AtomicReference<>();
+        try (StandInServer server = new StandInServer(exchange -> {
+            query.set(exchange.getRequestURI().getRawQuery());
+            StandInServer.send(exchange, 200, StandInServer.saf(2, Query.COND_LIMITED));
+        })) {
+            Watchlist w = new Watchlist(server.client(), dir).watchRRSet("example.com");
+            for (int run = 0; run < 2; run++) {
+                Collector c = new Collector();
+                w.runOnce(c);
+                assertEquals(run == 0 ? 2 : 0, c.rows.size(), "rows are reported once");
+                assertEquals(1, c.limited);
+                assertEquals(0, w.watermark("rrset/name/example.com"));
+                assertFalse(query.get().contains("time_last_after"), "the window does not move");
+            }
+        }
+    }
+
+    @Test
+    void unaggregated(@TempDir Path dir) throws IOException {
+        // Two observation periods of the same rrset.
+        String body = "{\"cond\":\"begin\"}\n" + StandInServer.row(0) + "\n"
+                + StandInServer.row(0).replace("1500000000", "1599990000").replace("1600000000", "1599999000")
+                + "\n{\"cond\":\"succeeded\"}\n";
+        try (StandInServer server = new StandInServer(exchange -> StandInServer.send(exchange, 200, body))) {
+            Watchlist w = new Watchlist(server.client(), dir)
+                    .watch("unaggregated", c -> c.lookupRRSet(Client.TYPE_NAME, "example.com").aggr(false));
+            Collector c = new Collector();
+            w.runOnce(c);
+            assertEquals(List.of(true, true), c.isNew);
+
+            c = new Collector();
+            w.runOnce(c);
+            assertEquals(0, c.rows.size(), "each period is tracked on its own");
+        }
+    }
+
+    @Test
+    void rollbackRepeatedRow(@TempDir Path dir) throws IOException {
+        AtomicReference<String> body = new AtomicReference<>("{\"cond\":\"begin\"}\n" + StandInServer.row(0) + "\n"
+                + StandInServer.row(0).replace("\"count\":1", "\"count\":7") + "\n");
+        try (StandInServer server = new StandInServer(exchange -> StandInServer.send(exchange, 200, body.get()))) {
+            Watchlist w = new Watchlist(server.client(), dir).watchRRSet("example.com");
+            Collector c = new Collector();
+            w.runOnce(c);
+            assertEquals(1, c.errors.size());
+
+            body.set(StandInServer.saf(1, Query.COND_SUCCEEDED));
+            c = new Collector();
+            w.runOnce(c);
+            assertEquals(List.of(true), c.isNew, "the failed run left no trace of the row");
+        }
+    }
+}